@@ -0,0 +1,319 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.compiler;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Compile-time generator of the api implementations.
+ * For each interface with @AkAPI methods, a class named {interface}$$AkImpl is generated
+ * in the same package, which calls ProxyInvocationHandler.invoke with a prebuilt
+ * InvokePlan directly, so Akita.createAPI can skip java.lang.reflect.Proxy.
+ * <p>
+ * Interfaces with type parameters are skipped and keep using the dynamic proxy.
+ * Methods whose return type is parameterized (such as Future&lt;T&gt;), which use
+ * @AkSignature, @AkCache, @AkRetry or @AkBatch, or which have an AkCallback param
+ * build their plan from the reflected Method once, because neither a generic Type
+ * nor an annotation instance can be written as a literal. So do the methods without
+ * @AkAPI, failing with the same AkInvokeException as the dynamic proxy.
+ * </p>
+ */
+public class AkApiProcessor extends AbstractProcessor {
+
+    public static final String IMPL_SUFFIX = "$$AkImpl";
+
+    private static final String AK_API = "org.akita.annotation.AkAPI";
+    private static final String AK_GET = "org.akita.annotation.AkGET";
+    private static final String AK_PARAM = "org.akita.annotation.AkParam";
+    private static final String AK_SIGNATURE = "org.akita.annotation.AkSignature";
+    private static final String AK_CACHE = "org.akita.annotation.AkCache";
+    private static final String AK_RETRY = "org.akita.annotation.AkRetry";
+    private static final String AK_BATCH = "org.akita.annotation.AkBatch";
+    private static final String AK_CALLBACK = "org.akita.proxy.AkCallback";
+
+    private static final String INVOKE_PLAN = "org.akita.proxy.InvokePlan";
+    private static final String INVOKE_HANDLER = "org.akita.proxy.ProxyInvocationHandler";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(AK_API);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement akApi = processingEnv.getElementUtils().getTypeElement(AK_API);
+        if (akApi == null) return false;
+
+        Set<TypeElement> apis = new LinkedHashSet<TypeElement>();
+        for (Element e : roundEnv.getElementsAnnotatedWith(akApi)) {
+            if (e.getKind() == ElementKind.METHOD
+                    && e.getEnclosingElement().getKind() == ElementKind.INTERFACE) {
+                apis.add((TypeElement) e.getEnclosingElement());
+            }
+        }
+        for (TypeElement api : apis) {
+            if (!api.getTypeParameters().isEmpty()) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                        "Generic api interface uses dynamic proxy: " + api.getQualifiedName(), api);
+                continue;
+            }
+            try {
+                generate(api);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Can not generate api impl: " + e.toString(), api);
+            }
+        }
+        return false;
+    }
+
+    private void generate(TypeElement api) throws IOException {
+        String pkg = processingEnv.getElementUtils().getPackageOf(api).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(api).toString();
+        String implName = binaryName.substring(pkg.length() == 0 ? 0 : pkg.length() + 1) + IMPL_SUFFIX;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated by ").append(getClass().getName()).append(". Do not modify!\n");
+        if (pkg.length() > 0) {
+            sb.append("package ").append(pkg).append(";\n\n");
+        }
+        sb.append("@SuppressWarnings(\"unchecked\")\n");
+        sb.append("public final class ").append(implName)
+                .append(" implements ").append(api.getQualifiedName()).append(" {\n");
+
+        int idx = 0;
+        for (ExecutableElement method : apiMethods(api)) {
+            appendMethod(sb, api, method, idx++);
+        }
+        sb.append("}\n");
+
+        JavaFileObject jfo = processingEnv.getFiler().createSourceFile(
+                pkg.length() == 0 ? implName : pkg + "." + implName, api);
+        Writer writer = jfo.openWriter();
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private List<ExecutableElement> apiMethods(TypeElement api) {
+        List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+        for (Element e : processingEnv.getElementUtils().getAllMembers(api)) {
+            if (e.getKind() == ElementKind.METHOD
+                    && e.getEnclosingElement().getKind() == ElementKind.INTERFACE
+                    && !e.getModifiers().contains(Modifier.STATIC)) {
+                methods.add((ExecutableElement) e);
+            }
+        }
+        return methods;
+    }
+
+    private void appendMethod(StringBuilder sb, TypeElement api, ExecutableElement method, int idx) {
+        String name = method.getSimpleName().toString();
+        TypeMirror returnType = method.getReturnType();
+        List<? extends VariableElement> params = method.getParameters();
+        String planField = "sPlan" + idx;
+
+        AnnotationMirror akApi = findAnnotation(method, AK_API);
+
+        // method declaration
+        sb.append("\n    private static volatile ").append(INVOKE_PLAN).append(" ")
+                .append(planField).append(";\n");
+        sb.append("\n    @Override\n    public ");
+        if (!method.getTypeParameters().isEmpty()) {
+            sb.append("<");
+            for (int i = 0; i < method.getTypeParameters().size(); i++) {
+                if (i > 0) sb.append(", ");
+                TypeParameterElement tp = method.getTypeParameters().get(i);
+                sb.append(tp.getSimpleName());
+                List<? extends TypeMirror> bounds = tp.getBounds();
+                if (!(bounds.size() == 1 && "java.lang.Object".equals(bounds.get(0).toString()))) {
+                    for (int j = 0; j < bounds.size(); j++) {
+                        sb.append(j == 0 ? " extends " : " & ").append(bounds.get(j).toString());
+                    }
+                }
+            }
+            sb.append("> ");
+        }
+        sb.append(returnType.toString()).append(" ").append(name).append("(");
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) sb.append(", ");
+            TypeMirror type = params.get(i).asType();
+            if (method.isVarArgs() && i == params.size() - 1) {
+                // T... as declared, T[] would warn on the override
+                sb.append(((ArrayType) type).getComponentType().toString()).append("...");
+            } else {
+                sb.append(type.toString());
+            }
+            sb.append(" arg").append(i);
+        }
+        sb.append(")");
+        List<? extends TypeMirror> thrown = method.getThrownTypes();
+        if (!thrown.isEmpty()) {
+            sb.append(" throws ");
+            for (int i = 0; i < thrown.size(); i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(thrown.get(i).toString());
+            }
+        }
+        sb.append(" {\n");
+
+        // the plan, built on the first invocation
+        sb.append("        try {\n");
+        sb.append("            ").append(INVOKE_PLAN).append(" plan = ").append(planField).append(";\n");
+        sb.append("            if (plan == null) {\n");
+        // without @AkAPI, InvokePlan.of throws the AkInvokeException of the dynamic proxy
+        boolean literalPlan = akApi != null
+                && findAnnotation(method, AK_SIGNATURE) == null
+                && findAnnotation(method, AK_CACHE) == null
+                && findAnnotation(method, AK_RETRY) == null
+                && findAnnotation(method, AK_BATCH) == null
+                && (returnType.getKind() != TypeKind.DECLARED
+                    || ((DeclaredType) returnType).getTypeArguments().isEmpty());
+        for (VariableElement param : params) {
+            if (AK_CALLBACK.equals(processingEnv.getTypeUtils().erasure(param.asType()).toString())) {
+                literalPlan = false;
+            }
+        }
+        if (literalPlan) {
+            sb.append("                plan = new ").append(INVOKE_PLAN).append("(")
+                    .append(literal(name)).append(", ")
+                    .append(findAnnotation(method, AK_GET) != null ?
+                            INVOKE_PLAN + ".VERB_GET" : INVOKE_PLAN + ".VERB_POST").append(", ")
+                    .append(literal(stringValue(akApi, "url", "noUrl"))).append(",\n");
+            StringBuilder names = new StringBuilder();
+            StringBuilder encodes = new StringBuilder();
+            for (int i = 0; i < params.size(); i++) {
+                if (i > 0) {
+                    names.append(", ");
+                    encodes.append(", ");
+                }
+                AnnotationMirror akParam = findAnnotation(params.get(i), AK_PARAM);
+                names.append(akParam == null ? "null" : literal(stringValue(akParam, "value", null)));
+                encodes.append(akParam == null ? "null" : literal(stringValue(akParam, "encode", "none")));
+            }
+            sb.append("                        new String[]{").append(names).append("},\n");
+            sb.append("                        new String[]{").append(encodes).append("},\n");
+            sb.append("                        null, ").append(classLiteral(returnType)).append(");\n");
+        } else {
+            sb.append("                plan = ").append(INVOKE_PLAN).append(".of(")
+                    .append(api.getQualifiedName()).append(".class.getMethod(").append(literal(name));
+            for (VariableElement param : params) {
+                sb.append(", ").append(classLiteral(param.asType()));
+            }
+            sb.append("));\n");
+        }
+        sb.append("                ").append(planField).append(" = plan;\n");
+        sb.append("            }\n");
+
+        // the invocation
+        sb.append("            ");
+        if (returnType.getKind() != TypeKind.VOID) {
+            sb.append("return (").append(boxed(returnType)).append(") ");
+        }
+        sb.append(INVOKE_HANDLER).append(".invoke(plan, new Object[]{");
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append("arg").append(i);
+        }
+        sb.append("});\n");
+
+        // same exception semantic with the dynamic proxy
+        sb.append("        } catch (RuntimeException e) {\n");
+        sb.append("            throw e;\n");
+        sb.append("        } catch (Exception e) {\n");
+        for (TypeMirror t : thrown) {
+            String erased = processingEnv.getTypeUtils().erasure(t).toString();
+            sb.append("            if (e instanceof ").append(erased).append(") throw (")
+                    .append(erased).append(") e;\n");
+        }
+        sb.append("            throw new java.lang.reflect.UndeclaredThrowableException(e);\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    private AnnotationMirror findAnnotation(Element element, String annotationName) {
+        for (AnnotationMirror am : element.getAnnotationMirrors()) {
+            TypeElement te = (TypeElement) am.getAnnotationType().asElement();
+            if (te.getQualifiedName().contentEquals(annotationName)) {
+                return am;
+            }
+        }
+        return null;
+    }
+
+    private String stringValue(AnnotationMirror am, String key, String defaultValue) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : am.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(key)) {
+                return String.valueOf(entry.getValue().getValue());
+            }
+        }
+        return defaultValue;
+    }
+
+    private String classLiteral(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString() + ".class";
+    }
+
+    private String boxed(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass(
+                    processingEnv.getTypeUtils().getPrimitiveType(type.getKind())).getQualifiedName().toString();
+        }
+        return type.toString();
+    }
+
+    private static String literal(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+}
@@ -14,7 +14,13 @@
 
 package org.akita;
 
+import org.akita.annotation.AkAPI;
+import org.akita.io.HttpInvoker;
 import org.akita.proxy.ProxyFactory;
+import org.akita.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 
 /**
  * Created with IntelliJ IDEA.
@@ -23,12 +29,62 @@ import org.akita.proxy.ProxyFactory;
  * Time: 下午4:44
  */
 public class Akita {
+    private static final String TAG = "Akita";
     public static final String XMLNS = "http://schemas.akita.org/apk/res/android";
     public static final String UTF_8 = "UTF-8";
+    /**
+     * suffix of the api impl class generated by org.akita.compiler.AkApiProcessor
+     */
+    public static final String API_IMPL_SUFFIX = "$$AkImpl";
 
-
+    /**
+     * Create the api instance, using the class generated at compile time if present,
+     * otherwise the dynamic proxy.
+     * @param clazz api interface
+     * @param <T>
+     * @return api instance
+     */
     public static <T> T createAPI(Class<T> clazz) {
+        T api = newGeneratedAPI(clazz);
+        if (api != null) {
+            return api;
+        }
         return ProxyFactory.getProxy(clazz);
     }
 
+    /**
+     * Open keep-alive connections to the hosts of the @AkAPI urls of the apis in background,
+     * see HttpInvoker.warmUp. The urls with '{}' in host are skipped.
+     * @param apis api interfaces
+     */
+    public static void warmUp(Class<?>... apis) {
+        ArrayList<String> urls = new ArrayList<String>();
+        for (Class<?> api : apis) {
+            for (Method method : api.getMethods()) {
+                AkAPI akAPI = method.getAnnotation(AkAPI.class);
+                if (akAPI == null) continue;
+                String url = akAPI.url();
+                int hostEnd = url.indexOf('/', url.indexOf("://") + 3);
+                String origin = hostEnd < 0 ? url : url.substring(0, hostEnd);
+                if (origin.indexOf("://") > 0 && origin.indexOf('{') < 0) {
+                    urls.add(origin);
+                }
+            }
+        }
+        HttpInvoker.warmUp(urls.toArray(new String[urls.size()]));
+    }
+
+    private static <T> T newGeneratedAPI(Class<T> clazz) {
+        try {
+            Class<?> implClazz = Class.forName(
+                    clazz.getName() + API_IMPL_SUFFIX, true, clazz.getClassLoader());
+            return clazz.cast(implClazz.newInstance());
+        } catch (ClassNotFoundException e) {
+            return null; // not generated, no op
+        } catch (Exception e) {
+            Log.w(TAG, "Can not instantiate generated api of " + clazz.getName(), e);
+            return null;
+        }
+    }
+
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Define that the invocations of the api are combined with the other @AkBatch invocations
+ * of the same batch url into one http request, when made within the window or grouped
+ * by ApiBatcher.begin/end. The batched response is split back to each invocation.
+ * Apis posting files are never batched.
+ * The batched invocations are neither cached nor retried, so it can not be combined
+ * with @AkCache or @AkRetry.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD})
+public @interface AkBatch {
+    /**
+     * Url of the batch endpoint
+     * @return
+     */
+    public String url();
+
+    /**
+     * Codec of the batch request and response, implements org.akita.proxy.BatchCodec
+     * @return
+     */
+    public Class<?> using() default org.akita.proxy.JsonBatchCodec.class;
+
+    /**
+     * Millis to wait for more invocations after the first one, 0 to batch only the grouped ones
+     * @return
+     */
+    public int window() default 20;
+
+    /**
+     * Max invocations in one batch, the batch is sent at once when full
+     * @return
+     */
+    public int maxSize() default 20;
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Define that the response of the @AkGET api is cached, keyed on the built url.
+ * Cache-Control/Expires of the response decide its freshness, stale responses
+ * are revalidated using ETag/Last-Modified.
+ * Takes effect only after org.akita.io.HttpResponseCache installed.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD})
+public @interface AkCache {
+    /**
+     * Seconds the response is fresh if the server gives no Cache-Control max-age or Expires,
+     * 0 means always revalidate
+     * @return
+     */
+    public int maxAge() default 0;
+}
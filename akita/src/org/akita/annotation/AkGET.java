@@ -20,6 +20,8 @@ import java.lang.annotation.Target;
 
 /**
  * Define that using GET Http/Https to invoke 
+ * Concurrent identical GETs share one request and the same decoded result instance,
+ * treat it as immutable, see ProxyInvocationHandler.setCoalesceGets.
  * @author zhe.yangz 2011-12-29 下午06:45:16
  */
 @Retention(RetentionPolicy.RUNTIME)   
@@ -0,0 +1,45 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Define the retry policy of the api, with exponential backoff and jitter.
+ * GET apis retry twice by default, POST apis never retry unless declared.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD})
+public @interface AkRetry {
+    /**
+     * Max retries after the first try, 0 to disable retry
+     * @return
+     */
+    public int maxRetries() default 2;
+
+    /**
+     * Millis of the backoff before the first retry, doubled on each retry
+     * @return
+     */
+    public long baseDelay() default 500;
+
+    /**
+     * Max millis of the backoff
+     * @return
+     */
+    public long maxDelay() default 8000;
+}
@@ -19,20 +19,33 @@ package org.akita.cache;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.text.TextUtils;
+import org.akita.io.HttpInvoker;
+import org.akita.util.ImageUtil;
 import org.akita.util.Log;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.util.HashMap;
 
 /**
  * Client Cache Universal Solution
  * @author zhe.yangz 2012-3-30 下午03:23:31
  */
 public class AkCacheManager {
+    /**
+     * default budget of the bitmap mem cache, fraction of Runtime.maxMemory()
+     */
+    private static final float BITMAP_MEM_FRACTION = 0.125f;
+    private static MemCacheLruBitmapImpl<String, Bitmap> sBitmapMemCache;
+    private static FilesCache<Bitmap> sImageFilesCache;
+    private static FilesCache<Bitmap> sResImageFilesCache;
+    /**
+     * db/table/reserveTime -> the SimpleCache, each keeps its db open
+     */
+    private static final HashMap<String, SimpleCache> sSimpleCaches = new HashMap<String, SimpleCache>();
 
     public static <K, V> MemCache<K, V> newMemLruCache(int maxSize) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
@@ -46,31 +59,76 @@ public class AkCacheManager {
         return new MemCacheSoftRefImpl<K, V>();
     }
 
+    /**
+     * LRU cache of bitmaps bounded by their bytes
+     * @param memoryFraction budget as fraction of Runtime.maxMemory(), (0, 1)
+     * @return the cache
+     */
+    public static <K> MemCacheLruBitmapImpl<K, Bitmap> newBitmapMemCache(float memoryFraction) {
+        if (memoryFraction <= 0 || memoryFraction >= 1) {
+            throw new IllegalArgumentException("memoryFraction must be in (0, 1)");
+        }
+        return new MemCacheLruBitmapImpl<K, Bitmap>(
+                (long) (Runtime.getRuntime().maxMemory() * memoryFraction));
+    }
+
+    /**
+     * The bitmap mem cache shared by the image FilesCaches, so by RemoteImageLoader
+     * and ResImageLoader, keyed by image url. Its budget is 1/8 of Runtime.maxMemory().
+     * The bitmaps removed are recycled to BitmapPool only once opted in by
+     * getBitmapMemCache().setBitmapPool(BitmapPool.getDefault()), see setBitmapPool.
+     * @return the cache
+     */
+    public static synchronized MemCacheLruBitmapImpl<String, Bitmap> getBitmapMemCache() {
+        if (sBitmapMemCache == null) {
+            sBitmapMemCache = newBitmapMemCache(BITMAP_MEM_FRACTION);
+        }
+        return sBitmapMemCache;
+    }
+
+    /**
+     * The SimpleCache of the table in the db, one instance per process, which keeps
+     * its connection open. No need to close it, close only releases the connection
+     * until the next use.
+     */
+    private static synchronized SimpleCache getSqliteCache(Context context, String dbName,
+                                                          String tbName, long reserveTime) {
+        String key = dbName + "/" + tbName + "/" + reserveTime;
+        SimpleCache cache = sSimpleCaches.get(key);
+        if (cache == null) {
+            cache = new SimpleCacheSqliteImpl(context.getApplicationContext(),
+                    dbName, tbName, 1, reserveTime);
+            sSimpleCaches.put(key, cache);
+        }
+        return cache;
+    }
+
     /**
      * default reserve data 24 hours (-1)
+     * 同一进程共用一个实例，不需要close
      * @param context
      * @return
      */
     public static SimpleCache getSimpleCache(Context context) {
-        return new SimpleCacheSqliteImpl(context, "simplecache.db", "defaulttable", 1, -1);
+        return getSqliteCache(context, "simplecache.db", "defaulttable", -1);
     }
 
     public static SimpleCache getSimpleCache(Context context, String tagName) {
-        return new SimpleCacheSqliteImpl(context, "simplecache.db", tagName, 1, -1);
+        return getSqliteCache(context, "simplecache.db", tagName, -1);
     }
 
     public static SimpleCache getSimpleCache(Context context, String tagName, int reserveTimeHours) {
-        return new SimpleCacheSqliteImpl(
-                context, "simplecache.db", tagName, 1, reserveTimeHours * 3600 * 1000);
+        return getSqliteCache(context, "simplecache.db", tagName, reserveTimeHours * 3600 * 1000);
     }
 
     /**
      * reserve data 365 days（0）
+     * 同一进程共用一个实例，不需要close
      * @param context
      * @return
      */
     public static SimpleCache getAppData(Context context) {
-        return new SimpleCacheSqliteImpl(context, "appdata.db", "defaulttable", 1, 0);
+        return getSqliteCache(context, "appdata.db", "defaulttable", 0);
     }
 
     /**
@@ -80,21 +138,32 @@ public class AkCacheManager {
      * @return
      */
     public static SimpleCache getAppData(Context context, String tagName) {
-        return new SimpleCacheSqliteImpl(context, "appdata.db", tagName, 1, 0);
+        return getSqliteCache(context, "appdata.db", tagName, 0);
     }
 
     /**
-     * 此FileCache会把所有Bitmap都转成70%的JPEG存储
+     * 此FileCache通过edit存储下载的原始图片字节，不再重新编码；
+     * 仅当无法edit而回退到put时，才把Bitmap转成75%的JPEG存储
+     * 同一进程共用一个实例，其journal与文件由它独占
      * @param context
      * @return
      */
-    public static FilesCache<Bitmap> getImageFilesCache(Context context) {
-        return new FilesCacheSDFoldersImpl<Bitmap>(context, "image0") {
+    public static synchronized FilesCache<Bitmap> getImageFilesCache(Context context) {
+        if (sImageFilesCache == null) {
+            sImageFilesCache = newImageFilesCache(context.getApplicationContext());
+        }
+        return sImageFilesCache;
+    }
+
+    private static FilesCache<Bitmap> newImageFilesCache(Context context) {
+        return new FilesCacheDiskLruImpl<Bitmap>(context, "image0", getBitmapMemCache()) {
 
             @Override
             protected Bitmap xform(String fileAbsoPath) {
                 try {
-                    return BitmapFactory.decodeFile(fileAbsoPath);
+                    // the raw bytes downloaded, decoded down as HttpInvoker does
+                    return ImageUtil.decodeSampledBitmapFromFile(fileAbsoPath,
+                            HttpInvoker.IMAGE_DECODE_SIZE, HttpInvoker.IMAGE_DECODE_SIZE);
                 }
                 catch (OutOfMemoryError ooe) {
                     Log.e(TAG, ooe.toString(), ooe);
@@ -127,17 +196,28 @@ public class AkCacheManager {
     }
 
     /**
-     * 此FileCache会使用此Bitmap原来的格式存储，PNG、WebP或JPEG
+     * 此FileCache通过edit存储下载的原始图片字节，不再重新编码；
+     * 仅当无法edit而回退到put时，才按url后缀把Bitmap编码为PNG、WebP或JPEG存储
+     * 同一进程共用一个实例，其journal与文件由它独占
      * @param context
      * @return
      */
-    public static FilesCache<Bitmap> getResImageFilesCache(Context context) {
-        return new FilesCacheSDFoldersImpl<Bitmap>(context, "image_res") {
+    public static synchronized FilesCache<Bitmap> getResImageFilesCache(Context context) {
+        if (sResImageFilesCache == null) {
+            sResImageFilesCache = newResImageFilesCache(context.getApplicationContext());
+        }
+        return sResImageFilesCache;
+    }
+
+    private static FilesCache<Bitmap> newResImageFilesCache(Context context) {
+        return new FilesCacheDiskLruImpl<Bitmap>(context, "image_res", getBitmapMemCache()) {
 
             @Override
             protected Bitmap xform(String fileAbsoPath) {
                 try {
-                    return BitmapFactory.decodeFile(fileAbsoPath);
+                    // the raw bytes downloaded, decoded down as HttpInvoker does
+                    return ImageUtil.decodeSampledBitmapFromFile(fileAbsoPath,
+                            HttpInvoker.IMAGE_DECODE_SIZE, HttpInvoker.IMAGE_DECODE_SIZE);
                 }
                 catch (OutOfMemoryError ooe) {
                     Log.e(TAG, ooe.toString(), ooe);
@@ -0,0 +1,240 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+import android.widget.ImageView;
+import org.akita.util.ImageUtil;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of the mutable bitmaps no longer used, reused by the decoders as
+ * BitmapFactory.Options.inBitmap and by the transforms of ImageUtil,
+ * instead of allocating a new bitmap each time. Bounded by bytes, the oldest are dropped.
+ * <p>
+ * The bitmaps shown by setImageBitmap are counted, recycle of a shown bitmap
+ * is deferred until no view shows it. Do not use a bitmap after recycle, only recycle
+ * the bitmaps nobody else holds. A view set by other means still counts the
+ * bitmap last set here, erring on not pooling it.
+ * The pool is a no-op before HONEYCOMB, which has no inBitmap.
+ * </p>
+ */
+public class BitmapPool {
+
+    private static final BitmapPool sDefault =
+            new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+
+    private final long mMaxBytes;
+    private long mBytes;
+    /**
+     * oldest first
+     */
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+    /**
+     * bitmap -> count of the views showing it
+     */
+    private final WeakHashMap<Bitmap, int[]> mShownCounts = new WeakHashMap<Bitmap, int[]>();
+    /**
+     * view -> the bitmap counted as shown by it
+     */
+    private final WeakHashMap<ImageView, Bitmap> mShownBy = new WeakHashMap<ImageView, Bitmap>();
+    /**
+     * the shown bitmaps recycled, pooled when no view shows them
+     */
+    private final WeakHashMap<Bitmap, Boolean> mPendingRecycles = new WeakHashMap<Bitmap, Boolean>();
+
+    /**
+     * @param maxBytes max bytes of the bitmaps pooled
+     */
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the pool of the image pipeline, 1/16 of Runtime.maxMemory()
+     */
+    public static BitmapPool getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * @return whether the bitmaps can be reused, HONEYCOMB or later
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Show the bitmap in the view, counting it as shown until the view shows another one.
+     * @param imageView the view
+     * @param bitmap the bitmap, null to clear
+     */
+    public static void setImageBitmap(ImageView imageView, Bitmap bitmap) {
+        imageView.setImageBitmap(bitmap);
+        sDefault.onShown(imageView, bitmap);
+    }
+
+    /**
+     * Show the resource in the view, the bitmap it showed is no longer counted.
+     * @param imageView the view
+     * @param resId the drawable resource
+     */
+    public static void setImageResource(ImageView imageView, int resId) {
+        imageView.setImageResource(resId);
+        sDefault.onShown(imageView, null);
+    }
+
+    /**
+     * The bitmap is no longer needed by its owner, such as evicted from the mem cache,
+     * pool it now or when no view shows it.
+     * @param bitmap the bitmap
+     */
+    public synchronized void recycle(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        int[] count = mShownCounts.get(bitmap);
+        if (count != null && count[0] > 0) {
+            mPendingRecycles.put(bitmap, Boolean.TRUE);
+            return;
+        }
+        put(bitmap);
+    }
+
+    /**
+     * Take a bitmap to draw on, erased to transparent
+     * @return the pooled bitmap, or a new one
+     */
+    public Bitmap createBitmap(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        if (bitmap != null) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Set inMutable and a pooled inBitmap to the options, whose outWidth, outHeight
+     * and inSampleSize are set by a bounds decode. If the decode throws IllegalArgumentException,
+     * the inBitmap can not be reused for the image, decode again without it.
+     * @param options options of the decode
+     */
+    public void prepareDecode(BitmapFactory.Options options) {
+        if (!isSupported()) return;
+        options.inMutable = true;
+        int sampleSize = Math.max(options.inSampleSize, 1);
+        // before KITKAT the inBitmap must be the same size as the decoded image
+        if (sampleSize > 1 && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+        if (options.outWidth <= 0 || options.outHeight <= 0) return;
+        Bitmap.Config config = options.inPreferredConfig != null ?
+                options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        options.inBitmap = get((options.outWidth + sampleSize - 1) / sampleSize,
+                (options.outHeight + sampleSize - 1) / sampleSize, config);
+    }
+
+    /**
+     * Take a pooled bitmap of the size and config, its pixels are dirty
+     * @return the bitmap, null if none fits
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!isSupported()) return null;
+        boolean kitkat = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        long bytes = (long) width * height * bytesPerPixel(config);
+        for (Iterator<Bitmap> it = mBitmaps.iterator(); it.hasNext(); ) {
+            Bitmap bitmap = it.next();
+            boolean fits = kitkat ? bitmap.getAllocationByteCount() >= bytes
+                    : bitmap.getWidth() == width && bitmap.getHeight() == height
+                            && bitmap.getConfig() == config;
+            if (fits) {
+                it.remove();
+                mBytes -= ImageUtil.getByteCount(bitmap);
+                if (kitkat && (bitmap.getWidth() != width || bitmap.getHeight() != height
+                        || bitmap.getConfig() != config)) {
+                    bitmap.reconfigure(width, height, config);
+                }
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop the oldest bitmaps until the bytes pooled are at most maxBytes,
+     * such as in ComponentCallbacks2.onTrimMemory
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        while (mBytes > maxBytes && !mBitmaps.isEmpty()) {
+            mBytes -= ImageUtil.getByteCount(mBitmaps.removeFirst());
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    private synchronized void onShown(ImageView imageView, Bitmap bitmap) {
+        Bitmap previous = bitmap != null ?
+                mShownBy.put(imageView, bitmap) : mShownBy.remove(imageView);
+        if (previous == bitmap) return; // still shown
+        if (bitmap != null) {
+            onShown(bitmap);
+        }
+        if (previous != null) {
+            onHidden(previous);
+        }
+    }
+
+    private void onShown(Bitmap bitmap) {
+        int[] count = mShownCounts.get(bitmap);
+        if (count == null) {
+            count = new int[1];
+            mShownCounts.put(bitmap, count);
+        }
+        count[0]++;
+    }
+
+    private void onHidden(Bitmap bitmap) {
+        int[] count = mShownCounts.get(bitmap);
+        if (count == null) return;
+        if (--count[0] <= 0) {
+            mShownCounts.remove(bitmap);
+            if (mPendingRecycles.remove(bitmap) != null) {
+                put(bitmap);
+            }
+        }
+    }
+
+    private void put(Bitmap bitmap) {
+        if (!isSupported() || !bitmap.isMutable() || bitmap.isRecycled()) return;
+        int bytes = ImageUtil.getByteCount(bitmap);
+        if (bytes > mMaxBytes || mBitmaps.contains(bitmap)) return;
+        mBitmaps.addLast(bitmap);
+        mBytes += bytes;
+        trimToSize(mMaxBytes);
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.cache;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.os.Environment;
+import org.akita.util.FileUtil;
+import org.akita.util.HashUtil;
+import org.akita.util.ImageUtil;
+import org.akita.util.Log;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FilesCache on SD card bounded by bytes, evicting the least recently used entries.
+ * <p>
+ * The size and access order of the entries are kept in memory and in an append-only
+ * journal in the cache dir, so no dir is scanned but once to adopt the files of
+ * FilesCacheSDFoldersImpl with the same cacheTag. The journal is read on first use, not
+ * on construction, and the READ lines are buffered until the next write, trim or compaction.
+ * The files are written to a temp file then renamed, and evicted on a background thread.
+ * Use one instance per cacheTag.
+ * put does not load the replaced value, it returns null.
+ * The raw bytes can be written by edit, such as the downloaded images.
+ * </p>
+ */
+public abstract class FilesCacheDiskLruImpl<V> implements RawFilesCache<V> {
+    protected static final String TAG = "FilesCacheDiskLruImpl";
+
+    private static final String CACHE_SIZE_KEY = "cacheSizeInMB";
+    private static final String PREF_PREFIX = "filescachesd_";
+    private static final int DEFAULT_CACHE_SIZE_MB = 150;
+    /**
+     * 小于该值的图片会缓存在Mem中
+     */
+    private static final int MEM_BITMAP_BYTE = 8000000;
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String MAGIC = "akita.DiskLruCache";
+    private static final String VERSION = "1";
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    /**
+     * the journal is compacted when its redundant lines are more than it and the entries
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    /**
+     * the temp files modified this long before the journal is opened are left over, deleted
+     */
+    private static final long STALE_TMP_MILLIS = 10 * 1000;
+
+    /**
+     * the evictions and journal compactions of all the caches, one at a time
+     */
+    private static final ExecutorService sBackground = new ThreadPoolExecutor(
+            0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "akita-disk-cache");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    protected String mCacheTag;
+    protected Context mContext;
+    protected int mCacheSizeInMB;
+    private final MemCache<String, V> mMemCache;
+    private final File mDir;
+
+    /**
+     * hashed key -> bytes of the file, in access order
+     */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private long mSize;
+    private Writer mJournalWriter;
+    private int mRedundantOps;
+    private boolean mTrimScheduled;
+    private boolean mOpened;
+    private long mOpenedAt;
+
+    /**
+     * the values are also kept in a soft reference MemCache
+     */
+    protected FilesCacheDiskLruImpl(Context context, String cacheTag) {
+        this(context, cacheTag, new MemCacheSoftRefImpl<String, V>());
+    }
+
+    /**
+     * @param memCache the mem tier in front of the files, such as AkCacheManager.getBitmapMemCache()
+     */
+    protected FilesCacheDiskLruImpl(Context context, String cacheTag, MemCache<String, V> memCache) {
+        mContext = context;
+        mCacheTag = cacheTag;
+        mMemCache = memCache;
+        mDir = new File(Environment.getExternalStorageDirectory().getAbsolutePath()
+                + "/Android/data/" + context.getPackageName() + "/cache/" + cacheTag + "/");
+
+        SharedPreferences sp = context.getSharedPreferences(PREF_PREFIX + cacheTag, 0);
+        mCacheSizeInMB = sp.getInt(CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE_MB);
+    }
+
+    protected abstract V xform(String fileAbsoPathAndName);
+
+    /**
+     * write v to the file fileName in dir fileAbsoPath, the dir may not exist
+     */
+    protected abstract void output(String fileAbsoPath, String fileName, V v, String key);
+
+    @Override
+    public V get(String key) {
+        V v = mMemCache.get(key);
+        if (v != null) {
+            return v;
+        }
+
+        String hashedKey = mapRule(key);
+        Long bytes;
+        synchronized (this) {
+            ensureOpen();
+            bytes = mEntries.get(hashedKey);
+            if (bytes == null) {
+                return null;
+            }
+            appendJournal(READ, hashedKey, -1);
+            mRedundantOps++;
+            scheduleTrimIfNeeded();
+        }
+        v = xform(getFile(hashedKey).getAbsolutePath());
+        if (v == null) {
+            // lost or broken, unless put again meanwhile
+            synchronized (this) {
+                if (bytes.equals(mEntries.get(hashedKey))) {
+                    removeEntry(hashedKey);
+                }
+            }
+            return null;
+        }
+        putMem(key, v);
+        return v;
+    }
+
+    @Override
+    public V put(String key, V value) {
+        if (value == null || !isMounted()) {
+            return null;
+        }
+        ensureOpen();
+        String hashedKey = mapRule(key);
+        File file = getFile(hashedKey);
+        File tmp = getTempFile(file);
+        output(file.getParent(), tmp.getName(), value, key);
+        if (commitFile(hashedKey, file, tmp)) {
+            putMem(key, value);
+        }
+        return null;
+    }
+
+    @Override
+    public Editor edit(final String key) throws IOException {
+        if (!isMounted()) {
+            throw new IOException("SD card is not mounted");
+        }
+        ensureOpen();
+        final String hashedKey = mapRule(key);
+        final File file = getFile(hashedKey);
+        final File tmp = getTempFile(file);
+        file.getParentFile().mkdirs();
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+        return new Editor() {
+            public OutputStream getOutputStream() {
+                return out;
+            }
+
+            public boolean commit() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    tmp.delete();
+                    return false;
+                }
+                mMemCache.remove(key);
+                return commitFile(hashedKey, file, tmp);
+            }
+
+            public void abort() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    /* no op */
+                }
+                tmp.delete();
+            }
+        };
+    }
+
+    @Override
+    public V remove(String key) {
+        mMemCache.remove(key);
+        String hashedKey = mapRule(key);
+        synchronized (this) {
+            ensureOpen();
+            if (mEntries.get(hashedKey) == null) {
+                return null;
+            }
+        }
+        V oldV = xform(getFile(hashedKey).getAbsolutePath());
+        synchronized (this) {
+            removeEntry(hashedKey);
+        }
+        return oldV;
+    }
+
+    /**
+     * Evict the least recently used entries on a background thread,
+     * until the size is within the cache size.
+     */
+    @Override
+    public synchronized void evict() {
+        ensureOpen();
+        scheduleTrimIfNeeded();
+    }
+
+    @Override
+    public void clearCache() {
+        mMemCache.clear();
+        synchronized (this) {
+            closeJournal();
+            mEntries.clear();
+            mSize = 0;
+            mRedundantOps = 0;
+            try {
+                FileUtil.deleteFileOrDir(mDir);
+            } catch (Exception e) {
+                Log.w(TAG, "Can not clear " + mDir, e);
+            }
+            // a new journal on next use
+            mOpened = false;
+        }
+    }
+
+    @Override
+    public synchronized double getCacheCurrentSizeMB() {
+        ensureOpen();
+        return mSize / 1024.0 / 1024.0;
+    }
+
+    @Override
+    public void setCacheSize(int cacheSizeInMB) {
+        mCacheSizeInMB = cacheSizeInMB;
+        SharedPreferences sp = mContext.getSharedPreferences(PREF_PREFIX + mCacheTag, 0);
+        if (mCacheSizeInMB != sp.getInt(CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE_MB)) {
+            sp.edit().putInt(CACHE_SIZE_KEY, mCacheSizeInMB).apply();
+        }
+        evict();
+    }
+
+    private String mapRule(String key) {
+        // because the chinese char in url will break the md5.
+        return HashUtil.md5(URLEncoder.encode(key));
+    }
+
+    /**
+     * the same layout as FilesCacheSDFoldersImpl, 20 bucket dirs
+     */
+    private File getFile(String hashedKey) {
+        return new File(mDir, (Math.abs(hashedKey.hashCode()) % 20 + 10) + "/" + hashedKey + ".cache");
+    }
+
+    private static File getTempFile(File file) {
+        return new File(file.getParentFile(),
+                file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+    }
+
+    /**
+     * rename the written tmp to file and record the entry
+     * @return false if tmp is not written
+     */
+    private synchronized boolean commitFile(String hashedKey, File file, File tmp) {
+        ensureOpen();
+        if (!tmp.exists() || !tmp.renameTo(file)) {
+            tmp.delete();
+            return false;
+        }
+        long bytes = file.length();
+        Long old = mEntries.put(hashedKey, bytes);
+        if (old != null) {
+            mSize -= old;
+            mRedundantOps++;
+        }
+        mSize += bytes;
+        appendJournal(PUT, hashedKey, bytes);
+        scheduleTrimIfNeeded();
+        return true;
+    }
+
+    private static boolean isMounted() {
+        return Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState());
+    }
+
+    private void putMem(String key, V v) {
+        if (v instanceof Bitmap && ImageUtil.getByteCount((Bitmap) v) >= MEM_BITMAP_BYTE) {
+            return;
+        }
+        mMemCache.put(key, v);
+    }
+
+    /**
+     * remove the entry and its file, with the lock held so no put of the key interleaves
+     */
+    private void removeEntry(String hashedKey) {
+        Long bytes = mEntries.remove(hashedKey);
+        if (bytes == null) return;
+        mSize -= bytes;
+        mRedundantOps++;
+        appendJournal(REMOVE, hashedKey, -1);
+        getFile(hashedKey).delete();
+    }
+
+    private void scheduleTrimIfNeeded() {
+        boolean overSize = mSize > mCacheSizeInMB * 1024L * 1024L;
+        boolean journalRedundant = mRedundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOps >= mEntries.size();
+        if (mTrimScheduled || !(overSize || journalRedundant)) return;
+        mTrimScheduled = true;
+        sBackground.execute(new Runnable() {
+            public void run() {
+                trimToSize();
+            }
+        });
+    }
+
+    private void trimToSize() {
+        long maxSize = mCacheSizeInMB * 1024L * 1024L;
+        while (true) {
+            synchronized (this) {
+                if (mSize <= maxSize || mEntries.isEmpty()) break;
+                removeEntry(mEntries.keySet().iterator().next());
+            }
+        }
+        synchronized (this) {
+            mTrimScheduled = false;
+            if (mRedundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOps >= mEntries.size()) {
+                rebuildJournal();
+            } else {
+                flushJournal();
+            }
+        }
+    }
+
+    /**
+     * open the journal on first use, once the SD card is mounted
+     */
+    private synchronized void ensureOpen() {
+        if (mOpened || !isMounted()) return;
+        mOpened = true;
+        mOpenedAt = System.currentTimeMillis();
+        openJournal();
+    }
+
+    /**
+     * read the journal, or adopt the files in background if none
+     */
+    private void openJournal() {
+        File journal = new File(mDir, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+                mJournalWriter = new BufferedWriter(new FileWriter(journal, true));
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "Broken journal of " + mCacheTag + ", rebuild it", e);
+                mEntries.clear();
+                mSize = 0;
+            }
+        }
+        mDir.mkdirs();
+        rebuildJournal();
+        sBackground.execute(new Runnable() {
+            public void run() {
+                adoptFiles();
+            }
+        });
+    }
+
+    private void readJournal(File journal) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(journal));
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                throw new IOException("Unknown journal header");
+            }
+            int lines = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] parts = line.split(" ");
+                if (parts.length < 2) continue; // the last line may be torn
+                String hashedKey = parts[1];
+                if (PUT.equals(parts[0]) && parts.length == 3) {
+                    long bytes;
+                    try {
+                        bytes = Long.parseLong(parts[2]);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    Long old = mEntries.put(hashedKey, bytes);
+                    if (old != null) mSize -= old;
+                    mSize += bytes;
+                } else if (READ.equals(parts[0])) {
+                    mEntries.get(hashedKey);
+                } else if (REMOVE.equals(parts[0])) {
+                    Long old = mEntries.remove(hashedKey);
+                    if (old != null) mSize -= old;
+                }
+            }
+            mRedundantOps = lines - mEntries.size();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * write the entries as a new journal, replacing the old one
+     */
+    private void rebuildJournal() {
+        closeJournal();
+        File tmp = new File(mDir, JOURNAL_FILE_TMP);
+        try {
+            Writer writer = new BufferedWriter(new FileWriter(tmp));
+            try {
+                writer.write(MAGIC + "\n" + VERSION + "\n");
+                for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                    writer.write(PUT + " " + entry.getKey() + " " + entry.getValue() + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            File journal = new File(mDir, JOURNAL_FILE);
+            if (!tmp.renameTo(journal)) {
+                throw new IOException("Can not rename " + tmp);
+            }
+            mJournalWriter = new BufferedWriter(new FileWriter(journal, true));
+            mRedundantOps = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Can not write journal of " + mCacheTag, e);
+        }
+    }
+
+    private void appendJournal(String op, String hashedKey, long bytes) {
+        if (mJournalWriter == null) return;
+        try {
+            mJournalWriter.write(bytes >= 0 ? op + " " + hashedKey + " " + bytes + "\n"
+                    : op + " " + hashedKey + "\n");
+            if (!READ.equals(op)) {
+                // a lost READ only reorders, a lost PUT or REMOVE miscounts
+                mJournalWriter.flush();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can not append journal of " + mCacheTag, e);
+            closeJournal();
+        }
+    }
+
+    private void flushJournal() {
+        if (mJournalWriter == null) return;
+        try {
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Can not append journal of " + mCacheTag, e);
+            closeJournal();
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournalWriter == null) return;
+        try {
+            mJournalWriter.close();
+        } catch (IOException e) {
+            /* no op */
+        }
+        mJournalWriter = null;
+    }
+
+    /**
+     * add the files not in journal, the oldest modified as least recently used.
+     * The temp files of the puts in progress are kept.
+     */
+    private void adoptFiles() {
+        long staleBefore;
+        synchronized (this) {
+            staleBefore = mOpenedAt - STALE_TMP_MILLIS;
+        }
+        ArrayList<File> files = new ArrayList<File>();
+        File[] dirs = mDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                File[] children = dir.isDirectory() ? dir.listFiles() : null;
+                if (children == null) continue;
+                for (File file : children) {
+                    if (file.getName().endsWith(".cache")) {
+                        files.add(file);
+                    } else if (file.getName().endsWith(".tmp") && file.lastModified() < staleBefore) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        synchronized (this) {
+            // the adopted are less recently used than the entries put meanwhile
+            LinkedHashMap<String, Long> merged = new LinkedHashMap<String, Long>();
+            for (File file : files) {
+                String name = file.getName();
+                String hashedKey = name.substring(0, name.length() - ".cache".length());
+                if (mEntries.containsKey(hashedKey)) continue;
+                merged.put(hashedKey, file.length());
+                mSize += file.length();
+            }
+            merged.putAll(mEntries);
+            mEntries.clear();
+            mEntries.putAll(merged);
+            rebuildJournal();
+        }
+        trimToSize();
+    }
+}
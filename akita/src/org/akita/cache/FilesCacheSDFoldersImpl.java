@@ -16,10 +16,10 @@ package org.akita.cache;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.os.Build;
 import android.os.Environment;
 import org.akita.util.FileUtil;
 import org.akita.util.HashUtil;
+import org.akita.util.ImageUtil;
 import org.akita.util.Log;
 
 import java.io.File;
@@ -44,22 +44,29 @@ public abstract class FilesCacheSDFoldersImpl<V> implements FilesCache<V> {
      */
     private static final int DEFAULT_CACHE_SIZE_MB = 150;
     /**
-     * 小于该值的图片会缓存在软引用Mem中
+     * 小于该值的图片会缓存在Mem中
      */
     private static final int MEM_BITMAP_BYTE = 8000000;
 
     protected String mCacheTag;
-    private MemCache<String, V> mSoftBitmapCache;
+    private MemCache<String, V> mMemCache;
     protected Context mContext;
     protected int mCacheSizeInMB;
 
     /**
-     * 
+     * the values are also kept in a soft reference MemCache
      */
     protected FilesCacheSDFoldersImpl(Context context, String cacheTag){
+        this(context, cacheTag, new MemCacheSoftRefImpl<String, V>());
+    }
+
+    /**
+     * @param memCache the mem tier in front of the files, such as AkCacheManager.getBitmapMemCache()
+     */
+    protected FilesCacheSDFoldersImpl(Context context, String cacheTag, MemCache<String, V> memCache){
         mContext = context;
         mCacheTag = cacheTag;
-        mSoftBitmapCache = new MemCacheSoftRefImpl<String, V>();
+        mMemCache = memCache;
 
         // in Config
         SharedPreferences sp = context.getSharedPreferences(PREF_PREFIX + cacheTag, 0);
@@ -105,19 +112,19 @@ public abstract class FilesCacheSDFoldersImpl<V> implements FilesCache<V> {
     
     @Override
     public V get(String key) {
-        V bm = mSoftBitmapCache.get(key);
+        V bm = mMemCache.get(key);
         if (bm != null) {
             return bm;
         } else {
             bm = doLoad(mapRule(key));
             if (bm != null) {
-                if (bm instanceof Bitmap && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+                if (bm instanceof Bitmap) {
                     Bitmap bitmap = (Bitmap) bm;
-                    if (bitmap.getByteCount() < MEM_BITMAP_BYTE) {
-                        mSoftBitmapCache.put(key, bm);
+                    if (ImageUtil.getByteCount(bitmap) < MEM_BITMAP_BYTE) {
+                        mMemCache.put(key, bm);
                     }
                 } else {
-                    mSoftBitmapCache.put(key, bm);
+                    mMemCache.put(key, bm);
                 }
             }
             return bm;
@@ -150,13 +157,13 @@ public abstract class FilesCacheSDFoldersImpl<V> implements FilesCache<V> {
         if (value != null) {
             V oldV = remove(key);
             doSave(mapRule(key), value, key);
-            if (value instanceof Bitmap && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            if (value instanceof Bitmap) {
                 Bitmap bitmap = (Bitmap) value;
-                if (bitmap.getByteCount() < MEM_BITMAP_BYTE) {
-                    mSoftBitmapCache.put(key, value);
+                if (ImageUtil.getByteCount(bitmap) < MEM_BITMAP_BYTE) {
+                    mMemCache.put(key, value);
                 }
             } else {
-                mSoftBitmapCache.put(key, value);
+                mMemCache.put(key, value);
             }
             return oldV;
         }
@@ -14,34 +14,67 @@
 package org.akita.cache;
 
 
+import android.graphics.Bitmap;
 import android.support.v4.util.LruCache;
+import org.akita.util.ImageUtil;
 
 import java.util.Map;
 
 
 /**
+ * LruCache bounded by the bytes of the bitmaps, the other values count 1 byte.
  * Caution: use this impl on support_v4
  * @author zhe.yangz 2012-3-30 下午03:23:19
  */
 public class MemCacheLruBitmapImpl<K, V> implements MemCache<K, V> {
 
     private LruCache<K, V> mCache = null;
+    private volatile BitmapPool mBitmapPool;
 
     protected MemCacheLruBitmapImpl(int maxMByteSize){
-        mCache = new LruCache<K, V>(maxMByteSize) {
+        this(maxMByteSize * 1024L * 1024L);
+    }
+
+    /**
+     * @param maxBytes max bytes of the bitmaps kept
+     */
+    protected MemCacheLruBitmapImpl(long maxBytes){
+        mCache = new LruCache<K, V>((int) Math.min(maxBytes, Integer.MAX_VALUE)) {
             @Override
             protected int sizeOf(K key, V value) {
-                return super.sizeOf(key, value);
+                if (value instanceof Bitmap) {
+                    return ImageUtil.getByteCount((Bitmap) value);
+                }
+                return 1;
             }
 
             @Override
             protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
-                super.entryRemoved(evicted, key, oldValue, newValue);
+                BitmapPool pool = mBitmapPool;
+                if (pool != null && oldValue instanceof Bitmap && oldValue != newValue) {
+                    pool.recycle((Bitmap) oldValue);
+                }
             }
         };
 
     }
     
+    /**
+     * @param bitmapPool the pool the removed bitmaps are recycled to, null if none.
+     *                   Only if the bitmaps are not used out of the cache and the views
+     *                   showing them are set by BitmapPool.setImageBitmap
+     */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * @return the pool the removed bitmaps are recycled to, null if none
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
     public V get(K key){
         return mCache.get(key);
     }
@@ -62,4 +95,27 @@ public class MemCacheLruBitmapImpl<K, V> implements MemCache<K, V> {
     public Map<K, V> snapshot() {
         return mCache.snapshot();
     }
+
+    /**
+     * @return bytes of the bitmaps kept
+     */
+    public int size() {
+        return mCache.size();
+    }
+
+    /**
+     * @return max bytes of the bitmaps kept
+     */
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    /**
+     * Evict the least recently used bitmaps until the bytes kept are at most maxBytes,
+     * such as in ComponentCallbacks2.onTrimMemory
+     * @param maxBytes
+     */
+    public void trimToSize(int maxBytes) {
+        mCache.trimToSize(maxBytes);
+    }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * FilesCache whose files can be written as raw bytes, such as the downloaded image
+ * streamed to the file as it is, decoded to V by get.
+ */
+public interface RawFilesCache<V> extends FilesCache<V> {
+
+    /**
+     * @param key
+     * @return the editor of the file of key, the old value is kept until commit
+     * @throws IOException if the file can not be written, such as no SD card
+     */
+    public Editor edit(String key) throws IOException;
+
+    /**
+     * Write the bytes to getOutputStream, then commit or abort
+     */
+    public interface Editor {
+
+        public OutputStream getOutputStream();
+
+        /**
+         * close the stream and replace the file of key by the bytes written
+         * @return false if failed, the bytes are discarded
+         */
+        public boolean commit();
+
+        /**
+         * close the stream and discard the bytes written
+         */
+        public void abort();
+    }
+}
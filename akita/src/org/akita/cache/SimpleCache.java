@@ -15,6 +15,8 @@ package org.akita.cache;
 
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * K\V String 
@@ -33,6 +35,18 @@ public interface SimpleCache {
     public String put(String key, String value);
     public String remove(String key);
     public void removeAll();
+
+    /**
+     * put all the entries in one transaction, much faster than put one by one
+     * @param entries key to value
+     */
+    public void putAll(Map<String, String> entries);
+
+    /**
+     * remove the keys in one transaction
+     * @param keys
+     */
+    public void removeAll(Collection<String> keys);
     /**
      * Close the db and sth. else.
      * @return
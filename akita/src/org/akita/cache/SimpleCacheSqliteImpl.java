@@ -19,15 +19,24 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import org.akita.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * reserveTime==0  1年
  * 默认为24小时
+ * The db is kept open until close, and reopened by the next use. Write-ahead logging is
+ * enabled since HONEYCOMB so the reads don't wait for the writes.
+ * Get the instances from AkCacheManager, which shares one per table.
  * @author zhe.yangz 2012-3-30 下午03:23:19
  */
 public class SimpleCacheSqliteImpl implements SimpleCache {
+    private static final String TAG = "SimpleCacheSqliteImpl";
     private SQLiteHelper mSqliteHelper = null;
     private long mReserveTime = 24 * 3600 * 1000L;
     
@@ -61,40 +70,50 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
         ArrayList<CacheObject> cos = mSqliteHelper.getLatestCOs(num);
         ArrayList<String> rets = new ArrayList<String>();
         if (cos != null) {
+            ArrayList<String> expiredKeys = new ArrayList<String>();
             for (CacheObject co : cos) {
                 if ((System.currentTimeMillis()-co.cacheTime) > mReserveTime) {
-                    remove(co.key);
+                    expiredKeys.add(co.key);
                 } else {
                     rets.add(co.value);
                 }
             }
+            if (!expiredKeys.isEmpty()) {
+                removeAll(expiredKeys);
+            }
         }
         return rets;
     }
 
     @Override
     public String put(String key, String value) {
-        String oldValue = null;
-        
-        CacheObject co = mSqliteHelper.getCOByKey(key);
-        if (co != null) {
-            oldValue = co.value;
-            mSqliteHelper.updateCOByKey(key, value);
-        } else {
-            mSqliteHelper.insertCOByKey(key, value);
+        synchronized (mSqliteHelper.Lock) {
+            CacheObject co = mSqliteHelper.getCOByKey(key);
+            mSqliteHelper.replaceCOByKey(key, value);
+            return co != null ? co.value : null;
         }
-        return oldValue;
+    }
+
+    @Override
+    public void putAll(Map<String, String> entries) {
+        if (entries == null || entries.isEmpty()) return;
+        mSqliteHelper.replaceCOs(entries);
     }
 
     @Override
     public String remove(String key) {
-        String oldValue = null;
-        CacheObject co = mSqliteHelper.getCOByKey(key);
-        if (co != null) {
-            oldValue = co.value;
+        synchronized (mSqliteHelper.Lock) {
+            CacheObject co = mSqliteHelper.getCOByKey(key);
+            if (co == null) return null;
             mSqliteHelper.deleteCOByKey(key);
+            return co.value;
         }
-        return oldValue;
+    }
+
+    @Override
+    public void removeAll(Collection<String> keys) {
+        if (keys == null || keys.isEmpty()) return;
+        mSqliteHelper.deleteCOs(keys);
     }
 
     @Override
@@ -107,9 +126,21 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
         mSqliteHelper.close();
     }
 
+    /**
+     * The writes are serialized by Lock, shared by all the caches of the process.
+     * The reads are not locked once write-ahead logging is on, without it they are,
+     * as a write on the connection of another cache would lock them out.
+     */
     public class SQLiteHelper extends SQLiteOpenHelper {
         public String Lock = "dblock";
         private String mTableName;
+        /**
+         * the db the statements are compiled on, reopened after close
+         */
+        private SQLiteDatabase mStmtDb;
+        private SQLiteStatement mReplaceStmt;
+        private SQLiteStatement mDeleteStmt;
+        private volatile boolean mWriteAheadLogging;
         /**
          * @param context
          * @param name
@@ -122,30 +153,124 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
             mTableName = tbName;
 
             try{
-                SQLiteDatabase sqLiteDatabase = getWritableDatabase();
+                // kept open, the table may be new in an existing db
                 onCreate(getWritableDatabase());
-                sqLiteDatabase.close();
             } catch (Exception e) {e.printStackTrace();}
         }
 
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+                try {
+                    mWriteAheadLogging = db.enableWriteAheadLogging();
+                } catch (Exception e) {
+                    // not supported by the db, such as in memory
+                    Log.w(TAG, "Can not enable write-ahead logging of " + db.getPath(), e);
+                }
+            }
+        }
+
         /**
+         * compile the statements on the current db, under Lock
+         */
+        private SQLiteDatabase prepareStatements() {
+            SQLiteDatabase db = getWritableDatabase();
+            if (db != mStmtDb) {
+                releaseStatements();
+                mReplaceStmt = db.compileStatement("insert or replace into `" + mTableName
+                        + "` (`key`, `value`, `cacheTime`) values (?, ?, ?)");
+                mDeleteStmt = db.compileStatement("delete from `" + mTableName
+                        + "` where `key`=?");
+                mStmtDb = db;
+            }
+            return db;
+        }
+
+        private void releaseStatements() {
+            if (mReplaceStmt != null) mReplaceStmt.close();
+            if (mDeleteStmt != null) mDeleteStmt.close();
+            mReplaceStmt = null;
+            mDeleteStmt = null;
+            mStmtDb = null;
+        }
+
+        private void bindReplace(String key, String value, long cacheTime) {
+            mReplaceStmt.bindString(1, key);
+            if (value != null) {
+                mReplaceStmt.bindString(2, value);
+            } else {
+                mReplaceStmt.bindNull(2);
+            }
+            mReplaceStmt.bindLong(3, cacheTime);
+        }
+
+        /**
+         * insert or replace the value of key
          * @param key
          * @param value
          */
-        public void updateCOByKey(String key, String value) {
+        public void replaceCOByKey(String key, String value) {
+            synchronized(Lock) {
+                prepareStatements();
+                bindReplace(key, value, System.currentTimeMillis());
+                mReplaceStmt.executeInsert();
+            }
+        }
+
+        /**
+         * insert or replace all the entries in one transaction
+         * @param entries
+         */
+        public void replaceCOs(Map<String, String> entries) {
+            synchronized(Lock) {
+                SQLiteDatabase db = prepareStatements();
+                long cacheTime = System.currentTimeMillis();
+                db.beginTransaction();
+                try {
+                    for (Map.Entry<String, String> entry : entries.entrySet()) {
+                        bindReplace(entry.getKey(), entry.getValue(), cacheTime);
+                        mReplaceStmt.executeInsert();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+
+        /**
+         * delete all the keys in one transaction
+         * @param keys
+         */
+        public void deleteCOs(Collection<String> keys) {
             synchronized(Lock) {
-                SQLiteDatabase db = null;
+                SQLiteDatabase db = prepareStatements();
+                db.beginTransaction();
                 try {
-                    db = getWritableDatabase();
-                    ContentValues values = new ContentValues();
-                    values.put("value", value);
-                    values.put("cacheTime", System.currentTimeMillis());
-                    db.update(mTableName, values , "key=?", new String[]{key});
+                    for (String key : keys) {
+                        mDeleteStmt.bindString(1, key);
+                        mDeleteStmt.execute();
+                    }
+                    db.setTransactionSuccessful();
                 } finally {
-                    if (db != null) db.close();
+                    db.endTransaction();
                 }
             }
         }
+
+        /**
+         * @param key
+         * @param value
+         */
+        public void updateCOByKey(String key, String value) {
+            synchronized(Lock) {
+                ContentValues values = new ContentValues();
+                values.put("value", value);
+                values.put("cacheTime", System.currentTimeMillis());
+                getWritableDatabase().update(mTableName, values , "key=?", new String[]{key});
+            }
+        }
         
         /**
          * @param key
@@ -153,17 +278,11 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
          */
         public void insertCOByKey(String key, String value) {
             synchronized(Lock) {
-                SQLiteDatabase db = null;
-                try {
-                    db = getWritableDatabase();
-                    ContentValues values = new ContentValues();
-                    values.put("key", key);
-                    values.put("value", value);
-                    values.put("cacheTime", System.currentTimeMillis());
-                    db.insert(mTableName, null, values);
-                } finally {
-                    if (db != null) db.close();
-                }
+                ContentValues values = new ContentValues();
+                values.put("key", key);
+                values.put("value", value);
+                values.put("cacheTime", System.currentTimeMillis());
+                getWritableDatabase().insert(mTableName, null, values);
             }
         }
         
@@ -172,13 +291,9 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
          */
         public void deleteCOByKey(String key) {
             synchronized(Lock) {
-                SQLiteDatabase db = null;
-                try {
-                    db = getWritableDatabase();
-                    db.delete(mTableName, "key=?", new String[]{key});
-                } finally {
-                    if (db != null) db.close();
-                }
+                prepareStatements();
+                mDeleteStmt.bindString(1, key);
+                mDeleteStmt.execute();
             }
         }
 
@@ -187,46 +302,46 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
          */
         public void deleteAllKey() {
             synchronized(Lock) {
-                SQLiteDatabase db = null;
-                try {
-                    db = getWritableDatabase();
-                    db.delete(mTableName, null, null);
-                } finally {
-                    if (db != null) db.close();
-                }
+                getWritableDatabase().delete(mTableName, null, null);
             }
         }
 
         public ArrayList<CacheObject> getLatestCOs(int num) {
+            if (mWriteAheadLogging) {
+                return queryLatestCOs(num);
+            }
             synchronized(Lock) {
-                ArrayList<CacheObject> cos = new ArrayList<CacheObject>();
-                Cursor c = null;
-                SQLiteDatabase db = null;
-                try {
-                    db = getReadableDatabase();
-                    c = db.rawQuery("select `key`, `value`, `cacheTime` from `" + mTableName +
-                            "` order by cacheTime desc limit " + num, null);
-                    if (c.moveToFirst()) {
-                        while (!c.isAfterLast()) {
-                            String key = c.getString(0);
-                            String value = c.getString(1);
-                            long cacheTime = c.getLong(2);
-                            CacheObject co = new CacheObject(key, value);
-                            co.cacheTime = cacheTime;
-                            cos.add(co);
-                            c.moveToNext();
-                        }
-                        return cos;
-                    } else {
-                        return null;
+                return queryLatestCOs(num);
+            }
+        }
+
+        private ArrayList<CacheObject> queryLatestCOs(int num) {
+            ArrayList<CacheObject> cos = new ArrayList<CacheObject>();
+            Cursor c = null;
+            SQLiteDatabase db = null;
+            try {
+                db = getReadableDatabase();
+                c = db.rawQuery("select `key`, `value`, `cacheTime` from `" + mTableName +
+                        "` order by cacheTime desc limit " + num, null);
+                if (c.moveToFirst()) {
+                    while (!c.isAfterLast()) {
+                        String key = c.getString(0);
+                        String value = c.getString(1);
+                        long cacheTime = c.getLong(2);
+                        CacheObject co = new CacheObject(key, value);
+                        co.cacheTime = cacheTime;
+                        cos.add(co);
+                        c.moveToNext();
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
                     return cos;
-                } finally {
-                    if (c != null) c.close();
-                    /*if (db != null) db.close();*/
+                } else {
+                    return null;
                 }
+            } catch (Exception e) {
+                e.printStackTrace();
+                return cos;
+            } finally {
+                if (c != null) c.close();
             }
         }
 
@@ -235,28 +350,34 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
          * @return
          */
         public CacheObject getCOByKey(String key) {
+            if (mWriteAheadLogging) {
+                return queryCOByKey(key);
+            }
             synchronized(Lock) {
-                Cursor c = null;
-                SQLiteDatabase db = null;
-                try {
-                    db = getReadableDatabase();
-                    c = db.query(
-                            mTableName, new String[]{"value","cacheTime"}, "key=?",
-                            new String[]{key}, null, null, null);
-                    if (c.moveToFirst()) {
-                        String value = c.getString(0);
-                        long cacheTime = c.getLong(1);
-                        CacheObject co = new CacheObject(key, value);
-                        co.cacheTime = cacheTime;
+                return queryCOByKey(key);
+            }
+        }
 
-                        return co;
-                    } else {
-                        return null;
-                    }
-                } finally {
-                    if (c != null) c.close();
-                    /*if (db != null) db.close();*/
+        private CacheObject queryCOByKey(String key) {
+            Cursor c = null;
+            SQLiteDatabase db = null;
+            try {
+                db = getReadableDatabase();
+                c = db.query(
+                        mTableName, new String[]{"value","cacheTime"}, "key=?",
+                        new String[]{key}, null, null, null);
+                if (c.moveToFirst()) {
+                    String value = c.getString(0);
+                    long cacheTime = c.getLong(1);
+                    CacheObject co = new CacheObject(key, value);
+                    co.cacheTime = cacheTime;
+
+                    return co;
+                } else {
+                    return null;
                 }
+            } finally {
+                if (c != null) c.close();
             }
         }
 
@@ -271,6 +392,14 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {            
         }
+
+        @Override
+        public void close() {
+            synchronized(Lock) {
+                releaseStatements();
+                super.close();
+            }
+        }
         
     }
   
@@ -0,0 +1,343 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import android.os.SystemClock;
+import org.apache.http.*;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.RequestWrapper;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpTransport using Apache DefaultHttpClient with a ThreadSafeClientConnManager,
+ * the default engine of HttpInvoker.
+ * The https requests of the classes HttpConfig.trustAllCertificates go through a pool
+ * trusting all certificates, the others through a pool verifying them and the host names.
+ */
+public class ApacheHttpTransport implements HttpTransport {
+    private static final long RETIRED_POOL_GRACE = 10 * 1000L;
+
+    private volatile ThreadSafeClientConnManager mConnectionManager;
+    private volatile DefaultHttpClient mClient;
+    private volatile ThreadSafeClientConnManager mVerifyingConnectionManager;
+    private volatile DefaultHttpClient mVerifyingClient;
+    private volatile HttpConfig mConfig;
+    /**
+     * the pools replaced by configure, shut down once their leased connections are released
+     */
+    private final ArrayList<ThreadSafeClientConnManager> mRetired =
+            new ArrayList<ThreadSafeClientConnManager>();
+    /**
+     * uptime millis the last pool is retired, a request which got the old client
+     * just before configure may not have leased its connection yet
+     */
+    private long mRetiredAt;
+    private volatile long mIdleTimeout;
+    private volatile long mLastEviction;
+
+    public ApacheHttpTransport() {
+        this(new HttpConfig.Builder().build());
+    }
+
+    /**
+     * @param maxConnectionsPerRoute max pooled connections to one host
+     * @param maxTotalConnections max pooled connections of all hosts
+     */
+    public ApacheHttpTransport(int maxConnectionsPerRoute, int maxTotalConnections) {
+        this(new HttpConfig.Builder()
+                .setMaxConnectionsPerRoute(maxConnectionsPerRoute)
+                .setMaxTotalConnections(maxTotalConnections)
+                .build());
+    }
+
+    public ApacheHttpTransport(HttpConfig config) {
+        configure(config);
+    }
+
+    /**
+     * Build a new pool and client from config. The old pool is shut down once the
+     * requests in flight release its connections, checked with the idle eviction.
+     */
+    public synchronized void configure(HttpConfig config) {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, "utf-8");
+        HttpConnectionParams.setConnectionTimeout(params,
+                config.connectTimeout(HttpConfig.REQUEST_API));
+        HttpConnectionParams.setSoTimeout(params, config.readTimeout(HttpConfig.REQUEST_API));
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        params.setBooleanParameter("http.protocol.expect-continue", false);
+        // the default is only 2 connections per route, which serializes parallel requests
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(config.maxConnectionsPerRoute));
+        ConnManagerParams.setMaxTotalConnections(params, config.maxTotalConnections);
+
+        ThreadSafeClientConnManager connectionManager = new ThreadSafeClientConnManager(params,
+                newSchemeRegistry(_FakeSSLSocketFactory.getSocketFactory(), config.dns));
+        ThreadSafeClientConnManager verifyingConnectionManager = new ThreadSafeClientConnManager(
+                params, newSchemeRegistry(SSLSocketFactory.getSocketFactory(), config.dns));
+
+        ThreadSafeClientConnManager old = mConnectionManager;
+        ThreadSafeClientConnManager oldVerifying = mVerifyingConnectionManager;
+        mConnectionManager = connectionManager;
+        mClient = newClient(connectionManager, params, config);
+        mVerifyingConnectionManager = verifyingConnectionManager;
+        mVerifyingClient = newClient(verifyingConnectionManager, params, config);
+        mConfig = config;
+        mIdleTimeout = config.idleTimeout;
+        if (old != null) {
+            old.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            mRetired.add(old);
+        }
+        if (oldVerifying != null) {
+            oldVerifying.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            mRetired.add(oldVerifying);
+        }
+        mRetiredAt = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * close the free connections of the retired pools, and shut down the drained ones
+     */
+    private synchronized void shutdownDrainedPools() {
+        if (mRetired.isEmpty()
+                || SystemClock.uptimeMillis() - mRetiredAt < RETIRED_POOL_GRACE) return;
+        for (int idx = mRetired.size() - 1; idx >= 0; idx--) {
+            ThreadSafeClientConnManager retired = mRetired.get(idx);
+            retired.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            if (retired.getConnectionsInPool() == 0) {
+                retired.shutdown();
+                mRetired.remove(idx);
+            }
+        }
+    }
+
+    /**
+     * the socket factories resolve by dns, and record dns and connect timings
+     * @param sslSocketFactory socket factory of https
+     */
+    private static SchemeRegistry newSchemeRegistry(LayeredSocketFactory sslSocketFactory,
+                                                    Dns dns) {
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http",
+                new TimingSocketFactory(PlainSocketFactory.getSocketFactory(), dns), 80));
+        schemeRegistry.register(new Scheme("https",
+                new TimingSocketFactory.Layered(sslSocketFactory, dns), 443));
+        return schemeRegistry;
+    }
+
+    private static DefaultHttpClient newClient(ThreadSafeClientConnManager connectionManager,
+                                               HttpParams params, HttpConfig config) {
+        DefaultHttpClient client = new DefaultHttpClient(connectionManager, params) {
+            @Override
+            protected HttpRequestExecutor createRequestExecutor() {
+                return new EventRequestExecutor();
+            }
+        };
+        if (!config.keepAlive) {
+            client.setReuseStrategy(new ConnectionReuseStrategy() {
+                public boolean keepAlive(HttpResponse response, HttpContext context) {
+                    return false;
+                }
+            });
+        }
+
+        // enable gzip support in Request and Response.
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            public void process(
+                    final HttpRequest request,
+                    final HttpContext context) throws HttpException, IOException {
+                if (!request.containsHeader("Accept-Encoding")) {
+                    request.addHeader("Accept-Encoding", "gzip");
+                }
+            }
+        });
+        client.addResponseInterceptor(new HttpResponseInterceptor() {
+            public void process(
+                    final HttpResponse response,
+                    final HttpContext context) throws HttpException, IOException {
+                HttpEntity entity = response.getEntity();
+                if (entity == null) return;
+                entity = NetworkMetrics.meterWire(entity);
+                response.setEntity(entity);
+                Header ceheader = entity.getContentEncoding();
+                if (ceheader != null) {
+                    HeaderElement[] codecs = ceheader.getElements();
+                    for (int i = 0; i < codecs.length; i++) {
+                        if (codecs[i].getName().equalsIgnoreCase("gzip")) {
+                            response.setEntity(new GzipDecompressingEntity(entity));
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        return client;
+    }
+
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        evictIdleConnections();
+        int requestClass = request.getParams().getIntParameter(
+                HttpConfig.PARAM_REQUEST_CLASS, HttpConfig.REQUEST_API);
+        if (mConfig.trustAllCertificates(requestClass)) {
+            return mClient.execute(request);
+        }
+        return mVerifyingClient.execute(request);
+    }
+
+    /**
+     * evict the expired and idle connections, at most once per half idle timeout
+     */
+    private void evictIdleConnections() {
+        long now = SystemClock.uptimeMillis();
+        long idleTimeout = mIdleTimeout;
+        if (now - mLastEviction < idleTimeout / 2) return;
+        mLastEviction = now;
+        ThreadSafeClientConnManager connectionManager = mConnectionManager;
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        connectionManager = mVerifyingConnectionManager;
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        shutdownDrainedPools();
+    }
+
+    public synchronized void shutdown() {
+        mConnectionManager.shutdown();
+        mVerifyingConnectionManager.shutdown();
+        for (ThreadSafeClientConnManager retired : mRetired) {
+            retired.shutdown();
+        }
+        mRetired.clear();
+    }
+
+    /**
+     * Open the connections of the route from the pool of the api requests,
+     * do the TLS handshake if https, then release them to the pool as reusable.
+     */
+    public void warmUp(URI uri, int connections) throws IOException {
+        ThreadSafeClientConnManager connectionManager;
+        HttpParams params;
+        // the pool and client of the same configure, the api requests go through
+        synchronized (this) {
+            if (mConfig.trustAllCertificates(HttpConfig.REQUEST_API)) {
+                connectionManager = mConnectionManager;
+                params = mClient.getParams();
+            } else {
+                connectionManager = mVerifyingConnectionManager;
+                params = mVerifyingClient.getParams();
+            }
+        }
+        Scheme scheme = connectionManager.getSchemeRegistry().getScheme(uri.getScheme());
+        HttpHost target = new HttpHost(uri.getHost(), scheme.resolvePort(uri.getPort()),
+                scheme.getName());
+        HttpRoute route = new HttpRoute(target, null, scheme.isLayered());
+        long timeout = HttpConnectionParams.getConnectionTimeout(params);
+
+        ArrayList<ManagedClientConnection> leased = new ArrayList<ManagedClientConnection>();
+        try {
+            for (int idx = 0; idx < connections; idx++) {
+                ManagedClientConnection conn;
+                try {
+                    conn = connectionManager.requestConnection(route, null)
+                            .getConnection(timeout, TimeUnit.MILLISECONDS);
+                } catch (ConnectionPoolTimeoutException e) {
+                    break; // the route is full, warm enough
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                leased.add(conn);
+                if (!conn.isOpen()) {
+                    conn.open(route, new BasicHttpContext(), params);
+                    // getting the session does the handshake of the ssl socket
+                    conn.getSSLSession();
+                }
+                conn.markReusable();
+            }
+        } finally {
+            // the connections failed to open are not reusable, closed by the pool
+            for (ManagedClientConnection conn : leased) {
+                connectionManager.releaseConnection(conn, mIdleTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return the underlying client of the requests trusting all certificates,
+     * to customize it further
+     */
+    public DefaultHttpClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * HttpRequestExecutor reporting connectionAcquired and requestSent to the HttpEventListener
+     */
+    private static class EventRequestExecutor extends HttpRequestExecutor {
+        @Override
+        public HttpResponse execute(HttpRequest request, HttpClientConnection conn,
+                                    HttpContext context) throws IOException, HttpException {
+            HttpEventListener listener = HttpInvoker.getEventListener();
+            if (listener != null) {
+                listener.connectionAcquired(HttpEventListener.currentCall(), original(request));
+            }
+            return super.execute(request, conn, context);
+        }
+
+        @Override
+        protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn,
+                                             HttpContext context) throws IOException, HttpException {
+            HttpResponse response = super.doSendRequest(request, conn, context);
+            HttpEventListener listener = HttpInvoker.getEventListener();
+            if (listener != null) {
+                listener.requestSent(HttpEventListener.currentCall(), original(request));
+            }
+            return response;
+        }
+
+        /**
+         * the request given to HttpInvoker, DefaultHttpClient executes a wrapper of it
+         */
+        private static HttpUriRequest original(HttpRequest request) {
+            if (request instanceof RequestWrapper) {
+                request = ((RequestWrapper) request).getOriginal();
+            }
+            return request instanceof HttpUriRequest ? (HttpUriRequest) request : null;
+        }
+    }
+}
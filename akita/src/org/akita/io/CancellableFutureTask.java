@@ -0,0 +1,51 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * FutureTask whose work runs with its own CancellationToken bound,
+ * so cancel aborts the request in flight, even without mayInterruptIfRunning,
+ * instead of waiting for it to end.
+ * Run it on any executor.
+ */
+public class CancellableFutureTask<V> extends FutureTask<V> {
+    private final CancellationToken mToken = new CancellationToken();
+
+    public CancellableFutureTask(Callable<V> callable) {
+        super(callable);
+    }
+
+    public CancellableFutureTask(Runnable runnable, V result) {
+        super(runnable, result);
+    }
+
+    @Override
+    public void run() {
+        CancellationToken previous = CancellationToken.bind(mToken);
+        try {
+            super.run();
+        } finally {
+            CancellationToken.bind(previous);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        mToken.cancel();
+        return super.cancel(mayInterruptIfRunning);
+    }
+}
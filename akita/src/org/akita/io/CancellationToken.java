@@ -0,0 +1,84 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Cancellation of the http work running on a thread. The token is bound to the worker
+ * thread while its DispatchTask runs, HttpInvoker registers each request to the token
+ * of current thread, and cancel() aborts the request in flight.
+ * The aborted request fails with AkInvokeException.CODE_REQUEST_CANCELLED.
+ */
+public class CancellationToken {
+    private static final ThreadLocal<CancellationToken> sCurrent = new ThreadLocal<CancellationToken>();
+
+    private volatile boolean mCancelled;
+    private HttpUriRequest mRequest;
+
+    /**
+     * @return the token bound to current thread, null if none
+     */
+    public static CancellationToken current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Bind the token to current thread, to cancel the http work not run by HttpDispatcher
+     * @param token token, null to unbind
+     * @return the token bound before, to restore after the work
+     */
+    public static CancellationToken bind(CancellationToken token) {
+        CancellationToken previous = sCurrent.get();
+        if (token == null) {
+            sCurrent.remove();
+        } else {
+            sCurrent.set(token);
+        }
+        return previous;
+    }
+
+    /**
+     * Cancel the work and abort its request in flight
+     */
+    public void cancel() {
+        HttpUriRequest request;
+        synchronized (this) {
+            if (mCancelled) return;
+            mCancelled = true;
+            request = mRequest;
+            mRequest = null;
+        }
+        if (request != null) {
+            request.abort();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Register the request about to execute, the last registered one is aborted by cancel
+     * @throws InterruptedIOException if cancelled already
+     */
+    synchronized void register(HttpUriRequest request) throws InterruptedIOException {
+        if (mCancelled) {
+            throw new InterruptedIOException("Request cancelled");
+        }
+        mRequest = request;
+    }
+}
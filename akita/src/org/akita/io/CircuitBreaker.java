@@ -0,0 +1,166 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import android.os.SystemClock;
+import org.akita.exception.AkInvokeException;
+import org.akita.util.Log;
+
+/**
+ * Circuit breaker and concurrency limit of one host, used by HttpInvoker.execute.
+ * The circuit opens when the failure rate of the recent requests reaches the threshold,
+ * failures are IOExceptions, 5xx and 429 responses, and responses slower than the
+ * slow call threshold. While open, requests to the host fail fast without network.
+ * After the open duration one probe request is let through (half open),
+ * its success closes the circuit and its failure opens it again.
+ * The thresholds are read from the current HttpConfig, see HttpConfig.Builder.setCircuitBreaker.
+ */
+public class CircuitBreaker {
+    private static final String TAG = "CircuitBreaker";
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    private final String mHost;
+    private int mState = STATE_CLOSED;
+    private long mOpenedAt;
+    private boolean mProbing;
+    private int mActive;
+
+    /**
+     * outcomes of the recent requests in closed state, true if failed
+     */
+    private boolean[] mWindow = new boolean[0];
+    private int mWindowPos;
+    private int mCalls;
+    private int mFailures;
+
+    public CircuitBreaker(String host) {
+        mHost = host;
+    }
+
+    /**
+     * Acquire the permit of a request to the host, release it by release()
+     * @param config current config
+     * @throws HostRejectedException if the circuit is open or the host is overloaded
+     */
+    public synchronized void acquire(HttpConfig config) throws HostRejectedException {
+        if (config.circuitWindowSize == 0 && mState != STATE_CLOSED) {
+            reset(); // circuit breaking disabled
+        }
+        if (mState == STATE_OPEN) {
+            if (SystemClock.elapsedRealtime() - mOpenedAt < config.circuitOpenDuration) {
+                throw new HostRejectedException(AkInvokeException.CODE_CIRCUIT_OPEN,
+                        "Circuit of " + mHost + " is open");
+            }
+            mState = STATE_HALF_OPEN;
+            mProbing = false;
+        }
+        if (mState == STATE_HALF_OPEN) {
+            if (mProbing) {
+                throw new HostRejectedException(AkInvokeException.CODE_CIRCUIT_OPEN,
+                        "Circuit of " + mHost + " is half open, probing");
+            }
+            mProbing = true;
+        }
+        if (mActive >= config.maxRequestsPerHost) {
+            if (mState == STATE_HALF_OPEN) mProbing = false;
+            throw new HostRejectedException(AkInvokeException.CODE_HOST_OVERLOADED,
+                    "Too many requests in flight to " + mHost);
+        }
+        mActive++;
+    }
+
+    /**
+     * Release the permit and record the outcome of the request
+     * @param config current config
+     * @param failed whether the request failed
+     * @param elapsed millis the request took
+     */
+    public synchronized void release(HttpConfig config, boolean failed, long elapsed) {
+        mActive--;
+        if (config.slowCallThreshold > 0 && elapsed >= config.slowCallThreshold) {
+            failed = true;
+        }
+        if (mState == STATE_HALF_OPEN) {
+            if (failed) {
+                open();
+            } else {
+                Log.i(TAG, "circuit of " + mHost + " closed");
+                mState = STATE_CLOSED;
+                resetWindow(config);
+            }
+            mProbing = false;
+        } else if (mState == STATE_CLOSED) {
+            record(config, failed);
+        }
+    }
+
+    /**
+     * Release the permit of a cancelled request without recording an outcome,
+     * the half open circuit lets the next request probe.
+     */
+    public synchronized void releaseCancelled() {
+        mActive--;
+        if (mState == STATE_HALF_OPEN) {
+            mProbing = false;
+        }
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Close the circuit and forget the recorded outcomes
+     */
+    public synchronized void reset() {
+        mState = STATE_CLOSED;
+        mProbing = false;
+        mWindow = new boolean[0];
+        mCalls = mFailures = mWindowPos = 0;
+    }
+
+    private void record(HttpConfig config, boolean failed) {
+        if (mWindow.length != config.circuitWindowSize) {
+            resetWindow(config);
+        }
+        if (mWindow.length == 0) return;
+        if (mCalls == mWindow.length) {
+            if (mWindow[mWindowPos]) mFailures--;
+        } else {
+            mCalls++;
+        }
+        mWindow[mWindowPos] = failed;
+        if (failed) mFailures++;
+        mWindowPos = (mWindowPos + 1) % mWindow.length;
+
+        if (mCalls >= config.circuitMinRequests
+                && mFailures >= config.circuitFailureRate * mCalls) {
+            open();
+        }
+    }
+
+    private void open() {
+        Log.w(TAG, "circuit of " + mHost + " opened, " + mFailures + "/" + mCalls + " failed");
+        mState = STATE_OPEN;
+        mOpenedAt = SystemClock.elapsedRealtime();
+    }
+
+    private void resetWindow(HttpConfig config) {
+        mWindow = new boolean[config.circuitWindowSize];
+        mCalls = mFailures = mWindowPos = 0;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+/**
+ * The work queued in HttpDispatcher, to reprioritize or cancel it.
+ */
+public class DispatchTask implements Runnable, Comparable<DispatchTask> {
+    private final Runnable mRunnable;
+    private final long mSequence;
+    private final CancellationToken mToken = new CancellationToken();
+    /**
+     * guarded by HttpDispatcher.class
+     */
+    int mPriority;
+    int mRunningPriority;
+
+    DispatchTask(Runnable runnable, int priority, long sequence) {
+        mRunnable = runnable;
+        mPriority = priority;
+        mSequence = sequence;
+    }
+
+    public void run() {
+        try {
+            if (mToken.isCancelled()) return;
+            CancellationToken previous = CancellationToken.bind(mToken);
+            try {
+                mRunnable.run();
+            } finally {
+                CancellationToken.bind(previous);
+            }
+        } finally {
+            HttpDispatcher.finished(this);
+        }
+    }
+
+    public int compareTo(DispatchTask another) {
+        if (mPriority != another.mPriority) {
+            return mPriority < another.mPriority ? -1 : 1;
+        }
+        return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+    }
+
+    /**
+     * Move the queued work by the new priority, no effect if it is running or done
+     * @param priority HttpDispatcher.PRIORITY_*
+     */
+    public void setPriority(int priority) {
+        HttpDispatcher.checkPriority(priority);
+        HttpDispatcher.reprioritize(this, priority);
+    }
+
+    public int getPriority() {
+        synchronized (HttpDispatcher.class) {
+            return mPriority;
+        }
+    }
+
+    /**
+     * Cancel the work, the queued one never runs, and the running one has its request aborted
+     * @return true if the work was queued and never runs
+     */
+    public boolean cancel() {
+        mToken.cancel();
+        return HttpDispatcher.dequeue(this);
+    }
+
+    public boolean isCancelled() {
+        return mToken.isCancelled();
+    }
+
+    public CancellationToken getToken() {
+        return mToken;
+    }
+}
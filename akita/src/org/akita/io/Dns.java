@@ -0,0 +1,41 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolver of the host names of HttpInvoker, set by HttpConfig.Builder.setDns.
+ * The connections of ApacheHttpTransport are made to the addresses it returns,
+ * in order.
+ */
+public interface Dns {
+
+    /**
+     * the system resolver, InetAddress.getAllByName
+     */
+    Dns SYSTEM = new Dns() {
+        public InetAddress[] lookup(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    /**
+     * @param host host name
+     * @return addresses of the host, not empty
+     * @throws UnknownHostException if not resolved
+     */
+    InetAddress[] lookup(String host) throws UnknownHostException;
+}
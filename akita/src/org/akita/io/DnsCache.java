@@ -0,0 +1,184 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import android.os.SystemClock;
+import org.akita.util.Log;
+import org.akita.util.SingleFlight;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Dns caching the addresses of the delegate for ttl millis in memory,
+ * the concurrent lookups of a host share one resolution.
+ * <p>
+ * With staleTtl, an expired entry younger than ttl + staleTtl is returned at once
+ * and refreshed in background, and is the fallback when the resolution fails.
+ * The hosts known at app start can be resolved in background by prefetch.
+ * </p>
+ */
+public class DnsCache implements Dns {
+    private static final String TAG = "DnsCache";
+
+    private static final DnsCache sDefault = new DnsCache(Dns.SYSTEM, 60 * 1000L, 0);
+
+    private final Dns mDelegate;
+    private final long mTtl;
+    private final long mStaleTtl;
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+    private final SingleFlight<String, InetAddress[]> mLookups =
+            new SingleFlight<String, InetAddress[]>();
+    /**
+     * hosts being refreshed in background
+     */
+    private final ConcurrentHashMap<String, Boolean> mRefreshing =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * @param delegate the resolver
+     * @param ttl millis the addresses are fresh
+     * @param staleTtl millis after ttl the addresses are served stale, 0 if never
+     */
+    public DnsCache(Dns delegate, long ttl, long staleTtl) {
+        if (ttl < 0 || staleTtl < 0) throw new IllegalArgumentException("Can not be negative");
+        mDelegate = delegate;
+        mTtl = ttl;
+        mStaleTtl = staleTtl;
+    }
+
+    /**
+     * @return the DnsCache of the system resolver with 60s ttl and no stale serving,
+     * the default Dns of HttpConfig
+     */
+    public static DnsCache getDefault() {
+        return sDefault;
+    }
+
+    public InetAddress[] lookup(String host) throws UnknownHostException {
+        Entry entry = mEntries.get(host);
+        long now = SystemClock.elapsedRealtime();
+        if (entry != null) {
+            if (now < entry.expiresAt) {
+                return entry.addresses;
+            }
+            if (now < entry.expiresAt + mStaleTtl) {
+                refreshAsync(host);
+                return entry.addresses;
+            }
+        }
+        return resolve(host);
+    }
+
+    /**
+     * Resolve the hosts in background, ignoring the failures
+     * @param hosts host names, or urls
+     */
+    public void prefetch(String... hosts) {
+        for (String host : hosts) {
+            if (host == null) continue;
+            if (host.indexOf("://") > 0) {
+                host = URI.create(host).getHost();
+                if (host == null) continue;
+            }
+            Entry entry = mEntries.get(host);
+            if (entry == null || SystemClock.elapsedRealtime() >= entry.expiresAt) {
+                refreshAsync(host);
+            }
+        }
+    }
+
+    /**
+     * @param host host name
+     */
+    public void evict(String host) {
+        mEntries.remove(host);
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+
+    private InetAddress[] resolve(final String host) throws UnknownHostException {
+        try {
+            return mLookups.execute(host, new Callable<InetAddress[]>() {
+                public InetAddress[] call() throws UnknownHostException {
+                    return resolveOnce(host);
+                }
+            });
+        } catch (UnknownHostException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            UnknownHostException uhe = new UnknownHostException(host);
+            uhe.initCause(e);
+            throw uhe;
+        }
+    }
+
+    private InetAddress[] resolveOnce(String host) throws UnknownHostException {
+        InetAddress[] addresses;
+        try {
+            addresses = mDelegate.lookup(host);
+        } catch (UnknownHostException e) {
+            Entry stale = mEntries.get(host);
+            if (stale != null
+                    && SystemClock.elapsedRealtime() < stale.expiresAt + mStaleTtl) {
+                Log.w(TAG, "Can not resolve {}, use the stale addresses, {}", host, e);
+                return stale.addresses;
+            }
+            throw e;
+        }
+        if (addresses == null || addresses.length == 0) {
+            throw new UnknownHostException(host);
+        }
+        mEntries.put(host, new Entry(addresses, SystemClock.elapsedRealtime() + mTtl));
+        return addresses;
+    }
+
+    private void refreshAsync(final String host) {
+        if (mRefreshing.putIfAbsent(host, Boolean.TRUE) != null) return;
+        try {
+            HttpDispatcher.submit(new Runnable() {
+                public void run() {
+                    try {
+                        resolve(host);
+                    } catch (UnknownHostException e) {
+                        Log.w(TAG, "Can not resolve {}, {}", host, e);
+                    } finally {
+                        mRefreshing.remove(host);
+                    }
+                }
+            }, HttpDispatcher.PRIORITY_BACKGROUND);
+        } catch (RejectedExecutionException e) {
+            // the dispatcher is busy, resolve on the next lookup
+            mRefreshing.remove(host);
+        }
+    }
+
+    private static class Entry {
+        final InetAddress[] addresses;
+        final long expiresAt;
+
+        Entry(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
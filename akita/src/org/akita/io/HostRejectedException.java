@@ -0,0 +1,41 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import org.akita.exception.AkInvokeException;
+
+import java.io.IOException;
+
+/**
+ * Thrown by HttpInvoker.execute when the request is failed fast by the CircuitBreaker
+ * of its host, the circuit is open or the host has too many requests in flight.
+ * Not worth a retry.
+ */
+public class HostRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * AkInvokeException.CODE_CIRCUIT_OPEN or CODE_HOST_OVERLOADED
+     */
+    public final int code;
+
+    public HostRejectedException(int code, String detailMessage) {
+        super(detailMessage);
+        this.code = code;
+    }
+
+    public AkInvokeException toInvokeException() {
+        return new AkInvokeException(code, getMessage(), this);
+    }
+}
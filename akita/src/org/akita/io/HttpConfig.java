@@ -0,0 +1,266 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+/**
+ * Connection pool and timeout configuration of HttpInvoker, built by HttpConfig.Builder
+ * and applied at runtime by HttpInvoker.configure.
+ * Timeouts are set per request class, the api invocations, image loading,
+ * file uploading and downloading.
+ */
+public class HttpConfig {
+
+    public static final int REQUEST_API = 0;
+    public static final int REQUEST_IMAGE = 1;
+    public static final int REQUEST_UPLOAD = 2;
+    public static final int REQUEST_DOWNLOAD = 3;
+    private static final int REQUEST_CLASS_COUNT = 4;
+
+    /**
+     * int param of the request holding its request class, set by HttpInvoker.execute
+     * for the transport
+     */
+    public static final String PARAM_REQUEST_CLASS = "org.akita.request-class";
+
+    public final int maxConnectionsPerRoute;
+    public final int maxTotalConnections;
+    /**
+     * millis a pooled connection can be idle before evicted
+     */
+    public final long idleTimeout;
+    public final boolean keepAlive;
+    /**
+     * max requests in flight to one host, the more are failed fast
+     */
+    public final int maxRequestsPerHost;
+    /**
+     * count of the recent requests the failure rate is computed on, 0 if no circuit breaking
+     */
+    public final int circuitWindowSize;
+    public final int circuitMinRequests;
+    public final float circuitFailureRate;
+    /**
+     * millis of the api or image request counted as a failure, 0 if no limit
+     */
+    public final long slowCallThreshold;
+    /**
+     * millis the circuit keeps open before the probe
+     */
+    public final long circuitOpenDuration;
+    /**
+     * resolver of the hosts, DnsCache.getDefault() by default
+     */
+    public final Dns dns;
+    private final int[] connectTimeouts;
+    private final int[] readTimeouts;
+    private final boolean[] trustAllCertificates;
+
+    private HttpConfig(Builder builder) {
+        maxConnectionsPerRoute = builder.maxConnectionsPerRoute;
+        maxTotalConnections = Math.max(builder.maxTotalConnections, builder.maxConnectionsPerRoute);
+        idleTimeout = builder.idleTimeout;
+        keepAlive = builder.keepAlive;
+        maxRequestsPerHost = builder.maxRequestsPerHost;
+        circuitWindowSize = builder.circuitWindowSize;
+        circuitMinRequests = builder.circuitMinRequests;
+        circuitFailureRate = builder.circuitFailureRate;
+        slowCallThreshold = builder.slowCallThreshold;
+        circuitOpenDuration = builder.circuitOpenDuration;
+        dns = builder.dns;
+        connectTimeouts = builder.connectTimeouts.clone();
+        readTimeouts = builder.readTimeouts.clone();
+        trustAllCertificates = builder.trustAllCertificates.clone();
+    }
+
+    /**
+     * @param requestClass REQUEST_API, REQUEST_IMAGE, REQUEST_UPLOAD or REQUEST_DOWNLOAD
+     * @return connect timeout millis
+     */
+    public int connectTimeout(int requestClass) {
+        return connectTimeouts[requestClass];
+    }
+
+    /**
+     * @param requestClass REQUEST_API, REQUEST_IMAGE, REQUEST_UPLOAD or REQUEST_DOWNLOAD
+     * @return read (socket) timeout millis
+     */
+    public int readTimeout(int requestClass) {
+        return readTimeouts[requestClass];
+    }
+
+    /**
+     * @param requestClass REQUEST_API, REQUEST_IMAGE, REQUEST_UPLOAD or REQUEST_DOWNLOAD
+     * @return whether the https requests of the class skip the certificate verification
+     */
+    public boolean trustAllCertificates(int requestClass) {
+        return trustAllCertificates[requestClass];
+    }
+
+    public Builder newBuilder() {
+        return new Builder(this);
+    }
+
+    public static class Builder {
+        private int maxConnectionsPerRoute = 6;
+        private int maxTotalConnections = 24;
+        private long idleTimeout = 30 * 1000L;
+        private boolean keepAlive = true;
+        private int maxRequestsPerHost = 16;
+        private int circuitWindowSize = 20;
+        private int circuitMinRequests = 10;
+        private float circuitFailureRate = 0.5f;
+        private long slowCallThreshold = 10 * 1000L;
+        private long circuitOpenDuration = 30 * 1000L;
+        private Dns dns = DnsCache.getDefault();
+        private final int[] connectTimeouts = {8000, 8000, 8000, 8000};
+        private final int[] readTimeouts = {15000, 15000, 60000, 30000};
+        private final boolean[] trustAllCertificates = {true, true, false, false};
+
+        public Builder() {
+        }
+
+        private Builder(HttpConfig config) {
+            maxConnectionsPerRoute = config.maxConnectionsPerRoute;
+            maxTotalConnections = config.maxTotalConnections;
+            idleTimeout = config.idleTimeout;
+            keepAlive = config.keepAlive;
+            maxRequestsPerHost = config.maxRequestsPerHost;
+            circuitWindowSize = config.circuitWindowSize;
+            circuitMinRequests = config.circuitMinRequests;
+            circuitFailureRate = config.circuitFailureRate;
+            slowCallThreshold = config.slowCallThreshold;
+            circuitOpenDuration = config.circuitOpenDuration;
+            dns = config.dns;
+            System.arraycopy(config.connectTimeouts, 0, connectTimeouts, 0, REQUEST_CLASS_COUNT);
+            System.arraycopy(config.readTimeouts, 0, readTimeouts, 0, REQUEST_CLASS_COUNT);
+            System.arraycopy(config.trustAllCertificates, 0, trustAllCertificates, 0,
+                    REQUEST_CLASS_COUNT);
+        }
+
+        /**
+         * @param max max connections to one host (route), default 6
+         */
+        public Builder setMaxConnectionsPerRoute(int max) {
+            if (max <= 0) throw new IllegalArgumentException("max must be positive");
+            maxConnectionsPerRoute = max;
+            return this;
+        }
+
+        /**
+         * @param max max connections of all hosts, default 24
+         */
+        public Builder setMaxTotalConnections(int max) {
+            if (max <= 0) throw new IllegalArgumentException("max must be positive");
+            maxTotalConnections = max;
+            return this;
+        }
+
+        /**
+         * @param millis idle connections longer than it are evicted from pool, default 30s
+         */
+        public Builder setIdleTimeout(long millis) {
+            if (millis < 0) throw new IllegalArgumentException("millis can not be negative");
+            idleTimeout = millis;
+            return this;
+        }
+
+        /**
+         * @param keepAlive false to close the connection after each request, default true
+         */
+        public Builder setKeepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * @param max max requests in flight to one host, the more are failed fast
+         *            with AkInvokeException.CODE_HOST_OVERLOADED, default 16
+         */
+        public Builder setMaxRequestsPerHost(int max) {
+            if (max <= 0) throw new IllegalArgumentException("max must be positive");
+            maxRequestsPerHost = max;
+            return this;
+        }
+
+        /**
+         * The circuit of a host opens when failureRate of its recent windowSize requests
+         * failed (at least minRequests), then its requests fail fast with
+         * AkInvokeException.CODE_CIRCUIT_OPEN for openDuration, see CircuitBreaker.
+         * @param windowSize count of the recent requests, 0 to disable, default 20
+         * @param minRequests requests needed before the circuit can open, default 10
+         * @param failureRate (0, 1], default 0.5
+         * @param slowCallThreshold millis the api or image request is counted as a failure,
+         *                          0 if no limit, default 10s
+         * @param openDuration millis before the probe request, default 30s
+         */
+        public Builder setCircuitBreaker(int windowSize, int minRequests, float failureRate,
+                                         long slowCallThreshold, long openDuration) {
+            if (windowSize < 0 || minRequests < 0 || slowCallThreshold < 0 || openDuration < 0) {
+                throw new IllegalArgumentException("Can not be negative");
+            }
+            if (failureRate <= 0 || failureRate > 1) {
+                throw new IllegalArgumentException("failureRate must be in (0, 1]");
+            }
+            circuitWindowSize = windowSize;
+            circuitMinRequests = minRequests;
+            circuitFailureRate = failureRate;
+            this.slowCallThreshold = slowCallThreshold;
+            circuitOpenDuration = openDuration;
+            return this;
+        }
+
+        /**
+         * @param dns resolver of the hosts, DnsCache.getDefault() by default,
+         *            Dns.SYSTEM for no caching. Only ApacheHttpTransport connects through it.
+         */
+        public Builder setDns(Dns dns) {
+            if (dns == null) throw new IllegalArgumentException("dns can not be null");
+            this.dns = dns;
+            return this;
+        }
+
+        /**
+         * @param requestClass REQUEST_API, REQUEST_IMAGE, REQUEST_UPLOAD or REQUEST_DOWNLOAD
+         * @param connectTimeout millis, default 8s
+         * @param readTimeout millis, default 15s, 60s for REQUEST_UPLOAD, 30s for REQUEST_DOWNLOAD
+         */
+        public Builder setTimeouts(int requestClass, int connectTimeout, int readTimeout) {
+            if (requestClass < 0 || requestClass >= REQUEST_CLASS_COUNT) {
+                throw new IllegalArgumentException("Unknown request class " + requestClass);
+            }
+            connectTimeouts[requestClass] = connectTimeout;
+            readTimeouts[requestClass] = readTimeout;
+            return this;
+        }
+
+        /**
+         * Whether the https requests of the class trust all certificates and host names.
+         * Only ApacheHttpTransport honors it, UrlConnectionHttpTransport always verifies.
+         * @param requestClass REQUEST_API, REQUEST_IMAGE, REQUEST_UPLOAD or REQUEST_DOWNLOAD
+         * @param trustAll default true for REQUEST_API and REQUEST_IMAGE as they always did,
+         *                 false for REQUEST_UPLOAD and REQUEST_DOWNLOAD
+         */
+        public Builder setTrustAllCertificates(int requestClass, boolean trustAll) {
+            if (requestClass < 0 || requestClass >= REQUEST_CLASS_COUNT) {
+                throw new IllegalArgumentException("Unknown request class " + requestClass);
+            }
+            trustAllCertificates[requestClass] = trustAll;
+            return this;
+        }
+
+        public HttpConfig build() {
+            return new HttpConfig(this);
+        }
+    }
+}
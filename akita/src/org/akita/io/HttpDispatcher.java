@@ -0,0 +1,191 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Central dispatcher of the http work, the api invocations and image loading share
+ * its workers. The queued tasks run by priority, then FIFO. The lower the priority,
+ * the fewer workers it may occupy, so a burst of prefetching never holds all workers
+ * while an interactive request waits.
+ */
+public class HttpDispatcher {
+
+    /**
+     * user-visible api invocation
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    /**
+     * image of a view on screen
+     */
+    public static final int PRIORITY_VISIBLE_IMAGE = 1;
+    /**
+     * image not on screen yet, or scrolled off
+     */
+    public static final int PRIORITY_PREFETCH = 2;
+    public static final int PRIORITY_BACKGROUND = 3;
+    private static final int PRIORITY_COUNT = 4;
+
+    private static final int DEFAULT_MAX_RUNNING = 6;
+    private static final int MAX_QUEUED = 256;
+
+    private static final PriorityQueue<DispatchTask> sQueue = new PriorityQueue<DispatchTask>();
+    /**
+     * count of the running tasks of each priority
+     */
+    private static final int[] sRunning = new int[PRIORITY_COUNT];
+    private static int sMaxRunning = DEFAULT_MAX_RUNNING;
+    private static long sSequence;
+
+    private static final ThreadPoolExecutor sWorkers = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, 30L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "akita-http #" + mCount.getAndIncrement());
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                }
+            });
+
+    /**
+     * Queue the work
+     * @param runnable the http work
+     * @param priority PRIORITY_INTERACTIVE, PRIORITY_VISIBLE_IMAGE, PRIORITY_PREFETCH or PRIORITY_BACKGROUND
+     * @return the task to reprioritize or cancel the work
+     * @throws RejectedExecutionException if too many tasks queued
+     */
+    public static DispatchTask submit(Runnable runnable, int priority) {
+        checkPriority(priority);
+        DispatchTask task;
+        synchronized (HttpDispatcher.class) {
+            if (sQueue.size() >= MAX_QUEUED) {
+                throw new RejectedExecutionException("Too many http tasks queued");
+            }
+            task = new DispatchTask(runnable, priority, sSequence++);
+            sQueue.add(task);
+        }
+        promote();
+        return task;
+    }
+
+    /**
+     * @param priority priority of the work executed by the returned executor
+     * @return executor submitting the work to the dispatcher
+     */
+    public static Executor executor(final int priority) {
+        checkPriority(priority);
+        return new Executor() {
+            public void execute(Runnable command) {
+                submit(command, priority);
+            }
+        };
+    }
+
+    /**
+     * @param maxRunning max tasks running at the same time, default 6
+     */
+    public static void setMaxRunning(int maxRunning) {
+        if (maxRunning < PRIORITY_COUNT) {
+            throw new IllegalArgumentException("maxRunning must be at least " + PRIORITY_COUNT);
+        }
+        synchronized (HttpDispatcher.class) {
+            sMaxRunning = maxRunning;
+        }
+        promote();
+    }
+
+    public static synchronized int getQueuedCount() {
+        return sQueue.size();
+    }
+
+    public static synchronized int getRunningCount() {
+        int running = 0;
+        for (int count : sRunning) {
+            running += count;
+        }
+        return running;
+    }
+
+    static void checkPriority(int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+    }
+
+    /**
+     * Requeue the queued task by its new priority
+     */
+    static void reprioritize(DispatchTask task, int priority) {
+        synchronized (HttpDispatcher.class) {
+            if (sQueue.remove(task)) {
+                task.mPriority = priority;
+                sQueue.add(task);
+            } else {
+                task.mPriority = priority;
+            }
+        }
+        promote();
+    }
+
+    /**
+     * @return false if the task is not queued
+     */
+    static synchronized boolean dequeue(DispatchTask task) {
+        return sQueue.remove(task);
+    }
+
+    static void finished(DispatchTask task) {
+        synchronized (HttpDispatcher.class) {
+            sRunning[task.mRunningPriority]--;
+        }
+        promote();
+    }
+
+    /**
+     * Run the queued tasks while the workers are available to their priorities,
+     * tasks of priority p may occupy at most maxRunning - p workers.
+     */
+    private static void promote() {
+        while (true) {
+            DispatchTask task;
+            synchronized (HttpDispatcher.class) {
+                task = sQueue.peek();
+                if (task == null) return;
+                int total = 0;
+                int notHigher = 0;
+                for (int p = 0; p < PRIORITY_COUNT; p++) {
+                    total += sRunning[p];
+                    if (p >= task.mPriority) notHigher += sRunning[p];
+                }
+                if (total >= sMaxRunning || notHigher >= sMaxRunning - task.mPriority) {
+                    return; // the tasks after it have the same or lower priority
+                }
+                sQueue.poll();
+                task.mRunningPriority = task.mPriority;
+                sRunning[task.mRunningPriority]++;
+            }
+            sWorkers.execute(task);
+        }
+    }
+}
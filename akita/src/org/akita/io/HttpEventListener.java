@@ -0,0 +1,112 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+
+/**
+ * Listener of the lifecycle of the api invocations and their http requests,
+ * to build tracing or dashboards. Register it by HttpInvoker.setEventListener,
+ * no event is built when none is registered.
+ * <p>
+ * An api invocation (call) goes: callStart, urlResolved, signatureComputed (if signed),
+ * then for each try its requests go: requestStart, connectionAcquired, requestSent,
+ * headersReceived (or requestFailed), then bodyDecoded, and at last callEnd or callFailed.
+ * The requests not made by an api invocation have callId 0.
+ * connectionAcquired and requestSent are not reported by every transport.
+ * </p>
+ * The events are called on the thread doing the work, keep them cheap.
+ * Override the events of interest, the others are no-op.
+ */
+public abstract class HttpEventListener {
+    private static final ThreadLocal<Long> sCurrentCall = new ThreadLocal<Long>();
+
+    /**
+     * @param callId id of the invocation, unique in the process
+     * @param apiName name of the api method
+     */
+    public void callStart(long callId, String apiName) {
+    }
+
+    /**
+     * @param url the url with params if GET, otherwise the url to post
+     */
+    public void urlResolved(long callId, String apiName, String url) {
+    }
+
+    public void signatureComputed(long callId, String apiName, String signature) {
+    }
+
+    public void requestStart(long callId, HttpUriRequest request) {
+    }
+
+    public void connectionAcquired(long callId, HttpUriRequest request) {
+    }
+
+    public void requestSent(long callId, HttpUriRequest request) {
+    }
+
+    public void headersReceived(long callId, HttpUriRequest request, HttpResponse response) {
+    }
+
+    /**
+     * the request got no response
+     */
+    public void requestFailed(long callId, HttpUriRequest request, IOException e) {
+    }
+
+    /**
+     * @param result the decoded result of a try
+     */
+    public void bodyDecoded(long callId, String apiName, Object result) {
+    }
+
+    /**
+     * the invocation succeeded, after the retries if any
+     */
+    public void callEnd(long callId, String apiName) {
+    }
+
+    /**
+     * the invocation failed, after the retries if any
+     */
+    public void callFailed(long callId, String apiName, Exception e) {
+    }
+
+    /**
+     * Bind the invocation to current thread, its http requests report callId
+     * @param callId id of the invocation, 0 to unbind
+     * @return the id bound before, to restore it
+     */
+    public static long bindCall(long callId) {
+        Long previous = sCurrentCall.get();
+        if (callId == 0) {
+            sCurrentCall.remove();
+        } else {
+            sCurrentCall.set(callId);
+        }
+        return previous == null ? 0 : previous;
+    }
+
+    /**
+     * @return id of the invocation bound to current thread, 0 if none
+     */
+    public static long currentCall() {
+        Long callId = sCurrentCall.get();
+        return callId == null ? 0 : callId;
+    }
+}
@@ -17,6 +17,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.SystemClock;
 import android.widget.ProgressBar;
+import org.akita.cache.RawFilesCache;
 import org.akita.exception.AkInvokeException;
 import org.akita.exception.AkServerStatusException;
 import org.akita.util.ImageUtil;
@@ -26,25 +27,19 @@ import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
-import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 
 /**
@@ -53,71 +48,277 @@ import java.util.Map;
  * Post(not idempotent) 
  * Put
  * Delete
- * Post With Files (URLConnection Impl)
+ * Post With Files (multipart)
+ * All the requests go through the HttpTransport, see setTransport
  * @author zhe.yangz 2011-12-30 下午01:49:38
  */
 public class HttpInvoker {
     private static String TAG = "HttpInvoker";
     private static String CHARSET = HTTP.UTF_8;
     
-    private static ThreadSafeClientConnManager connectionManager;
-    private static DefaultHttpClient client;
-    
-    static {
-        init();
+    private static volatile HttpConfig sConfig = new HttpConfig.Builder().build();
+    /**
+     * created on first use by getTransport
+     */
+    private static volatile HttpTransport sTransport;
+    /**
+     * null if no listener, so no event is built
+     */
+    private static volatile HttpEventListener sEventListener;
+    private static final ConcurrentHashMap<String, CircuitBreaker> sCircuitBreakers =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+    /**
+     * materialize the entity to String
+     */
+    private static final ResponseDecoder<String> STRING_DECODER = new ResponseDecoder<String>() {
+        public String decode(HttpEntity entity) throws IOException {
+            return EntityUtils.toString(entity, CHARSET);
+        }
+    };
+
+    /**
+     * Apply the pool and timeout configuration at runtime,
+     * the requests in flight keep their settings.
+     * @param config built by HttpConfig.Builder
+     */
+    public static void configure(HttpConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("config can not be null");
+        }
+        synchronized (HttpInvoker.class) {
+            sConfig = config;
+            if (sTransport != null) {
+                sTransport.configure(config);
+            }
+        }
     }
-    
+
+    public static HttpConfig getConfig() {
+        return sConfig;
+    }
+
     /**
-     * init
+     * Open a keep-alive connection to each host of the urls in background,
+     * so the first api call and image skip the tcp and tls handshakes.
+     * Call it when the app starts, with the api and image cdn urls.
+     * @param urls urls of the hosts, the paths are ignored
      */
-    private static void init() {
-        
-        SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(
-                new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-        schemeRegistry.register(
-                new Scheme("https", _FakeSSLSocketFactory.getSocketFactory(), 443));
-        
-        HttpParams params = new BasicHttpParams();
-        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-        HttpProtocolParams.setContentCharset(params, "utf-8");
-        HttpConnectionParams.setConnectionTimeout(params, 8000);
-        HttpConnectionParams.setSoTimeout(params, 15000);
-        params.setBooleanParameter("http.protocol.expect-continue", false);
-
-        connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
-        client = new DefaultHttpClient(connectionManager, params);
-        
-        // enable gzip support in Request and Response. 
-        client.addRequestInterceptor(new HttpRequestInterceptor() {
-            public void process(
-                    final HttpRequest request,
-                    final HttpContext context) throws HttpException, IOException {
-                if (!request.containsHeader("Accept-Encoding")) {
-                    request.addHeader("Accept-Encoding", "gzip");
-                }
+    public static void warmUp(String... urls) {
+        warmUp(1, urls);
+    }
+
+    /**
+     * @param connectionsPerHost connections to open to each host,
+     *                           at most HttpConfig.maxConnectionsPerRoute are kept
+     * @param urls urls of the hosts, the paths are ignored
+     */
+    public static void warmUp(final int connectionsPerHost, String... urls) {
+        HashSet<String> origins = new HashSet<String>();
+        for (String url : urls) {
+            URI uri;
+            try {
+                uri = URI.create(url);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Can not warm up {}, {}", url, e);
+                continue;
             }
-        });
-        client.addResponseInterceptor(new HttpResponseInterceptor() {
-            public void process(
-                    final HttpResponse response,
-                    final HttpContext context) throws HttpException, IOException {
-                HttpEntity entity = response.getEntity();
-                //Log.i("ContentLength", entity.getContentLength()+"");
-                Header ceheader = entity.getContentEncoding();
-                if (ceheader != null) {
-                    HeaderElement[] codecs = ceheader.getElements();
-                    for (int i = 0; i < codecs.length; i++) {
-                        if (codecs[i].getName().equalsIgnoreCase("gzip")) {
-                            response.setEntity(
-                                    new GzipDecompressingEntity(response.getEntity()));
+            if (uri.getHost() == null || uri.getScheme() == null) continue;
+            final URI origin = URI.create(uri.getScheme().toLowerCase() + "://"
+                    + uri.getHost().toLowerCase() + (uri.getPort() < 0 ? "" : ":" + uri.getPort()));
+            if (!origins.add(origin.toString())) continue;
+            try {
+                HttpDispatcher.submit(new Runnable() {
+                    public void run() {
+                        CircuitBreaker breaker = getCircuitBreaker(origin.getHost());
+                        if (breaker != null
+                                && breaker.getState() == CircuitBreaker.STATE_OPEN) {
                             return;
                         }
+                        try {
+                            getTransport().warmUp(origin, connectionsPerHost);
+                            Log.v(TAG, "warmed up {}", origin);
+                        } catch (IOException e) {
+                            Log.w(TAG, "Can not warm up {}, {}", origin, e);
+                        }
                     }
+                }, HttpDispatcher.PRIORITY_BACKGROUND);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Too many http tasks queued, " + origin + " not warmed up");
+            }
+        }
+    }
+
+    /**
+     * Resolve the api and image hosts in background when the app starts,
+     * so the first requests skip the dns lookup. No-op if the Dns of HttpConfig
+     * is not a DnsCache.
+     * @param hosts host names, or urls
+     */
+    public static void prefetchDns(String... hosts) {
+        Dns dns = sConfig.dns;
+        if (dns instanceof DnsCache) {
+            ((DnsCache) dns).prefetch(hosts);
+        }
+    }
+
+    /**
+     * Replace the transport engine, the previous one is shut down,
+     * so set it once when the app starts. Default is ApacheHttpTransport.
+     * The current HttpConfig is applied to it.
+     * @param transport such as UrlConnectionHttpTransport
+     */
+    public static void setTransport(HttpTransport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport can not be null");
+        }
+        HttpTransport old;
+        synchronized (HttpInvoker.class) {
+            transport.configure(sConfig);
+            old = sTransport;
+            sTransport = transport;
+        }
+        if (old != null && old != transport) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * @param listener listener of the api invocations and http requests, null to remove
+     */
+    public static void setEventListener(HttpEventListener listener) {
+        sEventListener = listener;
+    }
+
+    /**
+     * @return the listener, null if none
+     */
+    public static HttpEventListener getEventListener() {
+        return sEventListener;
+    }
+
+    public static HttpTransport getTransport() {
+        HttpTransport transport = sTransport;
+        if (transport == null) {
+            synchronized (HttpInvoker.class) {
+                if (sTransport == null) {
+                    sTransport = new ApacheHttpTransport(sConfig);
                 }
+                transport = sTransport;
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * execute the request through the transport, with the timeouts of its request class.
+     * The request is failed fast by the CircuitBreaker of its host, the permit of the host
+     * is held until the response headers are received.
+     * The request is aborted when the CancellationToken of current thread is cancelled.
+     * Its timings and byte counts are recorded by NetworkMetrics,
+     * and its events are reported to the HttpEventListener.
+     * The caller must consume the entity of the response.
+     * @param request request
+     * @param requestClass HttpConfig.REQUEST_API, REQUEST_IMAGE, REQUEST_UPLOAD or REQUEST_DOWNLOAD
+     * @return raw response, whatever its status
+     * @throws HostRejectedException if the circuit of the host is open or the host is overloaded
+     */
+    public static HttpResponse execute(HttpUriRequest request, int requestClass)
+            throws IOException {
+        HttpConfig config = sConfig;
+        HttpConnectionParams.setConnectionTimeout(request.getParams(),
+                config.connectTimeout(requestClass));
+        HttpConnectionParams.setSoTimeout(request.getParams(), config.readTimeout(requestClass));
+        request.getParams().setIntParameter(HttpConfig.PARAM_REQUEST_CLASS, requestClass);
+        CancellationToken token = CancellationToken.current();
+        if (token != null) {
+            token.register(request);
+        }
+
+        HttpEventListener listener = sEventListener;
+        long callId = listener == null ? 0 : HttpEventListener.currentCall();
+        if (listener != null) {
+            listener.requestStart(callId, request);
+        }
+        RequestMetrics metrics = NetworkMetrics.begin(request, requestClass);
+        HttpResponse response;
+        try {
+            response = executeGuarded(request, requestClass, config);
+        } catch (IOException e) {
+            if (metrics != null) NetworkMetrics.onFailure(metrics);
+            if (listener != null) listener.requestFailed(callId, request, e);
+            throw e;
+        } catch (RuntimeException e) {
+            if (metrics != null) NetworkMetrics.onFailure(metrics);
+            throw e;
+        }
+        if (listener != null) {
+            listener.headersReceived(callId, request, response);
+        }
+        if (metrics != null) {
+            NetworkMetrics.onResponse(metrics, response);
+        }
+        return response;
+    }
+
+    /**
+     * execute the request guarded by the CircuitBreaker of its host
+     */
+    private static HttpResponse executeGuarded(HttpUriRequest request, int requestClass,
+                                               HttpConfig config) throws IOException {
+        CircuitBreaker breaker = getCircuitBreaker(request.getURI().getHost());
+        if (breaker == null) {
+            return getTransport().execute(request);
+        }
+        breaker.acquire(config);
+        long start = SystemClock.elapsedRealtime();
+        boolean failed = true;
+        try {
+            HttpResponse response = getTransport().execute(request);
+            int statusCode = response.getStatusLine().getStatusCode();
+            failed = statusCode >= 500 || statusCode == 429;
+            return response;
+        } finally {
+            if (request.isAborted()) {
+                // cancelled by the caller, says nothing about the host
+                breaker.releaseCancelled();
+            } else {
+                // uploads and downloads are slow by nature, only the api and image calls are timed
+                long elapsed = (requestClass == HttpConfig.REQUEST_API
+                        || requestClass == HttpConfig.REQUEST_IMAGE) ?
+                        SystemClock.elapsedRealtime() - start : 0;
+                breaker.release(config, failed, elapsed);
+            }
+        }
+    }
+
+    /**
+     * @param host host name
+     * @return the circuit breaker of the host, null if host is null
+     */
+    public static CircuitBreaker getCircuitBreaker(String host) {
+        if (host == null) {
+            return null;
+        }
+        host = host.toLowerCase();
+        CircuitBreaker breaker = sCircuitBreakers.get(host);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(host);
+            CircuitBreaker existing = sCircuitBreakers.putIfAbsent(host, breaker);
+            if (existing != null) {
+                breaker = existing;
             }
-        });
-        
+        }
+        return breaker;
+    }
+
+    /**
+     * Close the circuits of all hosts, such as when the network is changed
+     */
+    public static void resetCircuitBreakers() {
+        for (CircuitBreaker breaker : sCircuitBreakers.values()) {
+            breaker.reset();
+        }
     }
 
     public static String get(String url) throws AkServerStatusException, AkInvokeException {
@@ -126,8 +327,21 @@ public class HttpInvoker {
 
     public static String get(String url, Header[] headers)
     throws AkServerStatusException, AkInvokeException {
-        Log.v(TAG, "get:" + url);
-        String retString = null;
+        String retString = get(url, headers, STRING_DECODER);
+        Log.v(TAG, "response:{}", retString);
+        return retString;
+    }
+
+    /**
+     * get and decode the response entity using decoder, without materializing it to String
+     * @param url url
+     * @param headers headers, may be null
+     * @param decoder decoder of the response entity
+     * @return decoded result, null if the response has no entity
+     */
+    public static <T> T get(String url, Header[] headers, ResponseDecoder<T> decoder)
+    throws AkServerStatusException, AkInvokeException {
+        Log.v(TAG, "get:{}", url);
         try {
             HttpGet request = new HttpGet(url);
             if (headers != null) {
@@ -135,32 +349,128 @@ public class HttpInvoker {
                     request.addHeader(header);
                 }
             }
-            HttpResponse response = client.execute(request);
+            HttpResponse response = execute(request, HttpConfig.REQUEST_API);
+            return handleResponse(response, decoder);
+        } catch (HostRejectedException hre) {
+            throw hre.toInvokeException();
+        } catch (ClientProtocolException cpe) {
+            Log.e(TAG, cpe.toString(), cpe);
+            throw new AkInvokeException(AkInvokeException.CODE_HTTP_PROTOCOL_ERROR,
+                    cpe.toString(), cpe);
+        } catch (IOException ioe) {
+            checkCancelled(ioe);
+            Log.e(TAG, ioe.toString(), ioe);
+            throw new AkInvokeException(AkInvokeException.CODE_CONNECTION_ERROR,
+                    ioe.toString(), ioe);
+        }
+    }
+
+    /**
+     * throw CODE_REQUEST_CANCELLED if the failure is caused by the cancellation
+     * of current thread's CancellationToken
+     */
+    private static void checkCancelled(IOException e) throws AkInvokeException {
+        CancellationToken token = CancellationToken.current();
+        if (token != null && token.isCancelled()) {
+            throw new AkInvokeException(AkInvokeException.CODE_REQUEST_CANCELLED,
+                    "Request cancelled", e);
+        }
+    }
+
+    /**
+     * decode the entity of successful response, or throw AkServerStatusException
+     */
+    private static <T> T handleResponse(HttpResponse response, ResponseDecoder<T> decoder)
+            throws IOException, AkInvokeException, AkServerStatusException {
+        int statusCode = response.getStatusLine().getStatusCode();
+        HttpEntity resEntity = response.getEntity();
+        if (statusCode == HttpStatus.SC_OK
+         || statusCode == HttpStatus.SC_CREATED
+         || statusCode == HttpStatus.SC_ACCEPTED) {
+            if (resEntity == null) {
+                return null;
+            }
+            try {
+                return decoder.decode(resEntity);
+            } finally {
+                try {
+                    resEntity.consumeContent(); // release the connection
+                } catch (Exception ignore) { }
+            }
+        } else {
+            throw new AkServerStatusException(
+                    statusCode,
+                    EntityUtils.toString(resEntity, CHARSET));
+        }
+    }
+
+    /**
+     * get using the installed HttpResponseCache, fresh cached response is returned
+     * without network, stale one is revalidated with If-None-Match/If-Modified-Since.
+     * @param url url
+     * @param defaultMaxAge seconds the response is fresh if the server gives no freshness info
+     * @return response string
+     */
+    public static String getCached(String url, int defaultMaxAge)
+    throws AkServerStatusException, AkInvokeException {
+        HttpResponseCache cache = HttpResponseCache.getInstalled();
+        if (cache == null) {
+            return get(url);
+        }
+        long now = System.currentTimeMillis();
+        HttpResponseCache.Entry cached = cache.get(url);
+        if (cached != null && cached.isFresh(now)) {
+            Log.v(TAG, "cache hit:{}", url);
+            return cached.body;
+        }
+
+        Log.v(TAG, "get:{}", url);
+        try {
+            HttpGet request = new HttpGet(url);
+            Header[] validators = cached == null ? null : cached.validators();
+            if (validators != null) {
+                for (Header header : validators) {
+                    request.addHeader(header);
+                }
+            }
+            HttpResponse response = execute(request, HttpConfig.REQUEST_API);
             int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode == HttpStatus.SC_OK
-             || statusCode == HttpStatus.SC_CREATED
-             || statusCode == HttpStatus.SC_ACCEPTED) {
-                HttpEntity resEntity = response.getEntity();
-                retString = (resEntity == null) ?
-                    null : EntityUtils.toString(resEntity, CHARSET);
+            HttpEntity resEntity = response.getEntity();
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                if (resEntity != null) {
+                    resEntity.consumeContent();
+                }
+                Log.v(TAG, "not modified:{}", url);
+                cached.revalidated(response, defaultMaxAge, now);
+                cache.put(url, cached);
+                return cached.body;
+            } else if (statusCode == HttpStatus.SC_OK) {
+                String retString = (resEntity == null) ?
+                        null : EntityUtils.toString(resEntity, CHARSET);
+                HttpResponseCache.Entry entry = (retString == null) ?
+                        null : HttpResponseCache.Entry.of(response, retString, defaultMaxAge, now);
+                if (entry != null) {
+                    cache.put(url, entry);
+                } else if (cached != null) {
+                    cache.remove(url);
+                }
+                Log.v(TAG, "response:{}", retString);
+                return retString;
             } else {
-                HttpEntity resEntity = response.getEntity();
-                throw new AkServerStatusException(
-                        response.getStatusLine().getStatusCode(),
-                        EntityUtils.toString(resEntity, CHARSET));
+                return handleResponse(response, STRING_DECODER);
             }
+        } catch (HostRejectedException hre) {
+            throw hre.toInvokeException();
         } catch (ClientProtocolException cpe) {
             Log.e(TAG, cpe.toString(), cpe);
             throw new AkInvokeException(AkInvokeException.CODE_HTTP_PROTOCOL_ERROR,
                     cpe.toString(), cpe);
         } catch (IOException ioe) {
+            checkCancelled(ioe);
             Log.e(TAG, ioe.toString(), ioe);
             throw new AkInvokeException(AkInvokeException.CODE_CONNECTION_ERROR,
                     ioe.toString(), ioe);
         }
-
-        Log.v(TAG, "response:" + retString);
-        return retString;
     }
 
     public static String post(String url, ArrayList<NameValuePair> params)
@@ -170,19 +480,33 @@ public class HttpInvoker {
 
     public static String post(String url, ArrayList<NameValuePair> params, Header[] headers)
             throws AkInvokeException, AkServerStatusException {
+        String retString = post(url, params, headers, STRING_DECODER);
+        Log.v(TAG, "response:{}", retString);
+        return retString;
+    }
+
+    /**
+     * post and decode the response entity using decoder, without materializing it to String
+     * @param url url
+     * @param params params to post
+     * @param headers headers, may be null
+     * @param decoder decoder of the response entity
+     * @return decoded result, null if the response has no entity
+     */
+    public static <T> T post(String url, ArrayList<NameValuePair> params, Header[] headers,
+                             ResponseDecoder<T> decoder)
+            throws AkInvokeException, AkServerStatusException {
         //==log start
-        Log.v(TAG, "post:" + url);
-        if (params != null) {
+        Log.v(TAG, "post:{}", url);
+        if (params != null && Log.isLoggable(Log.VERBOSE)) {
             Log.v(TAG, "params:=====================");
             for (NameValuePair nvp : params) {
-                Log.v(TAG, nvp.getName() + "=" + nvp.getValue());
+                Log.v(TAG, "{}={}", nvp.getName(), nvp.getValue());
             }
             Log.v(TAG, "params end:=====================");
         }
         //==log end
 
-        String retString = null;
-
         try {
             HttpPost request = new HttpPost(url);
             if (headers != null) {
@@ -197,30 +521,20 @@ public class HttpInvoker {
             }
             UrlEncodedFormEntity entity = new UrlEncodedFormEntity(params, CHARSET);
             request.setEntity(entity);
-            HttpResponse response = client.execute(request);
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode == HttpStatus.SC_OK
-             || statusCode == HttpStatus.SC_CREATED
-             || statusCode == HttpStatus.SC_ACCEPTED) {
-                HttpEntity resEntity = response.getEntity();
-                retString = (resEntity == null) ?
-                        null : EntityUtils.toString(resEntity, CHARSET);
-            } else {
-                HttpEntity resEntity = response.getEntity();
-                throw new AkServerStatusException(
-                        response.getStatusLine().getStatusCode(),
-                        EntityUtils.toString(resEntity, CHARSET));
-                
-            }
+            HttpResponse response = execute(request, HttpConfig.REQUEST_API);
+            return handleResponse(response, decoder);
         } catch (UnsupportedEncodingException e) {
             Log.e(TAG, e.toString(), e);
             throw new AkInvokeException(
                     AkInvokeException.CODE_HTTP_PROTOCOL_ERROR, e.toString(), e);
+        } catch (HostRejectedException hre) {
+            throw hre.toInvokeException();
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString(), e);
             throw new AkInvokeException(
                     AkInvokeException.CODE_HTTP_PROTOCOL_ERROR, e.toString(), e);
         } catch (IOException e) {
+            checkCancelled(e);
             Log.e(TAG, e.toString(), e);
             throw new AkInvokeException(
                     AkInvokeException.CODE_CONNECTION_ERROR, e.toString(), e);
@@ -229,9 +543,6 @@ public class HttpInvoker {
             throw new AkInvokeException(
                     AkInvokeException.CODE_PARSE_EXCEPTION, e.toString(), e);
         }
-
-        Log.v(TAG, "response:" + retString);
-        return retString;
     }
     
     public static String put(String url, HashMap<String, String> map) {
@@ -242,139 +553,188 @@ public class HttpInvoker {
         return "";
     }
 
+    /**
+     * the images are decoded down to about this size, see ImageUtil.decodeSampledBitmapFromByteArray
+     */
+    public static final int IMAGE_DECODE_SIZE = 682;
+
     private static final int DEFAULT_BUFFER_SIZE = 65536;
-    private static byte[] retrieveImageData(InputStream inputStream, int fileSize, ProgressBar progressBar)
-            throws IOException {
+    private static final int NUM_RETRIES = 2;
 
-        // determine the remoteimageview size and allocate a buffer
-        //Log.d(TAG, "fetching remoteimageview " + imgUrl + " (" +
-        //        (fileSize <= 0 ? "size unknown" : Long.toString(fileSize)) + ")");
-        BufferedInputStream istream = new BufferedInputStream(inputStream);
+    /**
+     * Vversion 2 remoteimageview download impl, use byte[] to decode.
+     * Note: Recommanded to use this method instead of version 1.
+     * Tried once, the caller reschedules the retry by RetryPolicy, see RemoteImageLoaderJob.
+     * @param imgUrl
+     * @param httpReferer http Referer
+     * @return
+     * @throws AkServerStatusException
+     * @throws AkInvokeException
+     */
+    public static Bitmap getBitmapFromUrl(String imgUrl, String httpReferer, ProgressBar progressBar)
+    throws AkServerStatusException, AkInvokeException {
+        Log.v(TAG, "getBitmapFromUrl:{}", imgUrl);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(DEFAULT_BUFFER_SIZE);
+        getImageBytesFromUrl(imgUrl, httpReferer, progressBar, buf);
+        byte[] imgBytes = buf.toByteArray();
 
+        Bitmap bm;
         try {
-            if (fileSize <= 0) {
-                Log.w(TAG,
-                        "Server did not set a Content-Length header, will default to buffer size of "
-                                + DEFAULT_BUFFER_SIZE + " bytes");
-                ByteArrayOutputStream buf = new ByteArrayOutputStream(DEFAULT_BUFFER_SIZE);
-                byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-                int bytesRead = 0;
-                while (bytesRead != -1) {
-                    bytesRead = istream.read(buffer, 0, DEFAULT_BUFFER_SIZE);
-                    if (bytesRead > 0)
-                        buf.write(buffer, 0, bytesRead);
-                }
-                return buf.toByteArray();
-            } else {
-                byte[] imageData = new byte[fileSize];
-
-                int bytesRead = 0;
-                int offset = 0;
-                while (bytesRead != -1 && offset < fileSize) {
-                    bytesRead = istream.read(imageData, offset, fileSize - offset);
-                    offset += bytesRead;
-                    // process reporting
-                    try {
-                        if (progressBar != null) {
-                            progressBar.setProgress(offset*100/fileSize);
-                        }
-                    } catch (Exception e) { e.printStackTrace(); }
-                }
-                return imageData;
-            }
-        } finally {
-            // clean up
-            try {
-                istream.close();
-                inputStream.close();
-            } catch (Exception ignore) { }
+            bm = ImageUtil.decodeSampledBitmapFromByteArray(
+                    imgBytes, 0, imgBytes.length, IMAGE_DECODE_SIZE, IMAGE_DECODE_SIZE);
+        } catch (OutOfMemoryError ooe) {
+            Log.e(TAG, ooe.toString(), ooe);
+            return null; // if oom, no need to retry.
         }
+        if (bm == null) { // maybe truncated, worth a retry
+            throw new AkInvokeException(AkInvokeException.CODE_IO_EXCEPTION,
+                    "Can not decode image of " + imgUrl);
+        }
+        return bm;
     }
 
-    private static final int NUM_RETRIES = 2;
-    private static final int DEFAULT_RETRY_SLEEP_TIME = 1000;
+    /**
+     * Download the image bytes as they are into the file of cache while reading them,
+     * then decode from the file, so the image is not encoded again to be cached.
+     * Falls back to getBitmapFromUrl and put if the file can not be written.
+     * Tried once, the caller reschedules the retry by RetryPolicy.
+     * @param imgUrl
+     * @param httpReferer http Referer
+     * @param cache the cache to write the bytes to
+     * @return the bitmap decoded by cache
+     * @throws AkServerStatusException
+     * @throws AkInvokeException
+     */
+    public static Bitmap getBitmapFromUrl(String imgUrl, String httpReferer, ProgressBar progressBar,
+                                          RawFilesCache<Bitmap> cache)
+    throws AkServerStatusException, AkInvokeException {
+        RawFilesCache.Editor editor;
+        try {
+            editor = cache.edit(imgUrl);
+        } catch (IOException e) {
+            Bitmap bm = getBitmapFromUrl(imgUrl, httpReferer, progressBar);
+            cache.put(imgUrl, bm);
+            return bm;
+        }
+
+        boolean written = false;
+        try {
+            getImageBytesFromUrl(imgUrl, httpReferer, progressBar, editor.getOutputStream());
+            written = true;
+        } finally {
+            if (!written) editor.abort();
+        }
+        if (!editor.commit()) {
+            throw new AkInvokeException(AkInvokeException.CODE_FILE_NOT_FOUND,
+                    "Can not cache image of " + imgUrl);
+        }
+        Bitmap bm;
+        try {
+            bm = cache.get(imgUrl);
+        } catch (OutOfMemoryError ooe) {
+            Log.e(TAG, ooe.toString(), ooe);
+            return null; // if oom, no need to retry.
+        }
+        if (bm == null) { // maybe truncated, worth a retry
+            cache.remove(imgUrl);
+            throw new AkInvokeException(AkInvokeException.CODE_IO_EXCEPTION,
+                    "Can not decode image of " + imgUrl);
+        }
+        return bm;
+    }
 
     /**
-     * Vversion 2 remoteimageview download impl, use byte[] to decode.
-     * Note: Recommanded to use this method instead of version 1.
-     * NUM_RETRIES retry.
+     * Download the image bytes as they are to out, without decoding
      * @param imgUrl
      * @param httpReferer http Referer
-     * @return
+     * @param out the stream to write to, not closed
+     * @return count of bytes written
      * @throws AkServerStatusException
      * @throws AkInvokeException
      */
-    public static Bitmap getBitmapFromUrl(String imgUrl, String httpReferer, ProgressBar progressBar)
+    public static long getImageBytesFromUrl(String imgUrl, String httpReferer,
+                                            ProgressBar progressBar, OutputStream out)
     throws AkServerStatusException, AkInvokeException {
         imgUrl = imgUrl.trim();
-        Log.v(TAG, "getBitmapFromUrl:" + imgUrl);
+        Log.v(TAG, "getImageBytesFromUrl:{}", imgUrl);
 
-        int timesTried = 1;
-
-        while (timesTried <= NUM_RETRIES) {
-            timesTried++;
-            try {
-                if (progressBar != null) {
-                    progressBar.setProgress(0);
+        try {
+            if (progressBar != null) {
+                progressBar.setProgress(0);
+            }
+            HttpGet request = new HttpGet(imgUrl);
+            if (httpReferer != null) request.addHeader("Referer", httpReferer);
+            HttpResponse response = execute(request, HttpConfig.REQUEST_IMAGE);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_OK
+                    || statusCode == HttpStatus.SC_CREATED
+                    || statusCode == HttpStatus.SC_ACCEPTED) {
+                HttpEntity resEntity = response.getEntity();
+                long fileSize = resEntity.getContentLength();
+                long written = writeImageData(resEntity.getContent(), fileSize, progressBar, out);
+                if (fileSize > 0 && written != fileSize) { // truncated, worth a retry
+                    throw new AkInvokeException(AkInvokeException.CODE_IO_EXCEPTION,
+                            "Truncated image of " + imgUrl + ", " + written + "/" + fileSize);
                 }
-                HttpGet request = new HttpGet(imgUrl);
-                if (httpReferer != null) request.addHeader("Referer", httpReferer);
-                HttpResponse response = client.execute(request);
-                int statusCode = response.getStatusLine().getStatusCode();
-                if (statusCode == HttpStatus.SC_OK
-                        || statusCode == HttpStatus.SC_CREATED
-                        || statusCode == HttpStatus.SC_ACCEPTED) {
-                    HttpEntity resEntity = response.getEntity();
-                    InputStream inputStream = resEntity.getContent();
-
-                    byte[] imgBytes = retrieveImageData(
-                            inputStream, (int)(resEntity.getContentLength()), progressBar);
-                    if (imgBytes == null) {
-                        SystemClock.sleep(DEFAULT_RETRY_SLEEP_TIME);
-                        continue;
-                    }
+                return written;
+            } else {
+                HttpEntity resEntity = response.getEntity();
+                throw new AkServerStatusException(
+                        response.getStatusLine().getStatusCode(),
+                        EntityUtils.toString(resEntity, CHARSET));
+            }
+        } catch (AkInvokeException e) {
+            throw e;
+        } catch (AkServerStatusException e) {
+            throw e;
+        } catch (HostRejectedException hre) {
+            throw hre.toInvokeException();
+        } catch (ClientProtocolException cpe) {
+            Log.e(TAG, cpe.toString(), cpe);
+            throw new AkInvokeException(AkInvokeException.CODE_HTTP_PROTOCOL_ERROR,
+                    cpe.toString(), cpe);
+        } catch (IOException ioe) {
+            checkCancelled(ioe);
+            Log.e(TAG, ioe.toString(), ioe);
+            throw new AkInvokeException(AkInvokeException.CODE_CONNECTION_ERROR,
+                    ioe.toString(), ioe);
+        } catch (IllegalStateException ise) {
+            Log.e(TAG, ise.toString(), ise);
+            throw new AkInvokeException(AkInvokeException.CODE_TARGET_HOST_OR_URL_ERROR,
+                    ise.toString(), ise);
+        } catch (IllegalArgumentException iae) {
+            throw new AkInvokeException(AkInvokeException.CODE_TARGET_HOST_OR_URL_ERROR,
+                    iae.toString(), iae);
+        } catch (Exception e) {
+            throw new  AkInvokeException(AkInvokeException.CODE_UNKOWN_ERROR, e.toString(), e);
+        }
+    }
 
-                    Bitmap bm = null;
+    private static long writeImageData(InputStream inputStream, long fileSize,
+                                       ProgressBar progressBar, OutputStream out)
+            throws IOException {
+        try {
+            byte[] buffer = new byte[8192];
+            long offset = 0;
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+                offset += bytesRead;
+                // process reporting
+                if (progressBar != null && fileSize > 0) {
                     try {
-                        bm = ImageUtil.decodeSampledBitmapFromByteArray(
-                                imgBytes, 0, imgBytes.length, 682, 682);
-                    } catch (OutOfMemoryError ooe) {
-                        Log.e(TAG, ooe.toString(), ooe);
-                        return null; // if oom, no need to retry.
-                    }
-                    if (bm == null) {
-                        SystemClock.sleep(DEFAULT_RETRY_SLEEP_TIME);
-                        continue;
+                        progressBar.setProgress((int) (offset * 100 / fileSize));
+                    } catch (Exception e) {
+                        Log.w(TAG, "Can not report progress", e);
                     }
-                    return bm;
-                } else {
-                    HttpEntity resEntity = response.getEntity();
-                    throw new AkServerStatusException(
-                            response.getStatusLine().getStatusCode(),
-                            EntityUtils.toString(resEntity, CHARSET));
                 }
-            } catch (ClientProtocolException cpe) {
-                Log.e(TAG, cpe.toString(), cpe);
-                throw new AkInvokeException(AkInvokeException.CODE_HTTP_PROTOCOL_ERROR,
-                        cpe.toString(), cpe);
-            } catch (IOException ioe) {
-                Log.e(TAG, ioe.toString(), ioe);
-                throw new AkInvokeException(AkInvokeException.CODE_CONNECTION_ERROR,
-                        ioe.toString(), ioe);
-            } catch (IllegalStateException ise) {
-                Log.e(TAG, ise.toString(), ise);
-                throw new AkInvokeException(AkInvokeException.CODE_TARGET_HOST_OR_URL_ERROR,
-                        ise.toString(), ise);
-            } catch (IllegalArgumentException iae) {
-                throw new AkInvokeException(AkInvokeException.CODE_TARGET_HOST_OR_URL_ERROR,
-                        iae.toString(), iae);
-            } catch (Exception e) {
-                throw new  AkInvokeException(AkInvokeException.CODE_UNKOWN_ERROR, e.toString(), e);
             }
-
+            return offset;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (Exception ignore) { }
         }
-
-        return null;
     }
 
     /**
@@ -387,12 +747,12 @@ public class HttpInvoker {
      */
     public static Bitmap getImageFromUrl(String imgUrl, int inSampleSize) 
     throws AkServerStatusException, AkInvokeException {
-        Log.v(TAG, "getImageFromUrl:" + imgUrl);
+        Log.v(TAG, "getImageFromUrl:{}", imgUrl);
         Bitmap bitmap = null;
         for (int cnt = 0; cnt < NUM_RETRIES; cnt++) {
             try {
                 HttpGet request = new HttpGet(imgUrl);
-                HttpResponse response = client.execute(request);
+                HttpResponse response = execute(request, HttpConfig.REQUEST_IMAGE);
                 int statusCode = response.getStatusLine().getStatusCode();
                 if (statusCode == HttpStatus.SC_OK
                         || statusCode == HttpStatus.SC_CREATED
@@ -422,11 +782,14 @@ public class HttpInvoker {
                             response.getStatusLine().getStatusCode(),
                             EntityUtils.toString(resEntity, CHARSET));
                 }
+            } catch (HostRejectedException hre) {
+                throw hre.toInvokeException();
             } catch (ClientProtocolException cpe) {
                 Log.e(TAG, cpe.toString(), cpe);
                 throw new AkInvokeException(AkInvokeException.CODE_HTTP_PROTOCOL_ERROR,
                         cpe.toString(), cpe);
             } catch (IOException ioe) {
+                checkCancelled(ioe);
                 Log.e(TAG, ioe.toString(), ioe);
                 throw new AkInvokeException(AkInvokeException.CODE_CONNECTION_ERROR,
                         ioe.toString(), ioe);
@@ -465,121 +828,110 @@ public class HttpInvoker {
 
 
     /**
-     * post with files using URLConnection Impl
+     * post with files using multipart/form-data, through the transport
      * @param actionUrl URL to post
      * @param params params to post
      * @param files files to post, support multi-files
      * @return response in String format
-     * @throws IOException
      */
-    public static String postWithFilesUsingURLConnection(
+    public static String postWithFiles(
             String actionUrl, ArrayList<NameValuePair> params, Map<String, File> files)
-            throws AkInvokeException {
-        try {
-            Log.v(TAG, "post:" + actionUrl);
-            if (params != null) {
-                Log.v(TAG, "params:=====================");
-                for (NameValuePair nvp : params) {
-                    Log.v(TAG, nvp.getName() + "=" + nvp.getValue());
-                }
-                Log.v(TAG, "params end:=====================");
-            }
+            throws AkInvokeException, AkServerStatusException {
+        String retString = postWithFiles(actionUrl, params, files, STRING_DECODER);
+        Log.v(TAG, "response:{}", retString);
+        return retString;
+    }
 
-            String BOUNDARY = java.util.UUID.randomUUID().toString();
-            String PREFIX = "--", LINEND = "\r\n";
-            String MULTIPART_FROM_DATA = "multipart/form-data";
-            String CHARSET = "UTF-8";
-
-            URL uri = new URL(actionUrl);
-            HttpURLConnection conn = (HttpURLConnection) uri.openConnection();
-
-            conn.setReadTimeout(60 * 1000);
-            conn.setDoInput(true); // permit input
-            conn.setDoOutput(true); // permit output
-            conn.setUseCaches(false);
-            conn.setRequestMethod("POST"); // Post Method
-            conn.setRequestProperty("connection", "keep-alive");
-            conn.setRequestProperty("Charsert", "UTF-8");
-            conn.setRequestProperty("Content-Type", MULTIPART_FROM_DATA
-                    + ";boundary=" + BOUNDARY);
-
-            // firstly string params to add
-            StringBuilder sb = new StringBuilder();
-            for (NameValuePair nameValuePair : params) {
-                sb.append(PREFIX);
-                sb.append(BOUNDARY);
-                sb.append(LINEND);
-                sb.append("Content-Disposition: form-data; name=\""
-                        + nameValuePair.getName() + "\"" + LINEND);
-                sb.append("Content-Type: text/plain; charset=" + CHARSET + LINEND);
-                sb.append("Content-Transfer-Encoding: 8bit" + LINEND);
-                sb.append(LINEND);
-                sb.append(nameValuePair.getValue());
-                sb.append(LINEND);
+    /**
+     * post with files using multipart/form-data, and decode the response entity using decoder
+     * @param actionUrl URL to post
+     * @param params params to post
+     * @param files files to post, support multi-files
+     * @param decoder decoder of the response entity
+     * @return decoded result, null if the response has no entity
+     */
+    public static <T> T postWithFiles(
+            String actionUrl, ArrayList<NameValuePair> params, Map<String, File> files,
+            ResponseDecoder<T> decoder)
+            throws AkInvokeException, AkServerStatusException {
+        Log.v(TAG, "post:{}", actionUrl);
+        if (params != null && Log.isLoggable(Log.VERBOSE)) {
+            Log.v(TAG, "params:=====================");
+            for (NameValuePair nvp : params) {
+                Log.v(TAG, "{}={}", nvp.getName(), nvp.getValue());
             }
+            Log.v(TAG, "params end:=====================");
+        }
 
-            DataOutputStream outStream = new DataOutputStream(
-                    conn.getOutputStream());
-            outStream.write(sb.toString().getBytes());
-            // send files secondly
-            if (files != null) {
-                int num = 0;
-                for (Map.Entry<String, File> file : files.entrySet()) {
-                    num++;
-                    if (file.getKey() == null || file.getValue() == null) continue;
-                    else {
-                        if (!file.getValue().exists()) {
-                            throw new AkInvokeException(AkInvokeException.CODE_FILE_NOT_FOUND,
-                                    "The file to upload is not found.");
-                        }
-                    }
-                    StringBuilder sb1 = new StringBuilder();
-                    sb1.append(PREFIX);
-                    sb1.append(BOUNDARY);
-                    sb1.append(LINEND);
-                    sb1.append("Content-Disposition: form-data; name=\""+file.getKey()+"\"; filename=\""
-                            + file.getKey() + "\"" + LINEND);
-                    sb1.append("Content-Type: application/octet-stream; charset="
-                            + CHARSET + LINEND);
-                    sb1.append(LINEND);
-                    outStream.write(sb1.toString().getBytes());
-
-                    InputStream is = new FileInputStream(file.getValue());
-                    byte[] buffer = new byte[1024];
-                    int len = 0;
-                    while ((len = is.read(buffer)) != -1) {
-                        outStream.write(buffer, 0, len);
-                    }
+        MultipartEntity entity;
+        try {
+            entity = new MultipartEntity(params, files);
+        } catch (FileNotFoundException e) {
+            throw new AkInvokeException(AkInvokeException.CODE_FILE_NOT_FOUND,
+                    "The file to upload is not found.", e);
+        }
+        return postMultipart(actionUrl, entity, decoder);
+    }
 
-                    is.close();
-                    outStream.write(LINEND.getBytes());
-                }
+    /**
+     * post the multipart entity streaming, the files are never loaded into memory.
+     * Listen the progress by entity.setProgressListener, and cancel by entity.cancel.
+     * @param actionUrl URL to post
+     * @param entity multipart entity of params and files
+     * @param decoder decoder of the response entity
+     * @return decoded result, null if the response has no entity
+     */
+    public static <T> T postMultipart(String actionUrl, MultipartEntity entity,
+                                      ResponseDecoder<T> decoder)
+            throws AkInvokeException, AkServerStatusException {
+        Log.v(TAG, "post multipart:{} length:{}", actionUrl, entity.getContentLength());
+        HttpPost request = new HttpPost(actionUrl);
+        request.setEntity(entity);
+        try {
+            HttpResponse response = execute(request, HttpConfig.REQUEST_UPLOAD);
+            return handleResponse(response, decoder);
+        } catch (HostRejectedException hre) {
+            throw hre.toInvokeException();
+        } catch (ClientProtocolException e) {
+            Log.e(TAG, e.toString(), e);
+            throw new AkInvokeException(
+                    AkInvokeException.CODE_HTTP_PROTOCOL_ERROR, e.toString(), e);
+        } catch (IOException e) {
+            checkCancelled(e);
+            if (entity.isCancelled()) {
+                throw new AkInvokeException(
+                        AkInvokeException.CODE_REQUEST_CANCELLED, "Upload cancelled", e);
             }
+            Log.e(TAG, e.toString(), e);
+            throw new AkInvokeException(AkInvokeException.CODE_IO_EXCEPTION, "IO Exception", e);
+        }
+    }
 
-            // request end flag
-            byte[] end_data = (PREFIX + BOUNDARY + PREFIX + LINEND).getBytes();
-            outStream.write(end_data);
-            outStream.flush();
-            // get response code
-            int res = conn.getResponseCode();
-            InputStream in = conn.getInputStream();
-            StringBuilder sb2 = new StringBuilder();
-            if (res == 200) {
-                BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(in, "utf-8"),
-                        8192);
-                String line = null;
-                while ((line = reader.readLine()) != null) {
-                    sb2.append(line + "\n");
-                }
-                reader.close();
-            }
-            outStream.close();
-            conn.disconnect();
-            Log.v(TAG, "response:" + sb2.toString());
-            return sb2.toString();
-        } catch (IOException ioe) {
-            throw new AkInvokeException(AkInvokeException.CODE_IO_EXCEPTION, "IO Exception", ioe);
+    /**
+     * @see #postMultipart(String, MultipartEntity, ResponseDecoder)
+     * @return response in String format
+     */
+    public static String postMultipart(String actionUrl, MultipartEntity entity)
+            throws AkInvokeException, AkServerStatusException {
+        String retString = postMultipart(actionUrl, entity, STRING_DECODER);
+        Log.v(TAG, "response:{}", retString);
+        return retString;
+    }
+
+    /**
+     * post with files, kept for compatibility, see postWithFiles
+     * @param actionUrl URL to post
+     * @param params params to post
+     * @param files files to post, support multi-files
+     * @return response in String format
+     */
+    public static String postWithFilesUsingURLConnection(
+            String actionUrl, ArrayList<NameValuePair> params, Map<String, File> files)
+            throws AkInvokeException {
+        try {
+            return postWithFiles(actionUrl, params, files);
+        } catch (AkServerStatusException e) {
+            throw new AkInvokeException(AkInvokeException.CODE_IO_EXCEPTION, "IO Exception", e);
         }
     }
     
@@ -0,0 +1,215 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import android.content.Context;
+import org.akita.cache.AkCacheManager;
+import org.akita.cache.MemCache;
+import org.akita.cache.SimpleCache;
+import org.akita.util.JsonMapper;
+import org.akita.util.Log;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Cache of the GET responses with http freshness semantics, keyed on the built url.
+ * Kept in a small mem lru, and persisted to the SimpleCache.
+ * Used by the @AkCache apis, see HttpInvoker.getCached.
+ */
+public class HttpResponseCache {
+    private static final String TAG = "HttpResponseCache";
+
+    private static final int MEM_CACHE_SIZE = 32;
+    private static final int RESERVE_TIME_HOURS = 7 * 24;
+
+    private static volatile HttpResponseCache sInstalled;
+
+    private final SimpleCache mDiskCache;
+    private final MemCache<String, Entry> mMemCache;
+
+    private HttpResponseCache(SimpleCache diskCache) {
+        mDiskCache = diskCache;
+        mMemCache = AkCacheManager.newMemLruCache(MEM_CACHE_SIZE);
+    }
+
+    /**
+     * Install the response cache, persisting responses up to 7 days
+     * @param context
+     * @return the installed cache
+     */
+    public static synchronized HttpResponseCache install(Context context) {
+        if (sInstalled == null) {
+            sInstalled = new HttpResponseCache(AkCacheManager.getSimpleCache(
+                    context.getApplicationContext(), "httpresponse", RESERVE_TIME_HOURS));
+        }
+        return sInstalled;
+    }
+
+    /**
+     * @return the installed cache, null if not installed
+     */
+    public static HttpResponseCache getInstalled() {
+        return sInstalled;
+    }
+
+    /**
+     * Remove the cached response of url
+     */
+    public void remove(String url) {
+        mMemCache.remove(url);
+        mDiskCache.remove(url);
+    }
+
+    /**
+     * Remove all the cached responses
+     */
+    public void removeAll() {
+        mMemCache.clear();
+        mDiskCache.removeAll();
+    }
+
+    Entry get(String url) {
+        Entry entry = mMemCache.get(url);
+        if (entry == null) {
+            String json = mDiskCache.get(url);
+            if (json != null) {
+                try {
+                    entry = JsonMapper.json2pojo(json, Entry.class);
+                    mMemCache.put(url, entry);
+                } catch (Exception e) {
+                    Log.w(TAG, "Broken cached response of " + url, e);
+                    mDiskCache.remove(url);
+                }
+            }
+        }
+        return entry;
+    }
+
+    void put(String url, Entry entry) {
+        mMemCache.put(url, entry);
+        try {
+            mDiskCache.put(url, JsonMapper.pojo2json(entry));
+        } catch (Exception e) {
+            Log.w(TAG, "Can not persist response of " + url, e);
+        }
+    }
+
+    /**
+     * Cached response body and its validators
+     */
+    public static class Entry {
+        public String body;
+        public String etag;
+        public String lastModified;
+        /**
+         * millis since epoch, the response needs revalidating after that
+         */
+        public long expires;
+
+        public Entry() {
+        }
+
+        boolean isFresh(long now) {
+            return now < expires;
+        }
+
+        /**
+         * @return conditional headers to revalidate, null if no validator
+         */
+        Header[] validators() {
+            if (etag != null && lastModified != null) {
+                return new Header[] {
+                        new BasicHeader("If-None-Match", etag),
+                        new BasicHeader("If-Modified-Since", lastModified)};
+            } else if (etag != null) {
+                return new Header[] {new BasicHeader("If-None-Match", etag)};
+            } else if (lastModified != null) {
+                return new Header[] {new BasicHeader("If-Modified-Since", lastModified)};
+            }
+            return null;
+        }
+
+        /**
+         * Update freshness and validators from the 304 response
+         */
+        void revalidated(HttpResponse response, int defaultMaxAge, long now) {
+            Header etagHeader = response.getFirstHeader("ETag");
+            if (etagHeader != null) etag = etagHeader.getValue();
+            Header lmHeader = response.getFirstHeader("Last-Modified");
+            if (lmHeader != null) lastModified = lmHeader.getValue();
+            long newExpires = expiresOf(response, defaultMaxAge, now);
+            expires = newExpires < 0 ? now : newExpires;
+        }
+
+        /**
+         * @return the entry of 200 response, null if the response should not be cached
+         */
+        static Entry of(HttpResponse response, String body, int defaultMaxAge, long now) {
+            long expires = expiresOf(response, defaultMaxAge, now);
+            if (expires < 0) return null; // no-store
+
+            Entry entry = new Entry();
+            entry.body = body;
+            Header etagHeader = response.getFirstHeader("ETag");
+            entry.etag = etagHeader == null ? null : etagHeader.getValue();
+            Header lmHeader = response.getFirstHeader("Last-Modified");
+            entry.lastModified = lmHeader == null ? null : lmHeader.getValue();
+            entry.expires = expires;
+            if (!entry.isFresh(now) && entry.validators() == null) {
+                return null; // neither fresh nor able to revalidate
+            }
+            return entry;
+        }
+
+        /**
+         * @return millis the response expires at, -1 if it must not be stored
+         */
+        private static long expiresOf(HttpResponse response, int defaultMaxAge, long now) {
+            boolean noCache = false;
+            long maxAge = -1;
+            for (Header header : response.getHeaders("Cache-Control")) {
+                for (HeaderElement element : header.getElements()) {
+                    String name = element.getName();
+                    if ("no-store".equalsIgnoreCase(name)) {
+                        return -1;
+                    } else if ("no-cache".equalsIgnoreCase(name)) {
+                        noCache = true;
+                    } else if ("max-age".equalsIgnoreCase(name) && element.getValue() != null) {
+                        try {
+                            maxAge = Long.parseLong(element.getValue().trim());
+                        } catch (NumberFormatException ignore) { }
+                    }
+                }
+            }
+            if (noCache) {
+                return now;
+            } else if (maxAge >= 0) {
+                return now + maxAge * 1000L;
+            }
+            Header expiresHeader = response.getFirstHeader("Expires");
+            if (expiresHeader != null) {
+                try {
+                    return DateUtils.parseDate(expiresHeader.getValue()).getTime();
+                } catch (DateParseException e) {
+                    return now; // invalid Expires means already expired
+                }
+            }
+            return now + defaultMaxAge * 1000L;
+        }
+    }
+}
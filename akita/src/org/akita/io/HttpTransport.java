@@ -0,0 +1,62 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Transport engine behind HttpInvoker, executes the http request and returns the response.
+ * The request and response use the org.apache.http types, which both engines understand.
+ * Gzip responses should be decompressed already.
+ *
+ * @see ApacheHttpTransport
+ * @see UrlConnectionHttpTransport
+ */
+public interface HttpTransport {
+
+    /**
+     * Execute the request. The caller must consume the entity of the response
+     * (or call consumeContent), so the connection can be reused.
+     * @param request request with url, headers and entity
+     * @return response, with entity if any
+     * @throws IOException if the connection failed
+     */
+    public HttpResponse execute(HttpUriRequest request) throws IOException;
+
+    /**
+     * Apply the pool configuration at runtime, the requests in flight are not affected.
+     * The timeouts are set on each request by HttpInvoker.
+     * @param config configuration
+     */
+    public void configure(HttpConfig config);
+
+    /**
+     * Open and park keep-alive connections (with the TLS handshake done) to the host of uri,
+     * for the coming requests. Called on a background thread by HttpInvoker.warmUp.
+     * @param uri url of the host, the path is ignored
+     * @param connections count of connections wanted, the pooled ones included
+     * @throws IOException if the connection failed
+     */
+    public void warmUp(URI uri, int connections) throws IOException;
+
+    /**
+     * Release the pooled connections, the transport can not be used any more.
+     */
+    public void shutdown();
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in millis, on fixed exponential buckets.
+ * Percentiles are estimated by the upper bound of their bucket.
+ */
+public class LatencyHistogram {
+    /**
+     * upper bounds (inclusive) of the buckets, the last bucket has no bound
+     */
+    private static final long[] BOUNDS =
+            {5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000};
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long millis) {
+        if (millis < 0) return;
+        int idx = 0;
+        while (idx < BOUNDS.length && millis > BOUNDS[idx]) {
+            idx++;
+        }
+        mCounts.incrementAndGet(idx);
+        mCount.incrementAndGet();
+        mSum.addAndGet(millis);
+        long max;
+        while (millis > (max = mMax.get()) && !mMax.compareAndSet(max, millis)) {
+            // retry
+        }
+    }
+
+    public long count() {
+        return mCount.get();
+    }
+
+    public long sum() {
+        return mSum.get();
+    }
+
+    public long max() {
+        return mMax.get();
+    }
+
+    public long mean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param percent (0, 100], such as 50, 90, 99
+     * @return millis the percent of the latencies are not above, 0 if none recorded
+     */
+    public long percentile(double percent) {
+        long count = 0;
+        long[] counts = new long[mCounts.length()];
+        for (int idx = 0; idx < counts.length; idx++) {
+            counts[idx] = mCounts.get(idx);
+            count += counts[idx];
+        }
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(count * percent / 100);
+        long seen = 0;
+        for (int idx = 0; idx < BOUNDS.length; idx++) {
+            seen += counts[idx];
+            if (seen >= rank) {
+                return Math.min(BOUNDS[idx], max());
+            }
+        }
+        return max();
+    }
+
+    /**
+     * @return the upper bounds of the buckets, the last bucket is above the last bound
+     */
+    public static long[] bucketBounds() {
+        return BOUNDS.clone();
+    }
+
+    /**
+     * @param bucket index of the bucket, up to bucketBounds().length
+     */
+    public long bucketCount(int bucket) {
+        return mCounts.get(bucket);
+    }
+
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        long count = 0;
+        for (int idx = 0; idx < mCounts.length(); idx++) {
+            long bucketCount = mCounts.get(idx);
+            copy.mCounts.set(idx, bucketCount);
+            count += bucketCount;
+        }
+        copy.mCount.set(count);
+        copy.mSum.set(mSum.get());
+        copy.mMax.set(mMax.get());
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count() + " mean=" + mean() + " p50=" + percentile(50)
+                + " p90=" + percentile(90) + " p99=" + percentile(99) + " max=" + max();
+    }
+}
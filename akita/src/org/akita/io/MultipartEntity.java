@@ -0,0 +1,242 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * multipart/form-data entity of string params and files, with known content length,
+ * so it can be streamed by either HttpTransport and the connection reused.
+ * Files are streamed from disk, never held in memory. Upload progress can be listened,
+ * and the upload cancelled from any thread.
+ */
+public class MultipartEntity extends AbstractHttpEntity {
+    private static final String PREFIX = "--";
+    private static final String LINEND = "\r\n";
+    private static final String CHARSET = "UTF-8";
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final String mBoundary;
+    /**
+     * the bytes before each file, the string params before the first file
+     */
+    private final List<byte[]> mHeads = new ArrayList<byte[]>();
+    private final List<File> mFiles = new ArrayList<File>();
+    private final List<long[]> mRanges = new ArrayList<long[]>();
+    private byte[] mTail;
+    private long mContentLength;
+    private volatile UploadProgressListener mProgressListener;
+    private volatile boolean mCancelled;
+
+    /**
+     * @param params string params, may be null
+     * @param files name -> file, may be null
+     * @throws FileNotFoundException if a file to send does not exist
+     */
+    public MultipartEntity(List<NameValuePair> params, Map<String, File> files)
+            throws FileNotFoundException {
+        mBoundary = UUID.randomUUID().toString();
+        StringBuilder sb = startWith(params);
+        // files secondly
+        if (files != null) {
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                if (file.getKey() == null || file.getValue() == null) continue;
+                appendFile(sb, file.getKey(), file.getKey(), file.getValue(),
+                        0, file.getValue().length());
+            }
+        }
+        seal(sb);
+    }
+
+    /**
+     * Entity of the string params and a region of the file, such as a chunk of large file.
+     * @param params string params, may be null
+     * @param name name of the file part
+     * @param fileName filename of the file part
+     * @param file file to send
+     * @param offset start of the region
+     * @param length length of the region
+     * @throws FileNotFoundException if the file does not exist
+     */
+    public MultipartEntity(List<NameValuePair> params, String name, String fileName,
+                           File file, long offset, long length)
+            throws FileNotFoundException {
+        mBoundary = UUID.randomUUID().toString();
+        StringBuilder sb = startWith(params);
+        appendFile(sb, name, fileName, file, offset, length);
+        seal(sb);
+    }
+
+    /**
+     * firstly string params to add
+     */
+    private StringBuilder startWith(List<NameValuePair> params) {
+        setContentType("multipart/form-data;boundary=" + mBoundary);
+        setChunked(false);
+        StringBuilder sb = new StringBuilder();
+        if (params != null) {
+            for (NameValuePair nameValuePair : params) {
+                sb.append(PREFIX).append(mBoundary).append(LINEND);
+                sb.append("Content-Disposition: form-data; name=\"")
+                        .append(nameValuePair.getName()).append("\"").append(LINEND);
+                sb.append("Content-Type: text/plain; charset=").append(CHARSET).append(LINEND);
+                sb.append("Content-Transfer-Encoding: 8bit").append(LINEND);
+                sb.append(LINEND);
+                sb.append(nameValuePair.getValue());
+                sb.append(LINEND);
+            }
+        }
+        return sb;
+    }
+
+    private void appendFile(StringBuilder sb, String name, String fileName,
+                            File file, long offset, long length) throws FileNotFoundException {
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getAbsolutePath());
+        }
+        sb.append(PREFIX).append(mBoundary).append(LINEND);
+        sb.append("Content-Disposition: form-data; name=\"").append(name)
+                .append("\"; filename=\"").append(fileName).append("\"").append(LINEND);
+        sb.append("Content-Type: application/octet-stream; charset=")
+                .append(CHARSET).append(LINEND);
+        sb.append(LINEND);
+        mHeads.add(bytesOf(sb.toString()));
+        mFiles.add(file);
+        mRanges.add(new long[] {offset, length});
+        sb.setLength(0);
+        sb.append(LINEND);
+    }
+
+    /**
+     * request end flag, and compute the content length
+     */
+    private void seal(StringBuilder sb) {
+        sb.append(PREFIX).append(mBoundary).append(PREFIX).append(LINEND);
+        mTail = bytesOf(sb.toString());
+
+        long length = mTail.length;
+        for (byte[] head : mHeads) {
+            length += head.length;
+        }
+        for (long[] range : mRanges) {
+            length += range[1];
+        }
+        mContentLength = length;
+    }
+
+    private static byte[] bytesOf(String s) {
+        try {
+            return s.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            return s.getBytes();
+        }
+    }
+
+    public String getBoundary() {
+        return mBoundary;
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    public void setProgressListener(UploadProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Cancel the upload, writeTo fails with InterruptedIOException at the next buffer
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public InputStream getContent() throws IOException {
+        throw new UnsupportedOperationException("MultipartEntity can only be written to a stream");
+    }
+
+    public void writeTo(OutputStream outstream) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long written = 0;
+        for (int idx = 0; idx < mFiles.size(); idx++) {
+            written = write(outstream, mHeads.get(idx), written);
+            File file = mFiles.get(idx);
+            long fileLength = mRanges.get(idx)[1];
+            FileInputStream is = new FileInputStream(file);
+            try {
+                if (mRanges.get(idx)[0] > 0) {
+                    is.getChannel().position(mRanges.get(idx)[0]);
+                }
+                long fileWritten = 0;
+                int len;
+                while (fileWritten < fileLength && (len = is.read(buffer)) != -1) {
+                    // the file may grow after the content length computed
+                    len = (int) Math.min(len, fileLength - fileWritten);
+                    checkCancelled();
+                    outstream.write(buffer, 0, len);
+                    fileWritten += len;
+                    written += len;
+                    notifyProgress(written);
+                }
+                if (fileWritten < fileLength) {
+                    throw new IOException("File " + file.getName() + " is truncated while uploading");
+                }
+            } finally {
+                is.close();
+            }
+        }
+        write(outstream, mTail, written);
+        outstream.flush();
+    }
+
+    private long write(OutputStream outstream, byte[] bytes, long written) throws IOException {
+        checkCancelled();
+        outstream.write(bytes);
+        written += bytes.length;
+        notifyProgress(written);
+        return written;
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (mCancelled) {
+            throw new InterruptedIOException("Upload cancelled");
+        }
+    }
+
+    private void notifyProgress(long written) {
+        UploadProgressListener listener = mProgressListener;
+        if (listener != null) {
+            listener.onProgress(written, mContentLength);
+        }
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+}
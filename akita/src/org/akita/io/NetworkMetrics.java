@@ -0,0 +1,447 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import android.os.SystemClock;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of the http requests through HttpInvoker, aggregated per api and per host:
+ * dns, connect, ttfb and total latency histograms, request and response byte counts,
+ * error codes and retries. Read them by snapshot(), or listen each request by setListener.
+ * <p>
+ * The dns and connect timings are recorded by ApacheHttpTransport only.
+ * </p>
+ */
+public class NetworkMetrics {
+    private static final String[] CLASS_NAMES = {"[api]", "[image]", "[upload]", "[download]"};
+
+    private static volatile boolean sEnabled = true;
+    private static volatile MetricsListener sListener;
+
+    private static final ConcurrentHashMap<String, Stats> sApis = new ConcurrentHashMap<String, Stats>();
+    private static final ConcurrentHashMap<String, Stats> sHosts = new ConcurrentHashMap<String, Stats>();
+
+    private static final ThreadLocal<String> sApi = new ThreadLocal<String>();
+    private static final ThreadLocal<RequestMetrics> sCurrent = new ThreadLocal<RequestMetrics>();
+
+    /**
+     * @param enabled false to record nothing, default true
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * @param listener called when each request finished, null to remove
+     */
+    public static void setListener(MetricsListener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * @return copy of the metrics recorded so far
+     */
+    public static Snapshot snapshot() {
+        return new Snapshot(copyOf(sApis), copyOf(sHosts));
+    }
+
+    public static void reset() {
+        sApis.clear();
+        sHosts.clear();
+    }
+
+    /**
+     * Name the requests executed on current thread after the api, until tagged again
+     * @param api name of the api, null to name the requests by their request class
+     * @return the name tagged before, to restore it
+     */
+    public static String tagApi(String api) {
+        String previous = sApi.get();
+        if (api == null) {
+            sApi.remove();
+        } else {
+            sApi.set(api);
+        }
+        return previous;
+    }
+
+    /**
+     * @param api name of the api, or [image] by the request class
+     */
+    public static void recordRetry(String api) {
+        if (!sEnabled) return;
+        statsOf(sApis, api).retries.incrementAndGet();
+    }
+
+    /**
+     * @param api name of the api
+     * @param code code of AkInvokeException, or http status of AkServerStatusException
+     */
+    public static void recordError(String api, int code) {
+        if (!sEnabled) return;
+        statsOf(sApis, api).recordError(code);
+    }
+
+    /**
+     * Start the metrics of the request executing on current thread
+     * @return null if disabled
+     */
+    static RequestMetrics begin(HttpUriRequest request, int requestClass) {
+        if (!sEnabled) return null;
+        String api = sApi.get();
+        RequestMetrics metrics = new RequestMetrics(api != null ? api : CLASS_NAMES[requestClass],
+                request.getURI().getHost(), request.getMethod(), requestClass,
+                SystemClock.elapsedRealtime());
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                metrics.requestBytes = entity.getContentLength();
+            }
+        }
+        sCurrent.set(metrics);
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of the request executing on current thread, null if none
+     */
+    static RequestMetrics current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * The response headers are received, the metrics finishes when the entity is consumed
+     */
+    static void onResponse(RequestMetrics metrics, HttpResponse response) {
+        sCurrent.remove();
+        metrics.ttfbMillis = SystemClock.elapsedRealtime() - metrics.startTime;
+        metrics.statusCode = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            finish(metrics);
+        } else {
+            response.setEntity(new MeteredEntity(entity, metrics));
+        }
+    }
+
+    static void onFailure(RequestMetrics metrics) {
+        sCurrent.remove();
+        metrics.failed = true;
+        finish(metrics);
+    }
+
+    /**
+     * Count the response bytes on the wire, called by the transport before decompressing
+     * @param entity raw entity
+     * @return the counting entity, or entity if no request metrics on current thread
+     */
+    static HttpEntity meterWire(HttpEntity entity) {
+        final RequestMetrics metrics = sCurrent.get();
+        if (metrics == null || entity == null) return entity;
+        metrics.responseWireBytes = 0;
+        return new HttpEntityWrapper(entity) {
+            @Override
+            public InputStream getContent() throws IOException {
+                return new CountingInputStream(wrappedEntity.getContent()) {
+                    @Override
+                    void onRead(long count) {
+                        metrics.responseWireBytes += count;
+                    }
+                };
+            }
+        };
+    }
+
+    private static void finish(RequestMetrics metrics) {
+        metrics.totalMillis = SystemClock.elapsedRealtime() - metrics.startTime;
+        statsOf(sApis, metrics.api).record(metrics);
+        if (metrics.host != null) {
+            statsOf(sHosts, metrics.host).record(metrics);
+        }
+        MetricsListener listener = sListener;
+        if (listener != null) {
+            listener.onRequestFinished(metrics);
+        }
+    }
+
+    private static Stats statsOf(ConcurrentHashMap<String, Stats> map, String key) {
+        Stats stats = map.get(key);
+        if (stats == null) {
+            stats = new Stats();
+            Stats existing = map.putIfAbsent(key, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    private static Map<String, Stats> copyOf(ConcurrentHashMap<String, Stats> map) {
+        HashMap<String, Stats> copy = new HashMap<String, Stats>();
+        for (Map.Entry<String, Stats> entry : map.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().copy());
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Metrics aggregated per api or host
+     */
+    public static class Stats {
+        public final LatencyHistogram dns;
+        public final LatencyHistogram connect;
+        public final LatencyHistogram ttfb;
+        public final LatencyHistogram total;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong requestBytes = new AtomicLong();
+        private final AtomicLong responseWireBytes = new AtomicLong();
+        private final AtomicLong responseBytes = new AtomicLong();
+        private final ConcurrentHashMap<Integer, AtomicLong> errors =
+                new ConcurrentHashMap<Integer, AtomicLong>();
+
+        Stats() {
+            this(new LatencyHistogram(), new LatencyHistogram(),
+                    new LatencyHistogram(), new LatencyHistogram());
+        }
+
+        private Stats(LatencyHistogram dns, LatencyHistogram connect,
+                      LatencyHistogram ttfb, LatencyHistogram total) {
+            this.dns = dns;
+            this.connect = connect;
+            this.ttfb = ttfb;
+            this.total = total;
+        }
+
+        void record(RequestMetrics metrics) {
+            requests.incrementAndGet();
+            if (metrics.failed) failures.incrementAndGet();
+            dns.record(metrics.dnsMillis);
+            connect.record(metrics.connectMillis);
+            ttfb.record(metrics.ttfbMillis);
+            total.record(metrics.totalMillis);
+            if (metrics.requestBytes > 0) requestBytes.addAndGet(metrics.requestBytes);
+            responseWireBytes.addAndGet(metrics.responseWireBytes >= 0 ?
+                    metrics.responseWireBytes : metrics.responseBytes);
+            responseBytes.addAndGet(metrics.responseBytes);
+        }
+
+        void recordError(int code) {
+            AtomicLong count = errors.get(code);
+            if (count == null) {
+                count = new AtomicLong();
+                AtomicLong existing = errors.putIfAbsent(code, count);
+                if (existing != null) {
+                    count = existing;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        public long requests() {
+            return requests.get();
+        }
+
+        /**
+         * @return requests failed without response
+         */
+        public long failures() {
+            return failures.get();
+        }
+
+        public long retries() {
+            return retries.get();
+        }
+
+        public long requestBytes() {
+            return requestBytes.get();
+        }
+
+        /**
+         * @return response bytes on the wire, the decompressed bytes if unknown
+         */
+        public long responseWireBytes() {
+            return responseWireBytes.get();
+        }
+
+        public long responseBytes() {
+            return responseBytes.get();
+        }
+
+        /**
+         * @return code of AkInvokeException or http status -> count
+         */
+        public Map<Integer, Long> errors() {
+            HashMap<Integer, Long> copy = new HashMap<Integer, Long>();
+            for (Map.Entry<Integer, AtomicLong> entry : errors.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().get());
+            }
+            return copy;
+        }
+
+        Stats copy() {
+            Stats copy = new Stats(dns.copy(), connect.copy(), ttfb.copy(), total.copy());
+            copy.requests.set(requests.get());
+            copy.failures.set(failures.get());
+            copy.retries.set(retries.get());
+            copy.requestBytes.set(requestBytes.get());
+            copy.responseWireBytes.set(responseWireBytes.get());
+            copy.responseBytes.set(responseBytes.get());
+            for (Map.Entry<Integer, AtomicLong> entry : errors.entrySet()) {
+                copy.errors.put(entry.getKey(), new AtomicLong(entry.getValue().get()));
+            }
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "requests=" + requests() + " failures=" + failures() + " retries=" + retries()
+                    + " sent=" + requestBytes() + " wire=" + responseWireBytes()
+                    + " read=" + responseBytes() + " errors=" + errors()
+                    + "\n  ttfb: " + ttfb + "\n  total: " + total;
+        }
+    }
+
+    /**
+     * Metrics of all apis and hosts at a moment
+     */
+    public static class Snapshot {
+        /**
+         * api name -> stats, the requests not of api methods are named by their request class
+         */
+        public final Map<String, Stats> apis;
+        public final Map<String, Stats> hosts;
+
+        Snapshot(Map<String, Stats> apis, Map<String, Stats> hosts) {
+            this.apis = apis;
+            this.hosts = hosts;
+        }
+    }
+
+    /**
+     * the entity finishing the request metrics when consumed or closed
+     */
+    private static class MeteredEntity extends HttpEntityWrapper {
+        private final RequestMetrics mMetrics;
+        private final AtomicBoolean mFinished = new AtomicBoolean();
+
+        MeteredEntity(HttpEntity entity, RequestMetrics metrics) {
+            super(entity);
+            mMetrics = metrics;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new CountingInputStream(wrappedEntity.getContent()) {
+                @Override
+                void onRead(long count) {
+                    mMetrics.responseBytes += count;
+                }
+
+                @Override
+                void onEnd() {
+                    finishOnce();
+                }
+            };
+        }
+
+        @Override
+        public void consumeContent() throws IOException {
+            try {
+                super.consumeContent();
+            } finally {
+                finishOnce();
+            }
+        }
+
+        private void finishOnce() {
+            if (mFinished.compareAndSet(false, true)) {
+                finish(mMetrics);
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        void onRead(long count) {
+        }
+
+        /**
+         * at the end of stream, or closed
+         */
+        void onEnd() {
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                onEnd();
+            } else {
+                onRead(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read < 0) {
+                onEnd();
+            } else {
+                onRead(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            onRead(skipped);
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                onEnd();
+            }
+        }
+    }
+}
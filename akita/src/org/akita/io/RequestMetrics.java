@@ -0,0 +1,75 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+/**
+ * Timings and byte counts of one http request, passed to MetricsListener when finished,
+ * that is when its response entity is consumed or closed, or the request failed.
+ * The millis and byte counts are -1 if unknown, dnsMillis and connectMillis are -1
+ * if a pooled connection was reused.
+ */
+public class RequestMetrics {
+    /**
+     * name of the api method, or [api], [image], [upload], [download] by the request class
+     */
+    public final String api;
+    public final String host;
+    public final String method;
+    public final int requestClass;
+    final long startTime;
+
+    public long dnsMillis = -1;
+    /**
+     * millis of the tcp connect
+     */
+    public long connectMillis = -1;
+    /**
+     * millis until the response headers are received
+     */
+    public long ttfbMillis = -1;
+    /**
+     * millis until the response entity is consumed
+     */
+    public long totalMillis = -1;
+    public long requestBytes = -1;
+    /**
+     * response bytes on the wire, compressed if gzipped
+     */
+    public long responseWireBytes = -1;
+    /**
+     * response bytes read by the caller, decompressed
+     */
+    public long responseBytes;
+    /**
+     * http status, -1 if no response
+     */
+    public int statusCode = -1;
+    public boolean failed;
+
+    RequestMetrics(String api, String host, String method, int requestClass, long startTime) {
+        this.api = api;
+        this.host = host;
+        this.method = method;
+        this.requestClass = requestClass;
+        this.startTime = startTime;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + api + "@" + host + " status=" + statusCode
+                + " dns=" + dnsMillis + " connect=" + connectMillis + " ttfb=" + ttfbMillis
+                + " total=" + totalMillis + " sent=" + requestBytes
+                + " wire=" + responseWireBytes + " read=" + responseBytes;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import org.akita.exception.AkInvokeException;
+import org.apache.http.HttpEntity;
+
+import java.io.IOException;
+
+/**
+ * Decode the response entity (gzip decompressed already) of a successful invocation,
+ * e.g. decode the pojo straight from the entity's InputStream.
+ */
+public interface ResponseDecoder<T> {
+
+    /**
+     * @param entity response entity, never null
+     * @return decoded result
+     * @throws IOException if reading the entity fails
+     * @throws AkInvokeException if the content can not be decoded
+     */
+    public T decode(HttpEntity entity) throws IOException, AkInvokeException;
+
+}
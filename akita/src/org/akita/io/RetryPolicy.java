@@ -0,0 +1,132 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import org.akita.exception.AkInvokeException;
+import org.akita.exception.AkServerStatusException;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retry policy with exponential backoff and jitter.
+ * Only the connection errors, 408, 429 and 5xx responses are retried.
+ * All the retries share a budget: each request earns 0.1 retry token, each retry
+ * spends one, so the retries can never be more than about 10% of the requests
+ * when the backend is down, which prevents retry storms.
+ * <p>
+ * Async retries are delayed on the shared scheduler by schedule,
+ * instead of parking the worker thread in sleep.
+ * </p>
+ */
+public class RetryPolicy {
+
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0, 0);
+    /**
+     * default of the idempotent requests, such as GET apis and image loading
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(2, 500, 8000);
+
+    private static final float TOKENS_PER_REQUEST = 0.1f;
+    private static final float MAX_TOKENS = 10f;
+    private static float sTokens = MAX_TOKENS;
+
+    private static final Random sRandom = new Random();
+
+    private static final ScheduledThreadPoolExecutor sScheduler =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "akita-retry");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    public final int maxRetries;
+    public final long baseDelay;
+    public final long maxDelay;
+
+    /**
+     * @param maxRetries max retries after the first try
+     * @param baseDelay millis of the backoff before the first retry, doubled on each retry
+     * @param maxDelay max millis of the backoff
+     */
+    public RetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = Math.max(baseDelay, maxDelay);
+    }
+
+    /**
+     * @return true if the failure may succeed on retry
+     */
+    public boolean isRetryable(Exception e) {
+        if (e instanceof AkServerStatusException) {
+            int code = ((AkServerStatusException) e).code;
+            return code >= 500 || code == 408 || code == 429;
+        } else if (e instanceof AkInvokeException) {
+            int code = ((AkInvokeException) e).code;
+            return code == AkInvokeException.CODE_CONNECTION_ERROR
+                    || code == AkInvokeException.CODE_IO_EXCEPTION;
+        }
+        return false;
+    }
+
+    /**
+     * Decide whether to retry, spending one token of the retry budget if so.
+     * @param retried retries done so far
+     * @param e the failure of the last try
+     * @return millis to wait before the retry, -1 if no more retry
+     */
+    public long nextDelay(int retried, Exception e) {
+        if (retried >= maxRetries || !isRetryable(e) || !acquireRetryToken()) {
+            return -1;
+        }
+        long backoff = baseDelay << Math.min(retried, 16);
+        if (backoff > maxDelay || backoff <= 0) {
+            backoff = maxDelay;
+        }
+        // equal jitter, half fixed and half random, so the clients do not retry in lockstep
+        long half = backoff / 2;
+        synchronized (sRandom) {
+            return half + (half > 0 ? (long) (sRandom.nextDouble() * half) : 0);
+        }
+    }
+
+    /**
+     * Record a request (not a retry) to earn the retry budget
+     */
+    public static synchronized void onRequest() {
+        sTokens = Math.min(MAX_TOKENS, sTokens + TOKENS_PER_REQUEST);
+    }
+
+    private static synchronized boolean acquireRetryToken() {
+        if (sTokens < 1f) {
+            return false;
+        }
+        sTokens -= 1f;
+        return true;
+    }
+
+    /**
+     * Run the retry after delay on the shared scheduler, the runnable should only
+     * hand the work over to its own executor.
+     */
+    public static ScheduledFuture<?> schedule(Runnable retry, long delayMillis) {
+        return sScheduler.schedule(retry, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import android.os.SystemClock;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * SocketFactory resolving the host by Dns and connecting to its addresses in order,
+ * recording the dns and connect millis of the new connections
+ * to the RequestMetrics of current thread.
+ * The plain socket is connected to the resolved address here, the ssl of https is
+ * layered on it by the host name, for the SNI and the host name verification.
+ */
+class TimingSocketFactory implements SocketFactory {
+    private final SocketFactory mDelegate;
+    private final Dns mDns;
+
+    TimingSocketFactory(SocketFactory delegate, Dns dns) {
+        mDelegate = delegate;
+        mDns = dns;
+    }
+
+    /**
+     * @return unconnected plain socket
+     */
+    public Socket createSocket() throws IOException {
+        return new Socket();
+    }
+
+    public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress,
+                                int localPort, HttpParams params)
+            throws IOException, UnknownHostException, ConnectTimeoutException {
+        RequestMetrics metrics = NetworkMetrics.current();
+        long start = SystemClock.elapsedRealtime();
+        InetAddress[] addresses = mDns.lookup(host);
+        long resolved = SystemClock.elapsedRealtime();
+        IOException lastFailure = null;
+        for (int idx = 0; idx < addresses.length; idx++) {
+            try {
+                // the given socket is closed by the failed connect, a new one for the next
+                Socket socket = connect(idx == 0 && sock != null ? sock : createSocket(),
+                        addresses[idx], port, localAddress, localPort, params);
+                if (metrics != null) {
+                    metrics.dnsMillis = resolved - start;
+                    metrics.connectMillis = SystemClock.elapsedRealtime() - resolved;
+                }
+                return socket;
+            } catch (ConnectTimeoutException e) {
+                lastFailure = e;
+            } catch (SocketException e) {
+                lastFailure = e;
+            }
+        }
+        throw lastFailure;
+    }
+
+    private static Socket connect(Socket sock, InetAddress address, int port,
+                                  InetAddress localAddress, int localPort, HttpParams params)
+            throws IOException {
+        if (localAddress != null || localPort > 0) {
+            sock.bind(new InetSocketAddress(localAddress, localPort < 0 ? 0 : localPort));
+        }
+        try {
+            sock.connect(new InetSocketAddress(address, port),
+                    HttpConnectionParams.getConnectionTimeout(params));
+        } catch (SocketTimeoutException e) {
+            throw new ConnectTimeoutException("Connect to " + address + ":" + port + " timed out");
+        }
+        // the ssl handshake may be done while layering, before the pool sets it
+        sock.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+        return sock;
+    }
+
+    public boolean isSecure(Socket sock) throws IllegalArgumentException {
+        return mDelegate.isSecure(sock);
+    }
+
+    /**
+     * for the LayeredSocketFactory of https
+     */
+    static class Layered extends TimingSocketFactory implements LayeredSocketFactory {
+        private final LayeredSocketFactory mLayered;
+
+        Layered(LayeredSocketFactory delegate, Dns dns) {
+            super(delegate, dns);
+            mLayered = delegate;
+        }
+
+        @Override
+        public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress,
+                                    int localPort, HttpParams params)
+                throws IOException, UnknownHostException, ConnectTimeoutException {
+            Socket plain = super.connectSocket(sock, host, port, localAddress, localPort, params);
+            try {
+                return createSocket(plain, host, port, true);
+            } catch (IOException e) {
+                plain.close();
+                throw e;
+            }
+        }
+
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException, UnknownHostException {
+            return mLayered.createSocket(socket, host, port, autoClose);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+/**
+ * Progress of the request body being sent, called on the uploading thread.
+ */
+public interface UploadProgressListener {
+
+    /**
+     * @param bytesWritten bytes of the body written so far
+     * @param totalBytes content length of the body
+     */
+    public void onProgress(long bytesWritten, long totalBytes);
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io;
+
+import org.apache.http.*;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.protocol.HTTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HttpTransport using HttpURLConnection, whose keep-alive pool is shared by the whole process.
+ * Connections are reused only after the response entity is consumed or closed.
+ * Form posts and multipart uploads go through the same pool, with fixed-length streaming
+ * when the entity knows its length. Aborting the request disconnects its connection,
+ * so the CancellationToken works as with ApacheHttpTransport.
+ * <p>
+ * Note: https always uses the platform certificate verification,
+ * HttpConfig.trustAllCertificates is ignored. The pool settings are process wide and
+ * read once by the platform, see configure.
+ * </p>
+ */
+public class UrlConnectionHttpTransport implements HttpTransport {
+
+    private volatile int mConnectTimeout;
+    private volatile int mReadTimeout;
+
+    public UrlConnectionHttpTransport() {
+        this(new HttpConfig.Builder().build());
+    }
+
+    /**
+     * @param maxConnectionsPerHost max idle connections kept alive per host,
+     *                              applied to the process wide http.maxConnections, see configure
+     * @param keepAlive false to close the connection after each request
+     * @param connectTimeout millis
+     * @param readTimeout millis, a request can override it by CoreConnectionPNames.SO_TIMEOUT
+     */
+    public UrlConnectionHttpTransport(int maxConnectionsPerHost, boolean keepAlive,
+                                      int connectTimeout, int readTimeout) {
+        this(new HttpConfig.Builder()
+                .setMaxConnectionsPerRoute(maxConnectionsPerHost)
+                .setKeepAlive(keepAlive)
+                .setTimeouts(HttpConfig.REQUEST_API, connectTimeout, readTimeout)
+                .build());
+    }
+
+    public UrlConnectionHttpTransport(HttpConfig config) {
+        configure(config);
+    }
+
+    /**
+     * Set the process wide system properties http.keepAlive, http.maxConnections and
+     * http.keepAliveDuration, which HttpURLConnection reads once when its pool is created.
+     * So they take effect only if configured before the first request of the process,
+     * not at runtime, and they apply to every HttpURLConnection of the app.
+     * The timeouts do apply at runtime. The total limit is not supported by HttpURLConnection.
+     */
+    public void configure(HttpConfig config) {
+        System.setProperty("http.keepAlive", String.valueOf(config.keepAlive));
+        System.setProperty("http.maxConnections", String.valueOf(config.maxConnectionsPerRoute));
+        System.setProperty("http.keepAliveDuration", String.valueOf(config.idleTimeout));
+        mConnectTimeout = config.connectTimeout(HttpConfig.REQUEST_API);
+        mReadTimeout = config.readTimeout(HttpConfig.REQUEST_API);
+    }
+
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        URL url = request.getURI().toURL();
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        if (request instanceof AbortableHttpRequest) {
+            // abort from any thread, throws if aborted already
+            ((AbortableHttpRequest) request).setReleaseTrigger(new ConnectionReleaseTrigger() {
+                public void releaseConnection() {
+                    /* no op, released by consuming the entity */
+                }
+
+                public void abortConnection() {
+                    conn.disconnect();
+                }
+            });
+        }
+        conn.setConnectTimeout(request.getParams().getIntParameter(
+                CoreConnectionPNames.CONNECTION_TIMEOUT, mConnectTimeout));
+        conn.setReadTimeout(request.getParams().getIntParameter(
+                CoreConnectionPNames.SO_TIMEOUT, mReadTimeout));
+        conn.setUseCaches(false);
+        conn.setInstanceFollowRedirects(true);
+        conn.setRequestMethod(request.getMethod());
+        for (Header header : request.getAllHeaders()) {
+            conn.addRequestProperty(header.getName(), header.getValue());
+        }
+
+        try {
+            HttpEntity entity = null;
+            if (request instanceof HttpEntityEnclosingRequest) {
+                entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                if (entity != null) {
+                    prepareOutput(conn, entity);
+                }
+            }
+            HttpEventListener listener = HttpInvoker.getEventListener();
+            if (listener != null) {
+                // connect explicitly to report it, HttpURLConnection connects lazily otherwise
+                conn.connect();
+                listener.connectionAcquired(HttpEventListener.currentCall(), request);
+            }
+            if (entity != null) {
+                writeEntity(conn, entity);
+                if (listener != null) {
+                    listener.requestSent(HttpEventListener.currentCall(), request);
+                }
+            }
+            return readResponse(conn);
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        } catch (RuntimeException e) {
+            conn.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * set the body headers and streaming mode, before connect
+     */
+    private static void prepareOutput(HttpURLConnection conn, HttpEntity entity) {
+        conn.setDoOutput(true);
+        if (entity.getContentType() != null) {
+            conn.setRequestProperty(HTTP.CONTENT_TYPE, entity.getContentType().getValue());
+        }
+        long contentLength = entity.getContentLength();
+        if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+            conn.setFixedLengthStreamingMode((int) contentLength);
+        } else {
+            conn.setChunkedStreamingMode(0);
+        }
+    }
+
+    private static void writeEntity(HttpURLConnection conn, HttpEntity entity) throws IOException {
+        OutputStream out = conn.getOutputStream();
+        try {
+            entity.writeTo(out);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static HttpResponse readResponse(HttpURLConnection conn) throws IOException {
+        int statusCode = conn.getResponseCode();
+        if (statusCode == -1) {
+            throw new IOException("Invalid response from " + conn.getURL());
+        }
+        String reason = conn.getResponseMessage();
+        BasicHttpResponse response = new BasicHttpResponse(
+                HttpVersion.HTTP_1_1, statusCode, reason == null ? "" : reason);
+        for (Map.Entry<String, List<String>> field : conn.getHeaderFields().entrySet()) {
+            if (field.getKey() == null) continue; // the status line
+            for (String value : field.getValue()) {
+                response.addHeader(field.getKey(), value);
+            }
+        }
+
+        InputStream in;
+        try {
+            in = conn.getInputStream();
+        } catch (IOException e) {
+            in = conn.getErrorStream(); // >= 400
+        }
+        if (in == null) {
+            return response;
+        }
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(in);
+        entity.setContentLength(conn.getContentLength());
+        Header contentType = response.getFirstHeader(HTTP.CONTENT_TYPE);
+        if (contentType != null) entity.setContentType(contentType);
+        Header contentEncoding = response.getFirstHeader(HTTP.CONTENT_ENCODING);
+        if (contentEncoding != null) {
+            entity.setContentEncoding(contentEncoding);
+            // not decompressed transparently, when the request set Accept-Encoding itself
+            if ("gzip".equalsIgnoreCase(contentEncoding.getValue())) {
+                response.setEntity(new GzipDecompressingEntity(NetworkMetrics.meterWire(entity)));
+                return response;
+            }
+        }
+        response.setEntity(entity);
+        return response;
+    }
+
+    /**
+     * HttpURLConnection can not open a connection without a request,
+     * a HEAD request to "/" of the host leaves one connection in its keep-alive pool.
+     * Only one connection is opened, whatever connections is.
+     */
+    public void warmUp(URI uri, int connections) throws IOException {
+        URL url = new URL(uri.getScheme(), uri.getHost(), uri.getPort(), "/");
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(mConnectTimeout);
+        conn.setReadTimeout(mReadTimeout);
+        conn.setRequestMethod("HEAD");
+        try {
+            // any status will do, closing the stream parks the connection
+            InputStream in = conn.getResponseCode() < 400 ?
+                    conn.getInputStream() : conn.getErrorStream();
+            if (in != null) {
+                in.close();
+            }
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        // the keep-alive pool of HttpURLConnection is process wide, no op
+    }
+}
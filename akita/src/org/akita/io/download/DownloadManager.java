@@ -0,0 +1,468 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io.download;
+
+import android.content.Context;
+import org.akita.cache.AkCacheManager;
+import org.akita.cache.SimpleCache;
+import org.akita.exception.AkInvokeException;
+import org.akita.exception.AkServerStatusException;
+import org.akita.io.CancellableFutureTask;
+import org.akita.io.CancellationToken;
+import org.akita.io.HostRejectedException;
+import org.akita.io.HttpConfig;
+import org.akita.io.HttpInvoker;
+import org.akita.io.RetryPolicy;
+import org.akita.util.HashUtil;
+import org.akita.util.JsonMapper;
+import org.akita.util.Log;
+import org.akita.util.NamedThreadFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.util.EntityUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resumable download of large files (apk, video, offline package) to disk.
+ * The content is streamed into {target}.part. Large content is fetched
+ * in parallel segments using Range requests. The downloaded bytes of each
+ * segment are persisted to SimpleCache, so a failed or killed download resumes
+ * from where it stopped when download is called again with the same url and target.
+ * When done, the md5 is verified if given, then the part file is renamed to target.
+ */
+public class DownloadManager {
+    private static final String TAG = "DownloadManager";
+
+    private static final String PART_SUFFIX = ".part";
+    private static final long MIN_SEGMENT_SIZE = 2 * 1024 * 1024;
+    private static final int DEFAULT_SEGMENTS = 3;
+    /**
+     * retries of a failed segment, with backoff and the shared retry budget
+     */
+    private static final RetryPolicy SEGMENT_RETRY = new RetryPolicy(2, 1000, 8000);
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final long PERSIST_INTERVAL_BYTES = 512 * 1024;
+
+    private final SimpleCache mTaskStore;
+    private final ThreadPoolExecutor mSegmentExecutor;
+    private final ExecutorService mDownloadExecutor;
+    private final int mMaxSegments;
+
+    public DownloadManager(Context context) {
+        this(context, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param context
+     * @param maxSegments max segments of a download, and max segments downloading
+     *                    at the same time of all the downloads
+     */
+    public DownloadManager(Context context, int maxSegments) {
+        mTaskStore = AkCacheManager.getAppData(context.getApplicationContext(), "akita_downloads");
+        mMaxSegments = Math.max(1, maxSegments);
+        mSegmentExecutor = new ThreadPoolExecutor(mMaxSegments, mMaxSegments,
+                30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("akita-download-segment #"));
+        mSegmentExecutor.allowCoreThreadTimeOut(true);
+        mDownloadExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("akita-download #"));
+    }
+
+    public static String downloadIdOf(String url, File target) {
+        return HashUtil.md5(url + "|" + target.getAbsolutePath());
+    }
+
+    /**
+     * Download url to target, resuming the persisted progress if any.
+     * Cancel the returned Future to stop, the requests in flight are aborted,
+     * the progress is kept for resuming.
+     * @param url url of the content
+     * @param target file to save
+     * @param md5 expected md5 of the content, null to skip verifying
+     * @param listener progress, may be null
+     * @return the Future of target
+     */
+    public Future<File> download(final String url, final File target, final String md5,
+                                 final DownloadListener listener) {
+        CancellableFutureTask<File> future = new CancellableFutureTask<File>(new Callable<File>() {
+            public File call() throws Exception {
+                return doDownload(url, target, md5, listener);
+            }
+        });
+        mDownloadExecutor.execute(future);
+        return future;
+    }
+
+    /**
+     * @return the persisted downloads not completed, to resume them by download
+     */
+    public ArrayList<DownloadTask> getPendingDownloads() {
+        ArrayList<DownloadTask> tasks = new ArrayList<DownloadTask>();
+        for (String json : mTaskStore.getLatest(Integer.MAX_VALUE)) {
+            DownloadTask task = parse(json);
+            if (task != null) tasks.add(task);
+        }
+        return tasks;
+    }
+
+    /**
+     * Discard the persisted progress and the part file of the download
+     */
+    public void discard(String url, File target) {
+        mTaskStore.remove(downloadIdOf(url, target));
+        new File(target.getAbsolutePath() + PART_SUFFIX).delete();
+        Log.i(TAG, "discard download of " + url);
+    }
+
+    private File doDownload(String url, File target, String md5, DownloadListener listener)
+            throws Exception {
+        String downloadId = downloadIdOf(url, target);
+        File partFile = new File(target.getAbsolutePath() + PART_SUFFIX);
+        DownloadTask task = parse(mTaskStore.get(downloadId));
+        if (task == null || !partFile.exists()) {
+            task = newTask(downloadId, url, partFile, md5);
+            partFile.delete();
+            File dir = partFile.getParentFile();
+            if (dir != null) dir.mkdirs();
+            if (task.totalLength > 0) {
+                RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+                try {
+                    raf.setLength(task.totalLength);
+                } finally {
+                    raf.close();
+                }
+            }
+            save(task);
+        } else {
+            Log.i(TAG, "resume download " + downloadId + ", downloaded " + task.downloadedBytes());
+        }
+
+        AtomicLong downloaded = new AtomicLong(task.downloadedBytes());
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (DownloadTask.Segment segment : task.segments) {
+                if (segment.isDone()) continue;
+                CancellableFutureTask<Void> future = new CancellableFutureTask<Void>(
+                        new SegmentJob(task, segment, partFile, downloaded, listener), null);
+                mSegmentExecutor.execute(future);
+                futures.add(future);
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new AkInvokeException(AkInvokeException.CODE_REQUEST_CANCELLED,
+                    "Download " + downloadId + " cancelled", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DownloadFailedException) {
+                cause = cause.getCause();
+            }
+            if (task.discarded) {
+                discard(url, target);
+            }
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        if (task.md5 != null && !task.md5.equalsIgnoreCase(HashUtil.md5(partFile))) {
+            discard(url, target);
+            throw new AkInvokeException(AkInvokeException.CODE_CHECKSUM_ERROR,
+                    "Checksum of " + url + " mismatched, the download is discarded.");
+        }
+        target.delete();
+        if (!partFile.renameTo(target)) {
+            throw new AkInvokeException(AkInvokeException.CODE_IO_EXCEPTION,
+                    "Can not rename to " + target.getAbsolutePath());
+        }
+        mTaskStore.remove(downloadId);
+        return target;
+    }
+
+    /**
+     * probe the content length and Range support by HEAD, and split it into segments
+     */
+    private DownloadTask newTask(String downloadId, String url, File partFile, String md5)
+            throws AkInvokeException {
+        DownloadTask task = new DownloadTask();
+        task.downloadId = downloadId;
+        task.url = url;
+        task.filePath = partFile.getAbsolutePath();
+        task.md5 = md5;
+        try {
+            HttpHead head = new HttpHead(url);
+            head.addHeader("Accept-Encoding", "identity");
+            HttpResponse response = HttpInvoker.execute(head, HttpConfig.REQUEST_DOWNLOAD);
+            if (response.getEntity() != null) {
+                response.getEntity().consumeContent();
+            }
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                Header length = response.getFirstHeader("Content-Length");
+                Header ranges = response.getFirstHeader("Accept-Ranges");
+                Header etag = response.getFirstHeader("ETag");
+                Header lastModified = response.getFirstHeader("Last-Modified");
+                task.totalLength = length == null ? -1 : Long.parseLong(length.getValue().trim());
+                task.acceptRanges = ranges != null && "bytes".equalsIgnoreCase(ranges.getValue().trim());
+                task.validator = etag != null ? etag.getValue()
+                        : (lastModified != null ? lastModified.getValue() : null);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "HEAD " + url + " failed, download in one segment", e);
+        }
+
+        int segmentCount = 1;
+        if (task.acceptRanges && task.totalLength > 0) {
+            segmentCount = (int) Math.max(1, Math.min(mMaxSegments, task.totalLength / MIN_SEGMENT_SIZE));
+        }
+        if (task.totalLength > 0) {
+            long segmentSize = task.totalLength / segmentCount;
+            for (int idx = 0; idx < segmentCount; idx++) {
+                long start = idx * segmentSize;
+                long end = (idx == segmentCount - 1) ? task.totalLength - 1 : start + segmentSize - 1;
+                task.segments.add(new DownloadTask.Segment(start, end));
+            }
+        } else {
+            task.segments.add(new DownloadTask.Segment(0, -1));
+        }
+        return task;
+    }
+
+    private void save(DownloadTask task) {
+        if (task.discarded) return;
+        try {
+            synchronized (task) {
+                mTaskStore.put(task.downloadId, JsonMapper.pojo2json(task));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Can not persist download " + task.downloadId, e);
+        }
+    }
+
+    private static DownloadTask parse(String json) {
+        if (json == null) return null;
+        try {
+            return JsonMapper.json2pojo(json, DownloadTask.class);
+        } catch (Exception e) {
+            Log.w(TAG, "Broken download task " + json, e);
+            return null;
+        }
+    }
+
+    /**
+     * Download one segment into its range of the part file, retried by SEGMENT_RETRY,
+     * each try resumes from the downloaded bytes.
+     */
+    private class SegmentJob implements Runnable {
+        private final DownloadTask mTask;
+        private final DownloadTask.Segment mSegment;
+        private final File mPartFile;
+        private final AtomicLong mDownloaded;
+        private final DownloadListener mListener;
+
+        SegmentJob(DownloadTask task, DownloadTask.Segment segment, File partFile,
+                   AtomicLong downloaded, DownloadListener listener) {
+            mTask = task;
+            mSegment = segment;
+            mPartFile = partFile;
+            mDownloaded = downloaded;
+            mListener = listener;
+        }
+
+        public void run() {
+            RetryPolicy.onRequest();
+            for (int retried = 0; ; retried++) {
+                Exception failure;
+                try {
+                    fetch();
+                    return;
+                } catch (InterruptedIOException e) {
+                    throw new CancellationException("Download " + mTask.downloadId + " cancelled");
+                } catch (AkServerStatusException e) {
+                    failure = e;
+                } catch (AkInvokeException e) {
+                    if (mTask.discarded) {
+                        throw new DownloadFailedException(e);
+                    }
+                    failure = e;
+                } catch (HostRejectedException e) {
+                    failure = e.toInvokeException();
+                } catch (IOException e) {
+                    failure = new AkInvokeException(
+                            AkInvokeException.CODE_CONNECTION_ERROR, e.toString(), e);
+                } finally {
+                    save(mTask);
+                }
+                CancellationToken token = CancellationToken.current();
+                if (token != null && token.isCancelled()) {
+                    throw new CancellationException("Download " + mTask.downloadId + " cancelled");
+                }
+                long delay = SEGMENT_RETRY.nextDelay(retried, failure);
+                if (delay < 0) {
+                    throw new DownloadFailedException(failure);
+                }
+                Log.w(TAG, "retry segment " + mSegment.start + " of download " + mTask.downloadId
+                        + " in " + delay + "ms, " + failure);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    throw new CancellationException("Download " + mTask.downloadId + " cancelled");
+                }
+            }
+        }
+
+        private HttpGet newRequest() {
+            HttpGet request = new HttpGet(mTask.url);
+            // the part file is raw bytes, not gzip decoded
+            request.addHeader("Accept-Encoding", "identity");
+            return request;
+        }
+
+        private void fetch() throws IOException, AkInvokeException, AkServerStatusException {
+            HttpGet request = newRequest();
+            long from = mSegment.start + mSegment.downloaded;
+            boolean ranged = mTask.acceptRanges && (from > 0 || mSegment.end >= 0);
+            if (ranged) {
+                request.addHeader("Range", "bytes=" + from + "-"
+                        + (mSegment.end >= 0 ? String.valueOf(mSegment.end) : ""));
+                if (mTask.validator != null) {
+                    request.addHeader("If-Range", mTask.validator);
+                }
+            }
+
+            HttpResponse response = HttpInvoker.execute(request, HttpConfig.REQUEST_DOWNLOAD);
+            HttpEntity entity = response.getEntity();
+            int statusCode = response.getStatusLine().getStatusCode();
+            boolean rangeMismatched = statusCode == HttpStatus.SC_OK
+                    || (statusCode == HttpStatus.SC_PARTIAL_CONTENT && contentRangeStart(response) != from);
+            // a 200 from 0 is the whole content, right only for the single segment
+            boolean wholeContent = statusCode == HttpStatus.SC_OK && from == 0
+                    && mTask.segments.size() == 1;
+            if (ranged && rangeMismatched && !wholeContent) {
+                // the content changed or Range ignored, start over,
+                // not reading the whole content only to throw it away
+                request.abort();
+                if (mTask.segments.size() > 1 || mSegment.start > 0) {
+                    mTask.discarded = true;
+                    throw new AkInvokeException(AkInvokeException.CODE_IO_EXCEPTION,
+                            "Content of " + mTask.url + " changed, discard and download again.");
+                }
+                from = 0;
+                synchronized (mTask) {
+                    mDownloaded.addAndGet(-mSegment.downloaded);
+                    mSegment.downloaded = 0;
+                }
+                response = HttpInvoker.execute(newRequest(), HttpConfig.REQUEST_DOWNLOAD);
+                entity = response.getEntity();
+                statusCode = response.getStatusLine().getStatusCode();
+            }
+            if (statusCode != HttpStatus.SC_OK && statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                throw new AkServerStatusException(statusCode,
+                        entity == null ? "" : EntityUtils.toString(entity));
+            }
+            if (entity == null) {
+                throw new IOException("No content of " + mTask.url);
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(mPartFile, "rw");
+            InputStream is = entity.getContent();
+            try {
+                raf.seek(from);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long sinceSaved = 0;
+                long remaining = mSegment.end >= 0 ? mSegment.length() - mSegment.downloaded : -1;
+                int len;
+                while (remaining != 0 && (len = is.read(buffer)) != -1) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Download cancelled");
+                    }
+                    if (remaining > 0 && len > remaining) {
+                        len = (int) remaining;
+                    }
+                    raf.write(buffer, 0, len);
+                    synchronized (mTask) {
+                        mSegment.downloaded += len;
+                    }
+                    if (remaining > 0) remaining -= len;
+                    long downloaded = mDownloaded.addAndGet(len);
+                    if (mListener != null) {
+                        mListener.onProgress(downloaded, mTask.totalLength);
+                    }
+                    sinceSaved += len;
+                    if (sinceSaved >= PERSIST_INTERVAL_BYTES) {
+                        raf.getFD().sync();
+                        save(mTask);
+                        sinceSaved = 0;
+                    }
+                }
+                if (remaining > 0) {
+                    throw new IOException("Connection closed before segment completed");
+                }
+                if (mSegment.end < 0) { // content length unknown, completed at EOF
+                    synchronized (mTask) {
+                        mSegment.end = mSegment.start + mSegment.downloaded - 1;
+                        mTask.totalLength = mSegment.end + 1;
+                    }
+                    raf.setLength(mTask.totalLength);
+                }
+                raf.getFD().sync();
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException ignore) { }
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * @return the first byte of the Content-Range of the response, -1 if none or malformed
+     */
+    private static long contentRangeStart(HttpResponse response) {
+        Header contentRange = response.getFirstHeader("Content-Range");
+        if (contentRange == null) return -1;
+        String value = contentRange.getValue().trim(); // bytes 100-199/1000
+        int dash = value.indexOf('-');
+        if (!value.startsWith("bytes ") || dash < 0) return -1;
+        try {
+            return Long.parseLong(value.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * carries the checked exception of a segment out of Runnable
+     */
+    private static class DownloadFailedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        DownloadFailedException(Exception cause) {
+            super(cause);
+        }
+    }
+}
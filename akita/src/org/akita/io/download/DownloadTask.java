@@ -0,0 +1,83 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io.download;
+
+import java.util.ArrayList;
+
+/**
+ * Persisted state of a resumable download, the downloaded bytes of each segment.
+ * Saved as json in SimpleCache, so the download resumes after the process restarted.
+ */
+public class DownloadTask {
+    public String downloadId;
+    public String url;
+    public String filePath;
+    /**
+     * content length, -1 if unknown
+     */
+    public long totalLength = -1;
+    /**
+     * true if the server accepts Range requests
+     */
+    public boolean acceptRanges;
+    /**
+     * ETag or Last-Modified of the content, sent as If-Range when resuming
+     */
+    public String validator;
+    public String md5;
+    public ArrayList<Segment> segments = new ArrayList<Segment>();
+    /**
+     * true if the content changed while resuming, the task should not be persisted any more
+     */
+    transient volatile boolean discarded;
+
+    public DownloadTask() {
+    }
+
+    public synchronized long downloadedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.downloaded;
+        }
+        return bytes;
+    }
+
+    /**
+     * A range of the content, [start, end], end is -1 if the content length is unknown
+     */
+    public static class Segment {
+        public long start;
+        public long end = -1;
+        public long downloaded;
+
+        public Segment() {
+        }
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return bytes of the segment, -1 if unknown
+         */
+        long length() {
+            return end < 0 ? -1 : end - start + 1;
+        }
+
+        boolean isDone() {
+            return end >= 0 && downloaded >= length();
+        }
+    }
+}
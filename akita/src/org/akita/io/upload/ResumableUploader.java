@@ -0,0 +1,319 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io.upload;
+
+import android.content.Context;
+import org.akita.cache.AkCacheManager;
+import org.akita.cache.SimpleCache;
+import org.akita.exception.AkException;
+import org.akita.exception.AkInvokeException;
+import org.akita.exception.AkServerStatusException;
+import org.akita.io.CancellableFutureTask;
+import org.akita.io.CancellationToken;
+import org.akita.io.HttpInvoker;
+import org.akita.io.MultipartEntity;
+import org.akita.io.RetryPolicy;
+import org.akita.io.UploadProgressListener;
+import org.akita.util.HashUtil;
+import org.akita.util.JsonMapper;
+import org.akita.util.Log;
+import org.akita.util.NamedThreadFactory;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resumable upload of large files. The file is split into chunks, which are uploaded
+ * with bounded parallelism, and the uploaded chunks are persisted to SimpleCache,
+ * so a failed or killed upload resumes from the missing chunks when upload is called
+ * again with the same url and file.
+ * <p>
+ * Each chunk is posted to the url as multipart/form-data, with the params and
+ * uploadId, chunkIndex, chunkCount, fileSize, fileName, and the chunk bytes as file part
+ * "chunk". When all chunks are uploaded, the params and uploadId, chunkCount, fileSize,
+ * fileName and complete=1 are posted to the url, whose response is the result of the upload.
+ * The server should accept a chunk more than once.
+ * </p>
+ */
+public class ResumableUploader {
+    private static final String TAG = "ResumableUploader";
+
+    public static final String PARAM_UPLOAD_ID = "uploadId";
+    public static final String PARAM_CHUNK_INDEX = "chunkIndex";
+    public static final String PARAM_CHUNK_COUNT = "chunkCount";
+    public static final String PARAM_FILE_SIZE = "fileSize";
+    public static final String PARAM_FILE_NAME = "fileName";
+    public static final String PARAM_COMPLETE = "complete";
+    public static final String PART_CHUNK = "chunk";
+
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+    private static final int DEFAULT_PARALLELISM = 2;
+    /**
+     * retries of a failed chunk, with backoff and the shared retry budget
+     */
+    private static final RetryPolicy CHUNK_RETRY = new RetryPolicy(2, 1000, 8000);
+
+    private final SimpleCache mTaskStore;
+    private final ThreadPoolExecutor mChunkExecutor;
+    private final ExecutorService mUploadExecutor;
+    private volatile int mChunkSize = DEFAULT_CHUNK_SIZE;
+
+    public ResumableUploader(Context context) {
+        this(context, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param context
+     * @param parallelism max chunks uploading at the same time, of all the uploads, at least 1
+     */
+    public ResumableUploader(Context context, int parallelism) {
+        mTaskStore = AkCacheManager.getAppData(context.getApplicationContext(), "akita_uploads");
+        parallelism = Math.max(1, parallelism);
+        mChunkExecutor = new ThreadPoolExecutor(parallelism, parallelism,
+                30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("akita-upload-chunk #"));
+        mChunkExecutor.allowCoreThreadTimeOut(true);
+        mUploadExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("akita-upload #"));
+    }
+
+    /**
+     * @param chunkSize bytes of a chunk, applies to the new uploads
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize must be positive");
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * The upload id of the file to url, the same if the file is not changed.
+     */
+    public static String uploadIdOf(String url, File file) {
+        return HashUtil.md5(url + "|" + file.getAbsolutePath() + "|"
+                + file.length() + "|" + file.lastModified());
+    }
+
+    /**
+     * Upload the file, resuming the persisted progress if any.
+     * Cancel the returned Future to stop, the chunks in flight are aborted,
+     * the progress is kept for resuming.
+     * @param url url to post the chunks
+     * @param file file to upload
+     * @param params params posted with each chunk, may be null
+     * @param listener progress of the whole file, called on the uploading threads, may be null
+     * @return the Future of the response string of the complete request
+     */
+    public Future<String> upload(final String url, final File file, Map<String, String> params,
+                                 final UploadProgressListener listener) {
+        final HashMap<String, String> paramsCopy = params == null ?
+                new HashMap<String, String>() : new HashMap<String, String>(params);
+        CancellableFutureTask<String> future = new CancellableFutureTask<String>(
+                new Callable<String>() {
+            public String call() throws Exception {
+                return doUpload(url, file, paramsCopy, listener);
+            }
+        });
+        mUploadExecutor.execute(future);
+        return future;
+    }
+
+    /**
+     * @return the persisted uploads not completed, to resume them by upload
+     */
+    public ArrayList<UploadTask> getPendingUploads() {
+        ArrayList<UploadTask> tasks = new ArrayList<UploadTask>();
+        for (String json : mTaskStore.getLatest(Integer.MAX_VALUE)) {
+            UploadTask task = parse(json);
+            if (task != null) tasks.add(task);
+        }
+        return tasks;
+    }
+
+    /**
+     * Discard the persisted progress of the upload
+     */
+    public void discard(String uploadId) {
+        mTaskStore.remove(uploadId);
+    }
+
+    private String doUpload(String url, File file, HashMap<String, String> params,
+                            UploadProgressListener listener) throws Exception {
+        if (!file.exists()) {
+            throw new AkInvokeException(AkInvokeException.CODE_FILE_NOT_FOUND,
+                    "The file to upload is not found.");
+        }
+        final String uploadId = uploadIdOf(url, file);
+        UploadTask task = parse(mTaskStore.get(uploadId));
+        if (task == null || !task.matches(file)) {
+            task = new UploadTask(uploadId, url, file, mChunkSize, params);
+            save(task);
+        } else {
+            Log.i(TAG, "resume upload " + uploadId + ", uploaded " + task.uploadedBytes());
+        }
+
+        final AtomicLong uploaded = new AtomicLong(task.uploadedBytes());
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (int idx = 0; idx < task.chunkCount(); idx++) {
+                if (task.isChunkUploaded(idx)) continue;
+                CancellableFutureTask<Void> future = new CancellableFutureTask<Void>(
+                        new ChunkJob(task, file, idx, uploaded, listener), null);
+                mChunkExecutor.execute(future);
+                futures.add(future);
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new AkInvokeException(AkInvokeException.CODE_REQUEST_CANCELLED,
+                    "Upload " + uploadId + " cancelled", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UploadFailedException) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        ArrayList<NameValuePair> completeParams = baseParams(task, file);
+        completeParams.add(new BasicNameValuePair(PARAM_COMPLETE, "1"));
+        String result = HttpInvoker.post(url, completeParams);
+        mTaskStore.remove(uploadId);
+        return result;
+    }
+
+    private static ArrayList<NameValuePair> baseParams(UploadTask task, File file) {
+        ArrayList<NameValuePair> params = new ArrayList<NameValuePair>();
+        if (task.params != null) {
+            for (Map.Entry<String, String> entry : task.params.entrySet()) {
+                params.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
+            }
+        }
+        params.add(new BasicNameValuePair(PARAM_UPLOAD_ID, task.uploadId));
+        params.add(new BasicNameValuePair(PARAM_CHUNK_COUNT, String.valueOf(task.chunkCount())));
+        params.add(new BasicNameValuePair(PARAM_FILE_SIZE, String.valueOf(task.fileLength)));
+        params.add(new BasicNameValuePair(PARAM_FILE_NAME, file.getName()));
+        return params;
+    }
+
+    private void save(UploadTask task) {
+        try {
+            synchronized (task) {
+                mTaskStore.put(task.uploadId, JsonMapper.pojo2json(task));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Can not persist upload " + task.uploadId, e);
+        }
+    }
+
+    private static UploadTask parse(String json) {
+        if (json == null) return null;
+        try {
+            return JsonMapper.json2pojo(json, UploadTask.class);
+        } catch (Exception e) {
+            Log.w(TAG, "Broken upload task " + json, e);
+            return null;
+        }
+    }
+
+    /**
+     * Upload one chunk, retried by CHUNK_RETRY
+     */
+    private class ChunkJob implements Runnable {
+        private final UploadTask mTask;
+        private final File mFile;
+        private final int mIndex;
+        private final AtomicLong mUploaded;
+        private final UploadProgressListener mListener;
+
+        ChunkJob(UploadTask task, File file, int index, AtomicLong uploaded,
+                 UploadProgressListener listener) {
+            mTask = task;
+            mFile = file;
+            mIndex = index;
+            mUploaded = uploaded;
+            mListener = listener;
+        }
+
+        public void run() {
+            ArrayList<NameValuePair> params = baseParams(mTask, mFile);
+            params.add(new BasicNameValuePair(PARAM_CHUNK_INDEX, String.valueOf(mIndex)));
+            final long chunkLength = mTask.chunkLength(mIndex);
+            RetryPolicy.onRequest();
+            for (int retried = 0; ; retried++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("Upload " + mTask.uploadId + " cancelled");
+                }
+                AkException failure;
+                try {
+                    MultipartEntity entity = new MultipartEntity(params, PART_CHUNK,
+                            mFile.getName(), mFile, mTask.chunkOffset(mIndex), chunkLength);
+                    HttpInvoker.postMultipart(mTask.url, entity);
+                    break;
+                } catch (FileNotFoundException e) {
+                    throw new UploadFailedException(new AkInvokeException(
+                            AkInvokeException.CODE_FILE_NOT_FOUND,
+                            "The file to upload is not found.", e));
+                } catch (AkServerStatusException e) {
+                    failure = e;
+                } catch (AkInvokeException e) {
+                    failure = e;
+                }
+                CancellationToken token = CancellationToken.current();
+                if (token != null && token.isCancelled()) {
+                    throw new CancellationException("Upload " + mTask.uploadId + " cancelled");
+                }
+                long delay = CHUNK_RETRY.nextDelay(retried, failure);
+                if (delay < 0) {
+                    throw new UploadFailedException(failure);
+                }
+                Log.w(TAG, "retry chunk " + mIndex + " of upload " + mTask.uploadId
+                        + " in " + delay + "ms, " + failure);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    throw new CancellationException("Upload " + mTask.uploadId + " cancelled");
+                }
+            }
+
+            mTask.setChunkUploaded(mIndex);
+            save(mTask);
+            long uploaded = mUploaded.addAndGet(chunkLength);
+            if (mListener != null) {
+                mListener.onProgress(uploaded, mTask.fileLength);
+            }
+        }
+    }
+
+    /**
+     * carries the checked exception of a chunk out of Runnable
+     */
+    private static class UploadFailedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UploadFailedException(Exception cause) {
+            super(cause);
+        }
+    }
+}
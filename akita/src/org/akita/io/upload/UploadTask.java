@@ -0,0 +1,95 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.io.upload;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Persisted state of a resumable upload, which chunks of the file are uploaded.
+ * Saved as json in SimpleCache, so the upload resumes after the process restarted.
+ */
+public class UploadTask {
+    public String uploadId;
+    public String url;
+    public String filePath;
+    public long fileLength;
+    public long lastModified;
+    public int chunkSize;
+    public HashMap<String, String> params;
+    /**
+     * '1' at index i if chunk i is uploaded, otherwise '0'
+     */
+    public String chunkStates;
+
+    public UploadTask() {
+    }
+
+    UploadTask(String uploadId, String url, File file, int chunkSize,
+               HashMap<String, String> params) {
+        this.uploadId = uploadId;
+        this.url = url;
+        this.filePath = file.getAbsolutePath();
+        this.fileLength = file.length();
+        this.lastModified = file.lastModified();
+        this.chunkSize = chunkSize;
+        this.params = params;
+        char[] states = new char[chunkCount()];
+        Arrays.fill(states, '0');
+        this.chunkStates = new String(states);
+    }
+
+    public int chunkCount() {
+        return (int) Math.max(1, (fileLength + chunkSize - 1) / chunkSize);
+    }
+
+    public long chunkOffset(int index) {
+        return (long) index * chunkSize;
+    }
+
+    public long chunkLength(int index) {
+        return Math.min(chunkSize, fileLength - chunkOffset(index));
+    }
+
+    public synchronized boolean isChunkUploaded(int index) {
+        return chunkStates.charAt(index) == '1';
+    }
+
+    synchronized void setChunkUploaded(int index) {
+        char[] states = chunkStates.toCharArray();
+        states[index] = '1';
+        chunkStates = new String(states);
+    }
+
+    /**
+     * @return bytes of the uploaded chunks
+     */
+    public synchronized long uploadedBytes() {
+        long bytes = 0;
+        for (int idx = 0; idx < chunkStates.length(); idx++) {
+            if (chunkStates.charAt(idx) == '1') {
+                bytes += chunkLength(idx);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return false if the file is changed or deleted since the task created
+     */
+    boolean matches(File file) {
+        return file.exists() && file.length() == fileLength && file.lastModified() == lastModified;
+    }
+}
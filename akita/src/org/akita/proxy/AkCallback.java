@@ -0,0 +1,34 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.proxy;
+
+import org.akita.exception.AkException;
+
+/**
+ * Completion callback of an async api invocation.
+ * Declare it as a param (without @AkParam) of the api method, then the method is
+ * invoked on the shared api executor and the callback is called on ui thread.
+ * <pre>
+ * &#64;AkGET
+ * &#64;AkAPI(url="http://server/items")
+ * void getItems(&#64;AkParam("page") int page, AkCallback&lt;ItemList&gt; callback);
+ * </pre>
+ */
+public interface AkCallback<T> {
+
+    public void onSuccess(T t);
+
+    public void onFailure(AkException e);
+
+}
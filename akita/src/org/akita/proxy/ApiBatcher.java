@@ -0,0 +1,327 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.proxy;
+
+import org.akita.exception.AkInvokeException;
+import org.akita.exception.AkServerStatusException;
+import org.akita.io.HttpInvoker;
+import org.akita.io.NetworkMetrics;
+import org.akita.proxy.ApiExecutor.ApiFuture;
+import org.akita.proxy.ProxyInvocationHandler.PreparedCall;
+import org.akita.util.Log;
+import org.apache.http.NameValuePair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Combines the invocations of the @AkBatch apis into one request to the batch endpoint.
+ * The invocations of the same batch url made within the window of the first one are
+ * batched, or group them explicitly on current thread:
+ * <pre>
+ * ApiBatcher.begin();
+ * try {
+ *     Future&lt;User&gt; user = api.getUser(uid);
+ *     Future&lt;List&lt;Feed&gt;&gt; feeds = api.getFeeds(uid);
+ * } finally {
+ *     ApiBatcher.end(); // the grouped invocations are sent
+ * }
+ * </pre>
+ * A sync invocation in the group sends the group at once, since it waits for its result.
+ * The batches are sent on their own threads, so the sync invocations waiting on
+ * the HttpDispatcher workers can never starve them.
+ * The batched invocations are neither cached nor retried, see AkBatch.
+ */
+public class ApiBatcher {
+    private static final String TAG = "ApiBatcher";
+    /**
+     * name of the batch requests in NetworkMetrics
+     */
+    private static final String BATCH_API = "[batch]";
+
+    private static final int MAX_SENDERS = 4;
+
+    private static final ThreadPoolExecutor sSenders = new ThreadPoolExecutor(
+            MAX_SENDERS, MAX_SENDERS, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "akita-batch-send #" + mCount.getAndIncrement());
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                }
+            });
+
+    static {
+        sSenders.allowCoreThreadTimeOut(true);
+    }
+
+    private static final ScheduledThreadPoolExecutor sTimer =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "akita-batch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * batch key -> the batch collecting in its window, guarded by ApiBatcher.class
+     */
+    private static final HashMap<String, Batch> sPending = new HashMap<String, Batch>();
+    private static final ThreadLocal<Group> sGroup = new ThreadLocal<Group>();
+
+    /**
+     * Start grouping the @AkBatch invocations on current thread, can be nested
+     */
+    public static void begin() {
+        Group group = sGroup.get();
+        if (group == null) {
+            group = new Group();
+            sGroup.set(group);
+        }
+        group.depth++;
+    }
+
+    /**
+     * End the grouping, the grouped invocations are sent when the outermost group ends
+     */
+    public static void end() {
+        Group group = sGroup.get();
+        if (group == null) return;
+        if (--group.depth > 0) return;
+        sGroup.remove();
+        group.flush();
+    }
+
+    /**
+     * Add the invocation to its batch
+     * @param plan the plan of api method, with akBatch
+     * @param args Method's params' values
+     * @param callId id of the invocation for HttpEventListener, 0 if no listener
+     * @return the Future of decoded result
+     */
+    static Future<Object> submit(InvokePlan plan, Object[] args, long callId) {
+        ApiFuture future = new ApiFuture(plan, args, callId);
+        PreparedCall call;
+        try {
+            call = ProxyInvocationHandler.prepare(plan, args, callId);
+        } catch (AkInvokeException e) {
+            future.fail(e);
+            return future;
+        }
+        String key = plan.akBatch.url() + " " + plan.batchCodec.getClass().getName();
+
+        Group group = sGroup.get();
+        if (group != null) {
+            Batch batch = group.batches.get(key);
+            if (batch == null) {
+                batch = new Batch(plan);
+                group.batches.put(key, batch);
+            }
+            batch.add(call, future);
+            if (batch.isFull() || !plan.async) {
+                group.flush();
+            }
+            return future;
+        }
+
+        Batch toSend = null;
+        synchronized (ApiBatcher.class) {
+            Batch batch = sPending.get(key);
+            if (batch == null) {
+                batch = new Batch(plan);
+                sPending.put(key, batch);
+                if (plan.akBatch.window() > 0) {
+                    scheduleFlush(key, batch, plan.akBatch.window());
+                }
+            }
+            batch.add(call, future);
+            if (batch.isFull() || plan.akBatch.window() <= 0) {
+                sPending.remove(key);
+                toSend = batch;
+            }
+        }
+        if (toSend != null) {
+            toSend.send();
+        }
+        return future;
+    }
+
+    /**
+     * Wait for the result of the batched sync invocation
+     */
+    static Object await(Future<Object> future) throws AkInvokeException, AkServerStatusException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AkInvokeException) {
+                throw (AkInvokeException) cause;
+            } else if (cause instanceof AkServerStatusException) {
+                throw (AkServerStatusException) cause;
+            }
+            throw new AkInvokeException(AkInvokeException.CODE_UNKOWN_ERROR,
+                    String.valueOf(cause), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AkInvokeException(AkInvokeException.CODE_REQUEST_CANCELLED,
+                    "Interrupted while waiting for the batch", e);
+        }
+    }
+
+    private static void scheduleFlush(final String key, final Batch batch, int window) {
+        sTimer.schedule(new Runnable() {
+            public void run() {
+                synchronized (ApiBatcher.class) {
+                    if (sPending.get(key) != batch) return; // sent already when full
+                    sPending.remove(key);
+                }
+                batch.send();
+            }
+        }, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * the invocations grouped on a thread, batch key -> batch
+     */
+    private static class Group {
+        final LinkedHashMap<String, Batch> batches = new LinkedHashMap<String, Batch>();
+        int depth;
+
+        void flush() {
+            for (Batch batch : batches.values()) {
+                batch.send();
+            }
+            batches.clear();
+        }
+    }
+
+    /**
+     * the invocations sent in one request, of the same batch url and codec
+     */
+    private static class Batch implements Runnable {
+        private final String mUrl;
+        private final BatchCodec mCodec;
+        private final int mMaxSize;
+        private final ArrayList<PreparedCall> mCalls = new ArrayList<PreparedCall>();
+        private final ArrayList<ApiFuture> mFutures = new ArrayList<ApiFuture>();
+
+        Batch(InvokePlan plan) {
+            mUrl = plan.akBatch.url();
+            mCodec = plan.batchCodec;
+            mMaxSize = Math.max(plan.akBatch.maxSize(), 1);
+        }
+
+        void add(PreparedCall call, ApiFuture future) {
+            mCalls.add(call);
+            mFutures.add(future);
+        }
+
+        boolean isFull() {
+            return mCalls.size() >= mMaxSize;
+        }
+
+        void send() {
+            try {
+                sSenders.execute(this);
+            } catch (RejectedExecutionException e) {
+                failAll(new AkInvokeException(AkInvokeException.CODE_REQUEST_REJECTED,
+                        "Too many api invocations queued, batch of " + mUrl + " rejected.", e));
+            }
+        }
+
+        public void run() {
+            if (mCalls.size() == 1) {
+                // no need to wrap a single invocation
+                try {
+                    mFutures.get(0).complete(ProxyInvocationHandler.execute(mCalls.get(0)));
+                } catch (Exception e) {
+                    mFutures.get(0).fail(e);
+                }
+                return;
+            }
+
+            List<BatchCodec.Response> responses;
+            try {
+                ArrayList<BatchCodec.Request> requests =
+                        new ArrayList<BatchCodec.Request>(mCalls.size());
+                List<NameValuePair> noParams = Collections.emptyList();
+                for (PreparedCall call : mCalls) {
+                    requests.add(call.getUrl != null ?
+                            new BatchCodec.Request("GET", call.getUrl, noParams)
+                            : new BatchCodec.Request("POST", call.postUrl, call.params));
+                }
+                Log.v(TAG, "batch {} invocations to {}", mCalls.size(), mUrl);
+                String previousApi = NetworkMetrics.tagApi(BATCH_API);
+                try {
+                    responses = mCodec.decode(HttpInvoker.post(mUrl,
+                            new ArrayList<NameValuePair>(mCodec.encode(requests))));
+                } finally {
+                    NetworkMetrics.tagApi(previousApi);
+                }
+            } catch (Exception e) {
+                failAll(e);
+                return;
+            }
+
+            for (int idx = 0; idx < mCalls.size(); idx++) {
+                PreparedCall call = mCalls.get(idx);
+                InvokePlan plan = call.plan;
+                ApiFuture future = mFutures.get(idx);
+                if (idx >= responses.size()) {
+                    future.fail(new AkInvokeException(AkInvokeException.CODE_JSONPROCESS_EXCEPTION,
+                            "No response of " + plan.apiName + " in the batch"));
+                    continue;
+                }
+                BatchCodec.Response response = responses.get(idx);
+                if (response.status < 200 || response.status >= 300) {
+                    NetworkMetrics.recordError(plan.apiName, response.status);
+                    future.fail(new AkServerStatusException(response.status, response.body));
+                    continue;
+                }
+                Object result;
+                try {
+                    result = plan.decode(response.body);
+                } catch (Exception e) {
+                    Log.e(TAG, response.body, e);
+                    future.fail(new AkInvokeException(AkInvokeException.CODE_JSONPROCESS_EXCEPTION,
+                            e.getMessage(), e));
+                    continue;
+                }
+                ProxyInvocationHandler.fireBodyDecoded(call, result);
+                future.complete(result);
+            }
+        }
+
+        private void failAll(Exception e) {
+            for (ApiFuture future : mFutures) {
+                future.fail(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.proxy;
+
+import android.os.Handler;
+import android.os.Looper;
+import org.akita.exception.AkException;
+import org.akita.exception.AkInvokeException;
+import org.akita.io.DispatchTask;
+import org.akita.io.HttpDispatcher;
+import org.akita.io.NetworkMetrics;
+import org.akita.io.RetryPolicy;
+import org.akita.util.Log;
+
+import java.util.concurrent.*;
+
+/**
+ * Executor of the async api invocations,
+ * that is the api returns Future&lt;T&gt; or has an AkCallback&lt;T&gt; param.
+ * Many requests can be in flight without one AsyncTask per call.
+ * The invocations run on HttpDispatcher as PRIORITY_INTERACTIVE,
+ * Future.cancel aborts the request in flight.
+ * The requests in flight are bounded by HttpDispatcher.setMaxRunning.
+ */
+public class ApiExecutor {
+    private static final String TAG = "ApiExecutor";
+
+    private static final Handler sUiHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Execute the api on the shared executor
+     * @param plan the plan of api method
+     * @param args Method's params' values
+     * @param callId id of the invocation for HttpEventListener, 0 if no listener
+     * @return the Future of decoded result
+     */
+    static Future<Object> submit(InvokePlan plan, Object[] args, long callId) {
+        RetryPolicy.onRequest();
+        ApiFutureTask task = new ApiFutureTask(plan, args, callId);
+        task.execute();
+        return task;
+    }
+
+    /**
+     * Future of the api result, completed by complete or fail.
+     * Delivers the result to AkCallback on ui thread when done,
+     * and reports the end of the invocation to HttpEventListener.
+     */
+    static class ApiFuture extends FutureTask<Object> {
+        private static final Callable<Object> NO_OP = new Callable<Object>() {
+            public Object call() {
+                return null;
+            }
+        };
+
+        final InvokePlan mPlan;
+        /**
+         * id of the invocation for HttpEventListener, 0 if no listener
+         */
+        final long mCallId;
+        private final AkCallback<Object> mCallback;
+
+        ApiFuture(InvokePlan plan, Object[] args, long callId) {
+            super(NO_OP);
+            mPlan = plan;
+            mCallId = callId;
+            mCallback = plan.callbackOf(args);
+        }
+
+        void complete(Object result) {
+            set(result);
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+
+        @Override
+        protected void done() {
+            if (mCallId != 0) {
+                fireCallEnd();
+            }
+            if (mCallback == null || isCancelled()) return;
+
+            Object result = null;
+            AkException exception = null;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                exception = (cause instanceof AkException) ? (AkException) cause
+                        : new AkInvokeException(AkInvokeException.CODE_UNKOWN_ERROR,
+                                String.valueOf(cause), cause);
+            } catch (Exception e) {
+                exception = new AkInvokeException(
+                        AkInvokeException.CODE_UNKOWN_ERROR, e.toString(), e);
+            }
+
+            final Object fResult = result;
+            final AkException fException = exception;
+            sUiHandler.post(new Runnable() {
+                public void run() {
+                    if (fException != null) {
+                        mCallback.onFailure(fException);
+                    } else {
+                        mCallback.onSuccess(fResult);
+                    }
+                }
+            });
+        }
+
+        private void fireCallEnd() {
+            Exception failure = null;
+            if (isCancelled()) {
+                failure = new CancellationException();
+            } else {
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failure = (cause instanceof Exception) ? (Exception) cause : e;
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+            ProxyInvocationHandler.fireCallEnd(mPlan, mCallId, failure);
+        }
+    }
+
+    /**
+     * ApiFuture which runs one try of the api each time, the failed try is
+     * rescheduled after the backoff by RetryPolicy, not sleeping on the worker.
+     */
+    private static class ApiFutureTask extends ApiFuture {
+        private final Object[] mArgs;
+        private int mRetried;
+        private volatile DispatchTask mDispatch;
+
+        ApiFutureTask(InvokePlan plan, Object[] args, long callId) {
+            super(plan, args, callId);
+            mArgs = args;
+        }
+
+        void execute() {
+            try {
+                mDispatch = HttpDispatcher.submit(this, HttpDispatcher.PRIORITY_INTERACTIVE);
+            } catch (RejectedExecutionException e) {
+                setException(new AkInvokeException(AkInvokeException.CODE_REQUEST_REJECTED,
+                        "Too many api invocations queued, " + mPlan.apiName + " rejected.", e));
+            }
+        }
+
+        /**
+         * one try of the api
+         */
+        @Override
+        public void run() {
+            if (isDone()) return;
+            try {
+                set(ProxyInvocationHandler.invokeOnce(mPlan, mArgs, mCallId));
+            } catch (Exception e) {
+                long delay = mPlan.retryPolicy.nextDelay(mRetried, e);
+                if (delay < 0) {
+                    setException(e);
+                    return;
+                }
+                mRetried++;
+                Log.w(TAG, "retry " + mPlan.apiName + " in " + delay + "ms, " + e);
+                NetworkMetrics.recordRetry(mPlan.apiName);
+                RetryPolicy.schedule(new Runnable() {
+                    public void run() {
+                        if (!isDone()) execute();
+                    }
+                }, delay);
+            }
+        }
+
+        /**
+         * cancel the invocation and abort its request in flight
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(false);
+            DispatchTask dispatch = mDispatch;
+            if (cancelled && dispatch != null) {
+                dispatch.cancel();
+            }
+            return cancelled;
+        }
+    }
+}
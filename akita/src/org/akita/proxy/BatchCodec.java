@@ -0,0 +1,75 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.proxy;
+
+import org.akita.exception.AkInvokeException;
+import org.apache.http.NameValuePair;
+
+import java.util.List;
+
+/**
+ * Codec of the batch endpoint, encodes the batched invocations into the params
+ * posted to the batch url, and splits the batched response in the same order.
+ * The implementation must have a public no-arg constructor, see AkBatch.using.
+ */
+public interface BatchCodec {
+
+    public List<NameValuePair> encode(List<Request> requests) throws AkInvokeException;
+
+    /**
+     * @param response the response string of the batch endpoint
+     * @return the responses in the order of the requests
+     */
+    public List<Response> decode(String response) throws AkInvokeException;
+
+    /**
+     * One invocation in the batch
+     */
+    public static class Request {
+        /**
+         * "GET" or "POST"
+         */
+        public final String method;
+        /**
+         * the url with params if GET, otherwise the url to post
+         */
+        public final String url;
+        /**
+         * params to post, empty if GET
+         */
+        public final List<NameValuePair> params;
+
+        public Request(String method, String url, List<NameValuePair> params) {
+            this.method = method;
+            this.url = url;
+            this.params = params;
+        }
+    }
+
+    /**
+     * Response of one invocation in the batch
+     */
+    public static class Response {
+        /**
+         * http status code
+         */
+        public final int status;
+        public final String body;
+
+        public Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.proxy;
+
+import org.akita.annotation.*;
+import org.akita.exception.AkInvokeException;
+import org.akita.io.ResponseDecoder;
+import org.akita.io.RetryPolicy;
+import org.akita.util.JsonMapper;
+import org.akita.util.Log;
+import org.apache.http.HttpEntity;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.type.JavaType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable invocation plan of one api method.
+ * All the annotations of the method are read once here (http verb, url template,
+ * params' names and encodes, signature, return type), so the invocation hot path
+ * does no annotation lookup, regex compiling or reflective construction.
+ */
+public class InvokePlan {
+    private static final String TAG = "InvokePlan";
+
+    public static final int VERB_POST = 0;
+    public static final int VERB_GET = 1;
+
+    static final String PARAM_MAP = "$paramMap";
+    static final String FILES_TO_SEND = "$filesToSend";
+
+    private static final Pattern URL_PARAM_PATTERN = Pattern.compile("\\{(.+?)\\}");
+
+    private static final int BIND_NONE = 0;
+    private static final int BIND_VALUE = 1;
+    private static final int BIND_PARAM_MAP = 2;
+    private static final int BIND_FILES = 3;
+
+    final String apiName;
+    final String url;
+    final int verb;
+    final AkSignature akSig;
+    final InvokeSignature signature;
+    final Type returnType;
+    /**
+     * type of the decoded result, the T of Future&lt;T&gt; or AkCallback&lt;T&gt; for async api
+     */
+    final Type resultType;
+    /**
+     * null if the result type is String, that raw string will be returned
+     */
+    private final JavaType resultJavaType;
+    /**
+     * decoder of the response entity stream, null if the result type is String
+     */
+    final ResponseDecoder<Object> streamDecoder;
+    /**
+     * @AkCache maxAge of the GET api, -1 if not cached
+     */
+    final int cacheMaxAge;
+    /**
+     * @AkRetry of the api, RetryPolicy.DEFAULT for GET and RetryPolicy.NONE for POST if absent
+     */
+    final RetryPolicy retryPolicy;
+    /**
+     * @AkBatch of the api, null if not batched
+     */
+    final AkBatch akBatch;
+    /**
+     * codec of akBatch, null if not batched
+     */
+    final BatchCodec batchCodec;
+    /**
+     * index of the AkCallback param, -1 if none
+     */
+    private final int callbackIndex;
+    /**
+     * true if invoked on ApiExecutor, that the api returns Future or has AkCallback param
+     */
+    final boolean async;
+
+    /**
+     * url split by its {name} blocks, literal at even index, param name at odd index
+     */
+    private final String[] urlTokens;
+    private final String[] paramNames;
+    /**
+     * encode charset of each param, null if no need to encode
+     */
+    private final String[] paramEncodes;
+    private final int[] paramBinds;
+
+    /**
+     * @param apiName name of the api method
+     * @param verb VERB_GET or VERB_POST
+     * @param url url of the api, may include {name} blocks
+     * @param paramNames @AkParam value of each method param, null if not annotated
+     * @param paramEncodes @AkParam encode of each method param
+     * @param akSig @AkSignature of the method, may be null
+     * @param returnType generic return type of the method
+     * @throws AkInvokeException if the signature class can not be instantiated
+     */
+    public InvokePlan(String apiName, int verb, String url, String[] paramNames,
+                      String[] paramEncodes, AkSignature akSig, Type returnType)
+            throws AkInvokeException {
+        this(apiName, verb, url, paramNames, paramEncodes, akSig, returnType, -1, null,
+                null, null, null);
+    }
+
+    InvokePlan(String apiName, int verb, String url, String[] paramNames,
+               String[] paramEncodes, AkSignature akSig, Type returnType,
+               int callbackIndex, Type callbackResultType, AkCache akCache, AkRetry akRetry,
+               AkBatch akBatch)
+            throws AkInvokeException {
+        this.apiName = apiName;
+        this.verb = verb;
+        this.url = url;
+        this.akSig = akSig;
+        this.signature = newSignature(akSig);
+        this.returnType = returnType;
+        this.callbackIndex = callbackIndex;
+        if (akRetry != null) {
+            this.retryPolicy = akRetry.maxRetries() > 0 ? new RetryPolicy(
+                    akRetry.maxRetries(), akRetry.baseDelay(), akRetry.maxDelay()) : RetryPolicy.NONE;
+        } else {
+            this.retryPolicy = verb == VERB_GET ? RetryPolicy.DEFAULT : RetryPolicy.NONE;
+        }
+        this.cacheMaxAge = (akCache != null && verb == VERB_GET) ? Math.max(akCache.maxAge(), 0) : -1;
+        boolean returnsFuture = Future.class.equals(rawClassOf(returnType));
+        this.async = returnsFuture || callbackIndex >= 0;
+        if (callbackIndex >= 0) {
+            this.resultType = callbackResultType;
+        } else if (returnsFuture) {
+            this.resultType = typeArgumentOf(returnType);
+        } else {
+            this.resultType = returnType;
+        }
+        this.resultJavaType = String.class.equals(resultType) ?
+                null : JsonMapper.constructType(resultType);
+        this.streamDecoder = resultJavaType == null ? null : new JsonStreamDecoder(resultJavaType);
+        this.urlTokens = tokenizeUrl(url);
+        this.paramNames = paramNames.clone();
+        this.paramEncodes = new String[paramNames.length];
+        this.paramBinds = new int[paramNames.length];
+        boolean postsFiles = false;
+        for (int idx = 0; idx < paramNames.length; idx++) {
+            String encode = paramEncodes[idx];
+            this.paramEncodes[idx] = (encode != null && !"none".equals(encode)) ? encode : null;
+            if (paramNames[idx] == null) {
+                paramBinds[idx] = BIND_NONE;
+            } else if (PARAM_MAP.equals(paramNames[idx])) {
+                paramBinds[idx] = BIND_PARAM_MAP;
+            } else if (FILES_TO_SEND.equals(paramNames[idx])) {
+                paramBinds[idx] = BIND_FILES;
+                postsFiles = true;
+            } else {
+                paramBinds[idx] = BIND_VALUE;
+            }
+        }
+        this.akBatch = postsFiles ? null : akBatch;
+        if (this.akBatch != null && (akCache != null || akRetry != null)) {
+            throw new AkInvokeException(AkInvokeException.CODE_FULFILL_INVOKE_EXCEPTION,
+                    "@AkBatch api " + apiName + " can not be @AkCache or @AkRetry, "
+                            + "the batched invocations are neither cached nor retried.");
+        }
+        this.batchCodec = newBatchCodec(this.akBatch);
+    }
+
+    /**
+     * Build the plan of the api method by reading its annotations.
+     * @param method api method
+     * @return plan
+     * @throws AkInvokeException
+     */
+    public static InvokePlan of(Method method) throws AkInvokeException {
+        AkAPI akApi = method.getAnnotation(AkAPI.class);
+        if (akApi == null) {
+            throw new AkInvokeException(AkInvokeException.CODE_TARGET_HOST_OR_URL_ERROR,
+                    "No @AkAPI declared on method " + method.getName() + ".");
+        }
+        int verb = method.getAnnotation(AkGET.class) != null ? VERB_GET : VERB_POST;
+
+        Annotation[][] annosArr = method.getParameterAnnotations();
+        Type[] paramTypes = method.getGenericParameterTypes();
+        String[] names = new String[annosArr.length];
+        String[] encodes = new String[annosArr.length];
+        int callbackIndex = -1;
+        Type callbackResultType = null;
+        for (int idx = 0; idx < annosArr.length; idx++) {
+            for (Annotation a : annosArr[idx]) {
+                if (AkParam.class.equals(a.annotationType())) {
+                    AkParam ap = (AkParam) a;
+                    names[idx] = ap.value();
+                    encodes[idx] = ap.encode();
+                }
+            }
+            if (names[idx] == null && AkCallback.class.equals(rawClassOf(paramTypes[idx]))) {
+                callbackIndex = idx;
+                callbackResultType = typeArgumentOf(paramTypes[idx]);
+            }
+        }
+        return new InvokePlan(method.getName(), verb, akApi.url(), names, encodes,
+                method.getAnnotation(AkSignature.class), method.getGenericReturnType(),
+                callbackIndex, callbackResultType, method.getAnnotation(AkCache.class),
+                method.getAnnotation(AkRetry.class), method.getAnnotation(AkBatch.class));
+    }
+
+    public boolean isGet() {
+        return verb == VERB_GET;
+    }
+
+    /**
+     * @param args Method's params' values
+     * @return the AkCallback in args, null if none
+     */
+    @SuppressWarnings("unchecked")
+    AkCallback<Object> callbackOf(Object[] args) {
+        if (callbackIndex < 0 || args == null) return null;
+        return (AkCallback<Object>) args[callbackIndex];
+    }
+
+    /**
+     * AkApiParams to hashmap, filter out of null-value
+     *
+     * @param args Method's params' values
+     * @param filesToSend
+     * @param paramsMapOri
+     * @return HashMap all (paramName -> paramValue)
+     */
+    @SuppressWarnings("unchecked")
+    HashMap<String, String> bindParams(Object[] args,
+                                       HashMap<String, File> filesToSend,
+                                       HashMap<String, String> paramsMapOri) {
+        HashMap<String, String> paramsMap = new HashMap<String, String>();
+        if (args == null) return paramsMap;
+        for (int idx = 0; idx < args.length && idx < paramBinds.length; idx++) {
+            Object arg = args[idx];
+            if (arg == null) continue; // filter out of null-value param
+            String paramName = paramNames[idx];
+            String encode = paramEncodes[idx];
+            switch (paramBinds[idx]) {
+                case BIND_PARAM_MAP:
+                    Map<String, String> paramMap = (Map<String, String>) arg;
+                    paramsMapOri.putAll(paramMap);
+                    if (encode != null) {
+                        for (Entry<String, String> entry : paramMap.entrySet()) {
+                            paramsMap.put(entry.getKey(), encode(entry.getValue(), encode));
+                        }
+                    } else {
+                        paramsMap.putAll(paramMap);
+                    }
+                    break;
+                case BIND_FILES:
+                    if (arg instanceof Map) {
+                        filesToSend.putAll((Map<String, File>) arg);
+                    }
+                    break;
+                case BIND_VALUE:
+                    String value = arg.toString();
+                    paramsMap.put(paramName, encode != null ? encode(value, encode) : value);
+                    paramsMapOri.put(paramName, value);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return paramsMap;
+    }
+
+    private static String encode(String value, String encode) {
+        if (value == null) return null;
+        try {
+            return URLEncoder.encode(value, encode);
+        } catch (UnsupportedEncodingException e) {
+            Log.w(TAG, "UnsupportedEncodingException:" + encode);
+            return value;
+        }
+    }
+
+    /**
+     * Replace all the {} block in url to the actual params,
+     * clear the params used in {block}, return replaced url.
+     * @param params such as hashmap include (namespace->'mobile')
+     * @return the parsed param will be removed in HashMap (params)
+     */
+    String resolveUrl(HashMap<String, String> params) throws AkInvokeException {
+        if (urlTokens.length == 1) return urlTokens[0];
+
+        StringBuilder sbUrl = new StringBuilder(url.length() + 32);
+        for (int idx = 0; idx < urlTokens.length; idx++) {
+            if ((idx & 1) == 0) {
+                sbUrl.append(urlTokens[idx]);
+            } else {
+                String paramValue = params.remove(urlTokens[idx]);
+                if (paramValue == null) { // 对于{name}没有匹配到的则抛出异常
+                    throw new AkInvokeException(AkInvokeException.CODE_PARAM_IN_URL_NOT_FOUND,
+                            "Parameter {" + urlTokens[idx] + "}'s value not found of url " + url + ".");
+                }
+                sbUrl.append(paramValue);
+            }
+        }
+        return sbUrl.toString();
+    }
+
+    private static String[] tokenizeUrl(String url) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        Matcher matcher = URL_PARAM_PATTERN.matcher(url);
+        int last = 0;
+        while (matcher.find()) {
+            tokens.add(url.substring(last, matcher.start()));
+            tokens.add(matcher.group(1));
+            last = matcher.end();
+        }
+        tokens.add(url.substring(last));
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    private static InvokeSignature newSignature(AkSignature akSig) throws AkInvokeException {
+        if (akSig == null) return null;
+        Class<?> clazzSignature = akSig.using();
+        if (!InvokeSignature.class.isAssignableFrom(clazzSignature)) {
+            return null;
+        }
+        try {
+            return (InvokeSignature) clazzSignature.getConstructors()[0].newInstance();
+        } catch (Exception e) {
+            throw new AkInvokeException(AkInvokeException.CODE_FULFILL_INVOKE_EXCEPTION,
+                    "Signature class " + clazzSignature.getName() + " can not be instantiated.", e);
+        }
+    }
+
+    private static BatchCodec newBatchCodec(AkBatch akBatch) throws AkInvokeException {
+        if (akBatch == null) return null;
+        Class<?> clazzCodec = akBatch.using();
+        if (!BatchCodec.class.isAssignableFrom(clazzCodec)) {
+            throw new AkInvokeException(AkInvokeException.CODE_FULFILL_INVOKE_EXCEPTION,
+                    "Batch codec " + clazzCodec.getName() + " is not a BatchCodec.");
+        }
+        try {
+            return (BatchCodec) clazzCodec.newInstance();
+        } catch (Exception e) {
+            throw new AkInvokeException(AkInvokeException.CODE_FULFILL_INVOKE_EXCEPTION,
+                    "Batch codec " + clazzCodec.getName() + " can not be instantiated.", e);
+        }
+    }
+
+    /**
+     * parse the return-string to the result type of the api
+     * @param retString response string
+     * @return raw string if result type is String, otherwise object using json decode
+     */
+    Object decode(String retString) throws Exception {
+        if (resultJavaType == null) {
+            return retString;
+        } else {
+            return JsonMapper.json2pojo(retString, resultJavaType);
+        }
+    }
+
+    /**
+     * decode the json result straight from the (maybe gzip-decoded) entity stream
+     */
+    private static class JsonStreamDecoder implements ResponseDecoder<Object> {
+        private final JavaType mType;
+
+        JsonStreamDecoder(JavaType type) {
+            mType = type;
+        }
+
+        public Object decode(HttpEntity entity) throws IOException, AkInvokeException {
+            InputStream is = entity.getContent();
+            if (is == null) return null;
+            try {
+                return JsonMapper.json2pojo(is, mType);
+            } catch (JsonProcessingException e) {
+                Log.e(TAG, e.toString(), e);
+                throw new AkInvokeException(AkInvokeException.CODE_JSONPROCESS_EXCEPTION,
+                        e.getMessage(), e);
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException ignore) { }
+            }
+        }
+    }
+
+    private static Class<?> rawClassOf(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        } else if (type instanceof ParameterizedType) {
+            return rawClassOf(((ParameterizedType) type).getRawType());
+        } else {
+            return Object.class;
+        }
+    }
+
+    /**
+     * @return the first type argument, such as Item of Future&lt;Item&gt;, Object if raw type
+     */
+    private static Type typeArgumentOf(Type type) {
+        if (type instanceof ParameterizedType) {
+            Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (arg instanceof WildcardType) {
+                return ((WildcardType) arg).getUpperBounds()[0];
+            }
+            return arg;
+        }
+        return Object.class;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.proxy;
+
+import org.akita.exception.AkInvokeException;
+import org.akita.util.JsonMapper;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.codehaus.jackson.JsonNode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Default BatchCodec. Posts the requests as json array in param "batch":
+ * [{"method":"GET","url":"..."},{"method":"POST","url":"...","params":{"k":"v"}}],
+ * and reads the responses from json array [{"status":200,"body":...}],
+ * the body is json value or string.
+ */
+public class JsonBatchCodec implements BatchCodec {
+    public static final String PARAM_BATCH = "batch";
+
+    public List<NameValuePair> encode(List<Request> requests) throws AkInvokeException {
+        ArrayList<Map<String, Object>> items = new ArrayList<Map<String, Object>>(requests.size());
+        for (Request request : requests) {
+            HashMap<String, Object> item = new HashMap<String, Object>();
+            item.put("method", request.method);
+            item.put("url", request.url);
+            if (!request.params.isEmpty()) {
+                HashMap<String, String> params = new HashMap<String, String>();
+                for (NameValuePair nvp : request.params) {
+                    params.put(nvp.getName(), nvp.getValue());
+                }
+                item.put("params", params);
+            }
+            items.add(item);
+        }
+        ArrayList<NameValuePair> params = new ArrayList<NameValuePair>(1);
+        try {
+            params.add(new BasicNameValuePair(PARAM_BATCH, JsonMapper.pojo2json(items)));
+        } catch (Exception e) {
+            throw new AkInvokeException(AkInvokeException.CODE_JSONPROCESS_EXCEPTION,
+                    e.toString(), e);
+        }
+        return params;
+    }
+
+    public List<Response> decode(String response) throws AkInvokeException {
+        JsonNode root;
+        try {
+            root = JsonMapper.json2node(response);
+        } catch (Exception e) {
+            throw new AkInvokeException(AkInvokeException.CODE_JSONPROCESS_EXCEPTION,
+                    e.toString(), e);
+        }
+        if (root == null || !root.isArray()) {
+            throw new AkInvokeException(AkInvokeException.CODE_JSONPROCESS_EXCEPTION,
+                    "Batch response is not a json array");
+        }
+        ArrayList<Response> responses = new ArrayList<Response>(root.size());
+        for (JsonNode item : root) {
+            JsonNode body = item.get("body");
+            responses.add(new Response(item.path("status").getIntValue(),
+                    body == null || body.isNull() ? null
+                            : (body.isTextual() ? body.getTextValue() : body.toString())));
+        }
+        return responses;
+    }
+}
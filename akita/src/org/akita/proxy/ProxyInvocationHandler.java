@@ -13,25 +13,28 @@
  */
 package org.akita.proxy;
 
-import org.akita.annotation.*;
 import org.akita.exception.AkInvokeException;
+import org.akita.exception.AkServerStatusException;
+import org.akita.io.CancellationToken;
+import org.akita.io.HttpEventListener;
 import org.akita.io.HttpInvoker;
-import org.akita.util.JsonMapper;
+import org.akita.io.NetworkMetrics;
+import org.akita.io.RetryPolicy;
 import org.akita.util.Log;
+import org.akita.util.SingleFlight;
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
-import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.net.URLEncoder;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -42,6 +45,14 @@ public class ProxyInvocationHandler implements InvocationHandler {
     
     private static final String TAG = "ProxyInvocationHandler";
 
+    private static final ConcurrentHashMap<Method, InvokePlan> sInvokePlans =
+            new ConcurrentHashMap<Method, InvokePlan>();
+
+    private static volatile boolean sStreamingDecode = true;
+    private static volatile boolean sCoalesceGets = true;
+    private static final SingleFlight<String, Object> sGetFlights = new SingleFlight<String, Object>();
+    private static final AtomicLong sCallIds = new AtomicLong();
+
     public Object bind(Class<?> clazz) {
         Class<?>[] clazzs = {clazz};
         Object newProxyInstance = Proxy.newProxyInstance(
@@ -56,26 +67,177 @@ public class ProxyInvocationHandler implements InvocationHandler {
      */ 
     public Object invoke(Object proxy, Method method, Object[] args)  
             throws Throwable {
-        AkPOST akPost = method.getAnnotation(AkPOST.class);
-        AkGET akGet = method.getAnnotation(AkGET.class);
-        
-        AkAPI akApi = method.getAnnotation(AkAPI.class);
-        Annotation[][] annosArr = method.getParameterAnnotations();
-        String invokeUrl = akApi.url();
+        return invoke(getInvokePlan(method), args);
+    }
+
+    /**
+     * Whether decode the non-String result straight from the response stream,
+     * without materializing the whole response to String first. Default true.
+     * @param streamingDecode false to decode from the response string
+     */
+    public static void setStreamingDecode(boolean streamingDecode) {
+        sStreamingDecode = streamingDecode;
+    }
+
+    /**
+     * Whether concurrent identical GET invocations (same url, params and result type)
+     * share one http request and its decoded result. Default true.
+     * The callers coalesced get the same result instance, treat it as immutable,
+     * or copy it before changing it.
+     * @param coalesceGets false to issue a request per invocation
+     */
+    public static void setCoalesceGets(boolean coalesceGets) {
+        sCoalesceGets = coalesceGets;
+    }
+
+    /**
+     * Get the invocation plan of the method, built on the first invocation and cached.
+     * @param method api method
+     * @return the plan
+     * @throws AkInvokeException
+     */
+    static InvokePlan getInvokePlan(Method method) throws AkInvokeException {
+        InvokePlan plan = sInvokePlans.get(method);
+        if (plan == null) {
+            plan = InvokePlan.of(method);
+            InvokePlan existing = sInvokePlans.putIfAbsent(method, plan);
+            if (existing != null) {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Invoke the api according to its plan.
+     * The async api (returns Future or has AkCallback param) is executed on ApiExecutor,
+     * the @AkBatch api is batched by ApiBatcher.
+     * @param plan the plan of api method
+     * @param args Method's params' values
+     * @return the decoded result, or the Future of it
+     */
+    public static Object invoke(InvokePlan plan, Object[] args)
+            throws AkInvokeException, AkServerStatusException {
+        long callId = 0;
+        HttpEventListener listener = HttpInvoker.getEventListener();
+        if (listener != null) {
+            callId = sCallIds.incrementAndGet();
+            listener.callStart(callId, plan.apiName);
+        }
+        if (plan.akBatch != null) {
+            Future<Object> future = ApiBatcher.submit(plan, args, callId);
+            return plan.async ? future : ApiBatcher.await(future);
+        }
+        if (plan.async) {
+            return ApiExecutor.submit(plan, args, callId);
+        }
+        return invokeSync(plan, args, callId);
+    }
+
+    /**
+     * Invoke the api according to its plan on current thread,
+     * retried by plan.retryPolicy after the backoff.
+     * @param plan the plan of api method
+     * @param args Method's params' values
+     * @param callId id of the invocation for HttpEventListener, 0 if no listener
+     * @return the decoded result
+     */
+    static Object invokeSync(InvokePlan plan, Object[] args, long callId)
+            throws AkInvokeException, AkServerStatusException {
+        RetryPolicy.onRequest();
+        for (int retried = 0; ; retried++) {
+            try {
+                Object result = invokeOnce(plan, args, callId);
+                fireCallEnd(plan, callId, null);
+                return result;
+            } catch (AkInvokeException e) {
+                backoffOrFail(plan, retried, e, callId);
+            } catch (AkServerStatusException e) {
+                backoffOrFail(plan, retried, e, callId);
+            }
+        }
+    }
+
+    /**
+     * backoff, or report the failure to HttpEventListener and throw e if no more retry
+     */
+    private static <E extends Exception> void backoffOrFail(InvokePlan plan, int retried,
+                                                            E e, long callId) throws E {
+        try {
+            backoff(plan, retried, e);
+        } catch (Exception noMoreRetry) {
+            fireCallEnd(plan, callId, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Report the end of the invocation to HttpEventListener
+     * @param e the failure, null if succeeded
+     */
+    static void fireCallEnd(InvokePlan plan, long callId, Exception e) {
+        HttpEventListener listener = HttpInvoker.getEventListener();
+        if (listener == null || callId == 0) return;
+        if (e == null) {
+            listener.callEnd(callId, plan.apiName);
+        } else {
+            listener.callFailed(callId, plan.apiName, e);
+        }
+    }
+
+    /**
+     * wait for the retry, or throw e if no more retry
+     */
+    private static <E extends Exception> void backoff(InvokePlan plan, int retried, E e) throws E {
+        long delay = plan.retryPolicy.nextDelay(retried, e);
+        if (delay < 0) {
+            throw e;
+        }
+        Log.w(TAG, "retry " + plan.apiName + " in " + delay + "ms, " + e);
+        NetworkMetrics.recordRetry(plan.apiName);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    /**
+     * Invoke the api according to its plan on current thread, once
+     * @param plan the plan of api method
+     * @param args Method's params' values
+     * @param callId id of the invocation for HttpEventListener, 0 if no listener
+     * @return the decoded result
+     */
+    static Object invokeOnce(InvokePlan plan, Object[] args, long callId)
+            throws AkInvokeException, AkServerStatusException {
+        return execute(prepare(plan, args, callId));
+    }
+
+    /**
+     * Bind the params, resolve the url and sign the request of the invocation
+     * @param plan the plan of api method
+     * @param args Method's params' values
+     * @param callId id of the invocation for HttpEventListener, 0 if no listener
+     * @return the request to execute
+     */
+    static PreparedCall prepare(InvokePlan plan, Object[] args, long callId)
+            throws AkInvokeException {
+        String invokeUrl = plan.url;
         ArrayList<NameValuePair> params = new ArrayList<NameValuePair>();
 
         // AkApiParams to hashmap, filter out of null-value
         HashMap<String, File> filesToSend = new HashMap<String, File>();
         HashMap<String, String> paramsMapOri = new HashMap<String, String>();
-        HashMap<String, String> paramsMap =
-                getRawApiParams2HashMap(annosArr, args, filesToSend, paramsMapOri);
+        HashMap<String, String> paramsMap = plan.bindParams(args, filesToSend, paramsMapOri);
         // Record this invocation
         ApiInvokeInfo apiInvokeInfo = new ApiInvokeInfo();
-        apiInvokeInfo.apiName = method.getName();
+        apiInvokeInfo.apiName = plan.apiName;
         apiInvokeInfo.paramsMap.putAll(paramsMapOri);
         apiInvokeInfo.url = invokeUrl;
         // parse '{}'s in url
-        invokeUrl = parseUrlbyParams(invokeUrl, paramsMap);
+        invokeUrl = plan.resolveUrl(paramsMap);
         // cleared hashmap to params, and filter out of the null value
         Iterator<Entry<String, String>> iter = paramsMap.entrySet().iterator();
         while (iter.hasNext()) {
@@ -84,26 +246,23 @@ public class ProxyInvocationHandler implements InvocationHandler {
         }
         
         // get the signature string if using
-        AkSignature akSig = method.getAnnotation(AkSignature.class);
-        if (akSig != null) {
-            Class<?> clazzSignature = akSig.using();
-            if (clazzSignature.getInterfaces().length > 0 // TODO: NEED VERIFY WHEN I HAVE TIME
-                    && InvokeSignature.class.getName().equals(
-                            clazzSignature.getInterfaces()[0].getName())) {
-                InvokeSignature is =
-                    (InvokeSignature) clazzSignature.getConstructors()[0].newInstance();
-                String sigValue = is.signature(akSig, invokeUrl, params, paramsMapOri);
-                String sigParamName = is.getSignatureParamName();
-                if (sigValue != null && sigParamName != null
-                        && sigValue.length()>0 && sigParamName.length()>0 ) {
-                    params.add(new BasicNameValuePair(sigParamName, sigValue));
-                } 
+        HttpEventListener listener = callId == 0 ? null : HttpInvoker.getEventListener();
+        InvokeSignature is = plan.signature;
+        if (is != null) {
+            String sigValue = is.signature(plan.akSig, invokeUrl, params, paramsMapOri);
+            String sigParamName = is.getSignatureParamName();
+            if (sigValue != null && sigParamName != null
+                    && sigValue.length()>0 && sigParamName.length()>0 ) {
+                params.add(new BasicNameValuePair(sigParamName, sigValue));
+            }
+            if (listener != null) {
+                listener.signatureComputed(callId, plan.apiName, sigValue);
             }
         }
         
         // choose POST GET PUT DELETE to use for this invoke
-        String retString = "";
-        if (akGet != null) {
+        String getUrl = null;
+        if (plan.isGet()) {
             StringBuilder sbUrl = new StringBuilder(invokeUrl);
             if (!(invokeUrl.endsWith("?") || invokeUrl.endsWith("&"))) {
                 sbUrl.append("?");
@@ -114,16 +273,114 @@ public class ProxyInvocationHandler implements InvocationHandler {
                 sbUrl.append(nvp.getValue());
                 sbUrl.append("&");
             } // now default using UTF-8, maybe improved later
-            retString = HttpInvoker.get(sbUrl.toString());
-        } else if (akPost != null) {
+            getUrl = sbUrl.toString();
+        }
+        if (listener != null) {
+            listener.urlResolved(callId, plan.apiName, getUrl != null ? getUrl : invokeUrl);
+        }
+        return new PreparedCall(plan, callId, getUrl, invokeUrl, params, filesToSend);
+    }
+
+    /**
+     * Execute the prepared request and decode the result,
+     * recorded to NetworkMetrics by the api name and reported to HttpEventListener
+     * @param call the prepared request
+     * @return the decoded result
+     */
+    static Object execute(PreparedCall call)
+            throws AkInvokeException, AkServerStatusException {
+        String previousApi = NetworkMetrics.tagApi(call.plan.apiName);
+        long previousCall = call.callId == 0 ? 0 : HttpEventListener.bindCall(call.callId);
+        try {
+            Object result = executeCoalesced(call);
+            fireBodyDecoded(call, result);
+            return result;
+        } catch (AkInvokeException e) {
+            NetworkMetrics.recordError(call.plan.apiName, e.code);
+            throw e;
+        } catch (AkServerStatusException e) {
+            NetworkMetrics.recordError(call.plan.apiName, e.code);
+            throw e;
+        } finally {
+            NetworkMetrics.tagApi(previousApi);
+            if (call.callId != 0) HttpEventListener.bindCall(previousCall);
+        }
+    }
+
+    static void fireBodyDecoded(PreparedCall call, Object result) {
+        HttpEventListener listener = HttpInvoker.getEventListener();
+        if (listener != null && call.callId != 0) {
+            listener.bodyDecoded(call.callId, call.plan.apiName, result);
+        }
+    }
+
+    private static Object executeCoalesced(final PreparedCall call)
+            throws AkInvokeException, AkServerStatusException {
+        // concurrent identical GETs share one request and its decoded result
+        while (call.getUrl != null && sCoalesceGets) {
+            try {
+                return sGetFlights.execute(call.plan.resultType + " " + call.getUrl,
+                        new Callable<Object>() {
+                    public Object call() throws Exception {
+                        return execute(call.plan, call.getUrl, null, null, null);
+                    }
+                });
+            } catch (AkInvokeException e) {
+                CancellationToken token = CancellationToken.current();
+                if (e.code == AkInvokeException.CODE_REQUEST_CANCELLED
+                        && (token == null || !token.isCancelled())) {
+                    // the flight ran on the thread of a caller cancelled, not this one, again
+                    continue;
+                }
+                throw e;
+            } catch (AkServerStatusException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AkInvokeException(AkInvokeException.CODE_REQUEST_CANCELLED,
+                        "Request cancelled", e);
+            } catch (Exception e) {
+                throw new AkInvokeException(AkInvokeException.CODE_UNKOWN_ERROR, e.toString(), e);
+            }
+        }
+        return execute(call.plan, call.getUrl, call.postUrl, call.params, call.filesToSend);
+    }
+
+    /**
+     * Do the http request and decode the result
+     * @param plan the plan of api method
+     * @param getUrl the url with params if GET, otherwise null
+     * @param postUrl the url if POST
+     * @param params params to post
+     * @param filesToSend files to post
+     * @return the decoded result
+     */
+    private static Object execute(InvokePlan plan, String getUrl, String postUrl,
+                                  ArrayList<NameValuePair> params, HashMap<String, File> filesToSend)
+            throws AkInvokeException, AkServerStatusException {
+        // decode the result straight from the response stream
+        if (sStreamingDecode && plan.streamDecoder != null && plan.cacheMaxAge < 0) {
+            if (getUrl != null) {
+                return HttpInvoker.get(getUrl, null, plan.streamDecoder);
+            } else if (filesToSend.isEmpty()) {
+                return HttpInvoker.post(postUrl, params, null, plan.streamDecoder);
+            } else {
+                return HttpInvoker.postWithFiles(postUrl, params, filesToSend, plan.streamDecoder);
+            }
+        }
+
+        String retString = "";
+        if (getUrl != null) {
+            retString = plan.cacheMaxAge >= 0 ?
+                    HttpInvoker.getCached(getUrl, plan.cacheMaxAge) : HttpInvoker.get(getUrl);
+        } else {
             if (filesToSend.isEmpty()) {
-                retString = HttpInvoker.post(invokeUrl, params);
+                retString = HttpInvoker.post(postUrl, params);
             } else {
-                retString = HttpInvoker.postWithFilesUsingURLConnection(
-                        invokeUrl, params, filesToSend);
+                retString = HttpInvoker.postWithFiles(postUrl, params, filesToSend);
             }
-        } else { // use POST for default
-            retString = HttpInvoker.post(invokeUrl, params);
         }
 
         // invoked, then add to history
@@ -132,13 +389,8 @@ public class ProxyInvocationHandler implements InvocationHandler {
         //Log.d(TAG, retString);
         
         // parse the return-string
-        final Class<?> returnType = method.getReturnType();
         try {
-            if (String.class.equals(returnType)) { // the result return raw string
-                return retString;
-            } else {                               // return object using json decode
-                return JsonMapper.json2pojo(retString, returnType);
-            }
+            return plan.decode(retString);
         } catch (Exception e) {
             Log.e(TAG, retString, e);  // log can print the error return-string
             throw new AkInvokeException(
@@ -148,98 +400,30 @@ public class ProxyInvocationHandler implements InvocationHandler {
     }
 
     /**
-     * Replace all the {} block in url to the actual params, 
-     * clear the params used in {block}, return cleared params HashMap and replaced url.
-     * @param url such as http://server/{namespace}/1/do
-     * @param params such as hashmap include (namespace->'mobile')
-     * @return the parsed param will be removed in HashMap (params)
+     * The request of an invocation, with params bound and signed
      */
-    private String parseUrlbyParams(String url, HashMap<String, String> params)
-            throws AkInvokeException {
+    static class PreparedCall {
+        final InvokePlan plan;
+        /**
+         * id of the invocation for HttpEventListener, 0 if no listener
+         */
+        final long callId;
+        /**
+         * the url with params if GET, otherwise null
+         */
+        final String getUrl;
+        final String postUrl;
+        final ArrayList<NameValuePair> params;
+        final HashMap<String, File> filesToSend;
 
-        StringBuffer sbUrl = new StringBuffer();
-        Pattern pattern = Pattern.compile("\\{(.+?)\\}");
-        Matcher matcher = pattern.matcher(url);
-        
-        while (matcher.find()) {
-            String paramValue = params.get(matcher.group(1));
-            if (paramValue != null) {
-                matcher.appendReplacement(sbUrl, paramValue);
-            } else { // 对于{name}没有匹配到的则抛出异常
-                throw new AkInvokeException(AkInvokeException.CODE_PARAM_IN_URL_NOT_FOUND,
-                        "Parameter {"+matcher.group(1)+"}'s value not found of url "+url+".");
-            }
-            params.remove(matcher.group(1));
+        PreparedCall(InvokePlan plan, long callId, String getUrl, String postUrl,
+                     ArrayList<NameValuePair> params, HashMap<String, File> filesToSend) {
+            this.plan = plan;
+            this.callId = callId;
+            this.getUrl = getUrl;
+            this.postUrl = postUrl;
+            this.params = params;
+            this.filesToSend = filesToSend;
         }
-        matcher.appendTail(sbUrl);
-        
-        return sbUrl.toString();
     }
-
-    /**
-     * AkApiParams to hashmap, filter out of null-value
-     *
-     * @param annosArr Method's params' annotation array[][]
-     * @param args Method's params' values
-     * @param filesToSend
-     * @return HashMap all (paramName -> paramValue)
-     */
-    private HashMap<String, String> getRawApiParams2HashMap(Annotation[][] annosArr,
-                                                            Object[] args,
-                                                            HashMap<String, File> filesToSend,
-                                                            HashMap<String, String> paramsMapOri) {
-        HashMap<String, String> paramsMap = new HashMap<String, String>();
-        for (int idx = 0; idx < args.length; idx++) {
-            String paramName = null;
-            String encode = "none";
-            for (Annotation a : annosArr[idx]) {
-                if(AkParam.class.equals(a.annotationType())){
-                    AkParam ap =  (AkParam)a;
-                    paramName = ap.value();
-                    encode = ap.encode();
-                }
-            }
-            if (paramName != null) {
-                Object arg = args[idx];
-                if (arg != null) { // filter out of null-value param
-                    if ("$paramMap".equals(paramName)) {
-                        Map<String, String> paramMap = (Map<String, String>)arg;
-                        paramsMapOri.putAll(paramMap);
-                        if (encode != null && !"none".equals(encode)) {
-                            HashMap<String, String> encodedMap = new HashMap<String, String>();
-                            for (Entry<String, String> entry : paramMap.entrySet()) {
-                                try {
-                                    encodedMap.put(entry.getKey(),
-                                            URLEncoder.encode(entry.getValue(), encode));
-                                } catch (Exception e) {
-                                    Log.w(TAG, "UnsupportedEncodingException:" + encode);
-                                    encodedMap.put(entry.getKey(), entry.getValue());
-                                }
-                            }
-                            paramsMap.putAll(encodedMap);
-                        } else {
-                            paramsMap.putAll(paramMap);
-                        }
-                    } else if ("$filesToSend".equals(paramName)) {
-                        if (arg instanceof Map) {
-                            Map<String, File> files = (Map<String, File>)arg;
-                            filesToSend.putAll(files);
-                        }
-                    } else if (encode != null && !"none".equals(encode)) {
-                        try {
-                            paramsMap.put(paramName, URLEncoder.encode(arg.toString(), encode));
-                        } catch (UnsupportedEncodingException e) {
-                            Log.w(TAG, "UnsupportedEncodingException:" + encode);
-                            paramsMap.put(paramName, arg.toString());
-                        }
-                        paramsMapOri.put(paramName, arg.toString());
-                    } else {
-                        paramsMap.put(paramName, arg.toString());
-                        paramsMapOri.put(paramName, arg.toString());
-                    }
-                }
-            }
-        }
-        return paramsMap;
-    }    
 }  
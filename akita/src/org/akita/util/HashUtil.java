@@ -15,6 +15,10 @@ package org.akita.util;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.security.InvalidKeyException;
@@ -45,6 +49,38 @@ public class HashUtil {
         }
     }
 
+    /**
+     * md5 of the file content, read streaming
+     * @param file
+     * @return 32 length String; null if the file can not be read.
+     */
+    public static String md5(File file) {
+        InputStream is = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("md5");
+            is = new FileInputStream(file);
+            byte[] buffer = new byte[32 * 1024];
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                md.update(buffer, 0, len);
+            }
+            BigInteger i = new BigInteger(1, md.digest());
+            return String.format("%1$032x", i);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignore) { }
+            }
+        }
+    }
+
     public static String sha1(String ori) {
         try {
             MessageDigest md = MessageDigest.getInstance("sha1");
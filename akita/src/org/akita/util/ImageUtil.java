@@ -16,6 +16,8 @@ package org.akita.util;
 
 import android.content.res.Resources;
 import android.graphics.*;
+import android.os.Build;
+import org.akita.cache.BitmapPool;
 
 /**
  * Created with IntelliJ IDEA.
@@ -27,7 +29,8 @@ import android.graphics.*;
 public class ImageUtil {
 
     /**
-     * recreate the bitmap, and make it be scaled to box (maxWeight, maxHeight)
+     * recreate the bitmap, and make it be scaled to box (maxWeight, maxHeight),
+     * drawn on a bitmap of BitmapPool. The bitmap itself is returned if of the box size.
      * note: the old bitmap has not being recycled, you must do it yourself.
      * @param bitmap the bitmap
      * @param boxHeight box height
@@ -45,9 +48,16 @@ public class ImageUtil {
         } else if (boxWidth <= 0) {
             boxWidth = (int)(src_w / (float)src_h * boxHeight);
         }
+        if (boxWidth == src_w && boxHeight == src_h) {
+            return bitmap;
+        }
 
-
-        return Bitmap.createScaledBitmap(bitmap, boxWidth, boxHeight, true);
+        Bitmap output = BitmapPool.getDefault().createBitmap(boxWidth, boxHeight,
+                bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(output);
+        canvas.drawBitmap(bitmap, null, new Rect(0, 0, boxWidth, boxHeight),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        return output;
     }
 
     final static int ROUNDED_CORNER_COLOR = 0xff424242;
@@ -55,11 +65,11 @@ public class ImageUtil {
      * Get Rounded Corner Bitmap
      * @param bitmap ori bitmap
      * @param roundPx round size
-     * @return new bitmap
+     * @return new bitmap, of BitmapPool
      */
     public static Bitmap getRoundedCornerBitmap(Bitmap bitmap,float roundPx){
 
-        Bitmap output = Bitmap.createBitmap(bitmap.getWidth(), bitmap
+        Bitmap output = BitmapPool.getDefault().createBitmap(bitmap.getWidth(), bitmap
                 .getHeight(), Bitmap.Config.ARGB_8888);
         Canvas canvas = new Canvas(output);
 
@@ -78,6 +88,55 @@ public class ImageUtil {
         return output;
     }
 
+    /**
+     * decode the file reusing a bitmap of BitmapPool
+     * @param pathName path of the file
+     * @return bitmap, null if can not be decoded
+     */
+    public static Bitmap decodeFile(String pathName) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(pathName, options);
+        options.inJustDecodeBounds = false;
+
+        BitmapPool.getDefault().prepareDecode(options);
+        try {
+            return BitmapFactory.decodeFile(pathName, options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap can not be reused for this image
+            releaseInBitmap(options);
+            return BitmapFactory.decodeFile(pathName, options);
+        }
+    }
+
+    /**
+     * automatically compute the inSampleSize when decode the file,
+     * reusing a bitmap of BitmapPool
+     * @param pathName path of the file
+     * @param reqWidth reqWidth
+     * @param reqHeight reqHeight
+     * @return bitmap, null if can not be decoded
+     */
+    public static Bitmap decodeSampledBitmapFromFile(String pathName, int reqWidth, int reqHeight) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(pathName, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null; // not an image, or broken
+        }
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+
+        BitmapPool.getDefault().prepareDecode(options);
+        try {
+            return BitmapFactory.decodeFile(pathName, options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap can not be reused for this image
+            releaseInBitmap(options);
+            return BitmapFactory.decodeFile(pathName, options);
+        }
+    }
+
     /**
      * automatically compute the inSampleSize when decode byteArray
      * @param data data
@@ -97,9 +156,16 @@ public class ImageUtil {
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
 
-        // Decode bitmap with inSampleSize set
+        // Decode bitmap with inSampleSize set, reusing a bitmap of BitmapPool
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeByteArray(data, offset, length, options);
+        BitmapPool.getDefault().prepareDecode(options);
+        try {
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap can not be reused for this image
+            releaseInBitmap(options);
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
     }
 
     /**
@@ -126,6 +192,12 @@ public class ImageUtil {
     }
 
 
+    private static void releaseInBitmap(BitmapFactory.Options options) {
+        Bitmap inBitmap = options.inBitmap;
+        options.inBitmap = null;
+        BitmapPool.getDefault().recycle(inBitmap);
+    }
+
     private static int calculateInSampleSize(
             BitmapFactory.Options options, int reqWidth, int reqHeight) {
         // Raw height and width of image
@@ -143,4 +215,17 @@ public class ImageUtil {
         return inSampleSize;
     }
 
+
+    /**
+     * @param bitmap the bitmap
+     * @return bytes of memory the bitmap holds, the reused allocation included
+     */
+    public static int getByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            return bitmap.getByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
 }
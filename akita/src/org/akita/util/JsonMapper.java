@@ -18,6 +18,7 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.reflect.Type;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
@@ -40,6 +41,7 @@ import org.codehaus.jackson.map.annotate.JsonSerialize;
 import org.codehaus.jackson.map.type.TypeFactory;
 import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.type.JavaType;
 
 /**
  * JSON Mapper
@@ -79,6 +81,42 @@ public class JsonMapper {
         return m.readValue(jsonAsString, pojoClass);
     }
 
+    @SuppressWarnings("unchecked")
+    public static <T> T json2pojo(String jsonAsString, JavaType pojoType)
+            throws JsonMappingException, JsonParseException, IOException {
+        return (T) m.readValue(jsonAsString, pojoType);
+    }
+
+    /**
+     * decode straight from the stream using streaming parser, without materializing it to String
+     * @param istream json stream, not closed here
+     * @param pojoType type to decode to
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T json2pojo(InputStream istream, JavaType pojoType)
+            throws JsonMappingException, JsonParseException, IOException {
+        JsonParser jp = null;
+        try {
+            jp = jf.createJsonParser(istream);
+            return (T) m.readValue(jp, pojoType);
+        } finally {
+            if (jp != null) {
+                try {
+                    jp.close();
+                } catch (IOException ioe) { }
+            }
+        }
+    }
+
+    /**
+     * construct the JavaType of (maybe generic) type, such as List&lt;Item&gt;
+     * @param type type
+     * @return JavaType used to decode
+     */
+    public static JavaType constructType(Type type) {
+        return m.getTypeFactory().constructType(type);
+    }
+
     public static <T> List<T> json2pojoList(String jsonAsString, Class<T> pojoClass)
             throws JsonMappingException, JsonParseException, IOException {
         List<T> list;
@@ -15,36 +15,135 @@ package org.akita.util;
 
 
 /**
- * 封装Log 
+ * 封装Log
+ * <p>
+ * Logs at or above the level set by setLevel, VERBOSE by default,
+ * set NONE in release builds. The messages longer than setMaxLength are truncated.
+ * Use the {} placeholder variants to build the message only when it is logged,
+ * e.g. Log.v(TAG, "response:{}", retString). The v and d calls are stripped from the
+ * release apk by the -assumenosideeffects rule of proguard.cfg, copy it to the app's.
+ * </p>
  * @author zhe.yangz 2011-11-25 下午04:06:57
  */
 public class Log {
-    static boolean SHOW_LOG = true;
+    public static final int VERBOSE = android.util.Log.VERBOSE;
+    public static final int DEBUG = android.util.Log.DEBUG;
+    public static final int INFO = android.util.Log.INFO;
+    public static final int WARN = android.util.Log.WARN;
+    public static final int ERROR = android.util.Log.ERROR;
+    /**
+     * log nothing
+     */
+    public static final int NONE = Integer.MAX_VALUE;
+
+    private static volatile int sLevel = VERBOSE;
+    private static volatile int sMaxLength = 4000;
+
+    /**
+     * @param level the minimum level to log, NONE to disable the log
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * @param maxLength the max chars of a message, the rest is truncated
+     */
+    public static void setMaxLength(int maxLength) {
+        sMaxLength = Math.max(maxLength, 16);
+    }
+
+    /**
+     * @param level VERBOSE, DEBUG, INFO, WARN or ERROR
+     * @return whether the level is logged, check it before building an expensive message
+     */
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
 
     public static void i(String tag, String string) {
-        if (SHOW_LOG) android.util.Log.i(tag, string);
+        if (INFO >= sLevel) android.util.Log.i(tag, truncate(string));
+    }
+    public static void i(String tag, String format, Object arg) {
+        if (INFO >= sLevel) android.util.Log.i(tag, format(format, arg, null, 1));
+    }
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        if (INFO >= sLevel) android.util.Log.i(tag, format(format, arg1, arg2, 2));
     }
     public static void e(String tag, String string) {
-        if (SHOW_LOG) android.util.Log.e(tag, string);
+        if (ERROR >= sLevel) android.util.Log.e(tag, truncate(string));
     }
     public static void e(String tag, String string, Throwable tr) {
-        if (SHOW_LOG) android.util.Log.e(tag, string, tr);
+        if (ERROR >= sLevel) android.util.Log.e(tag, truncate(string), tr);
     }
     public static void d(String tag, String string) {
-        if (SHOW_LOG) android.util.Log.d(tag, string);
+        if (DEBUG >= sLevel) android.util.Log.d(tag, truncate(string));
+    }
+    public static void d(String tag, String format, Object arg) {
+        if (DEBUG >= sLevel) android.util.Log.d(tag, format(format, arg, null, 1));
+    }
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (DEBUG >= sLevel) android.util.Log.d(tag, format(format, arg1, arg2, 2));
     }
     public static void w(String tag, String string) {
-        if (SHOW_LOG) android.util.Log.w(tag, string);
+        if (WARN >= sLevel) android.util.Log.w(tag, truncate(string));
     }
     public static void w(String tag, String string, Throwable tr) {
-        if (SHOW_LOG) android.util.Log.w(tag, string, tr);
+        if (WARN >= sLevel) android.util.Log.w(tag, truncate(string), tr);
+    }
+    public static void w(String tag, String format, Object arg1, Object arg2) {
+        if (WARN >= sLevel) android.util.Log.w(tag, format(format, arg1, arg2, 2));
     }
     public static void v(String tag, String string) {
-        if (SHOW_LOG) android.util.Log.v(tag, string);
+        if (VERBOSE >= sLevel) android.util.Log.v(tag, truncate(string));
     }
     public static void v(String tag, String string, Throwable tr) {
-        if (SHOW_LOG) android.util.Log.v(tag, string, tr);
+        if (VERBOSE >= sLevel) android.util.Log.v(tag, truncate(string), tr);
+    }
+    public static void v(String tag, String format, Object arg) {
+        if (VERBOSE >= sLevel) android.util.Log.v(tag, format(format, arg, null, 1));
+    }
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        if (VERBOSE >= sLevel) android.util.Log.v(tag, format(format, arg1, arg2, 2));
     }
 
-}
+    /**
+     * replace the {}s of format by the args in order, copying at most maxLength chars
+     */
+    private static String format(String format, Object arg1, Object arg2, int argCount) {
+        int maxLength = sMaxLength;
+        StringBuilder sb = new StringBuilder(Math.min(format.length() + 64, maxLength));
+        int start = 0;
+        for (int idx = 0; idx < argCount && sb.length() < maxLength; idx++) {
+            int holder = format.indexOf("{}", start);
+            if (holder < 0) break;
+            sb.append(format, start, holder);
+            append(sb, String.valueOf(idx == 0 ? arg1 : arg2), maxLength);
+            start = holder + 2;
+        }
+        if (sb.length() < maxLength) {
+            append(sb, format.substring(start), maxLength);
+        }
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String string, int maxLength) {
+        int room = maxLength - sb.length();
+        if (string.length() <= room) {
+            sb.append(string);
+        } else {
+            sb.append(string, 0, Math.max(room, 0));
+            sb.append("...(").append(string.length()).append(" chars)");
+        }
+    }
 
+    private static String truncate(String string) {
+        int maxLength = sMaxLength;
+        if (string == null || string.length() <= maxLength) return string;
+        return string.substring(0, maxLength) + "...(" + string.length() + " chars)";
+    }
+}
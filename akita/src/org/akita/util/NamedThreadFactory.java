@@ -0,0 +1,39 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads named by the prefix and a sequence, below the normal priority,
+ * for the background transfers.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+    private final AtomicInteger mCount = new AtomicInteger(1);
+    private final String mPrefix;
+
+    /**
+     * @param prefix prefix of the thread names, such as "akita-upload #"
+     */
+    public NamedThreadFactory(String prefix) {
+        mPrefix = prefix;
+    }
+
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, mPrefix + mCount.getAndIncrement());
+        t.setPriority(Thread.NORM_PRIORITY - 1);
+        return t;
+    }
+}
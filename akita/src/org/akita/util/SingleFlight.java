@@ -0,0 +1,75 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.akita.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesce the concurrent calls with the same key into one execution,
+ * the callers arriving while it is in flight wait and share its result (or exception).
+ * Only for idempotent calls, the key should identify the call entirely.
+ * The call runs on the thread of the first caller, with its thread state (such as
+ * its CancellationToken), the waiters get whatever that run ends with.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, FutureTask<V>> mInFlight =
+            new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Execute the callable on current thread, or wait for the in-flight one with the same key.
+     * @param key key of the call
+     * @param callable the call
+     * @return the result of the call
+     * @throws Exception the exception thrown by the call,
+     * or InterruptedException if interrupted while waiting for it
+     */
+    public V execute(K key, Callable<V> callable) throws Exception {
+        FutureTask<V> task = mInFlight.get(key);
+        if (task == null) {
+            FutureTask<V> newTask = new FutureTask<V>(callable);
+            task = mInFlight.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    newTask.run();
+                } finally {
+                    mInFlight.remove(key, newTask);
+                }
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of the calls in flight
+     */
+    public int inFlightCount() {
+        return mInFlight.size();
+    }
+}
@@ -28,6 +28,9 @@ import android.view.animation.AlphaAnimation;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.ViewSwitcher;
+import org.akita.cache.AkCacheManager;
+import org.akita.cache.BitmapPool;
+import org.akita.cache.MemCacheLruBitmapImpl;
 import org.akita.util.AndroidUtil;
 import org.akita.util.Log;
 import org.akita.widget.common.ImageView_;
@@ -326,7 +329,7 @@ public class RemoteImageView extends ViewSwitcher {
      * reset dummy image
      */
     public void resetDummyImage() {
-        imageView.setImageResource(android.R.drawable.ic_menu_gallery);
+        BitmapPool.setImageResource(imageView, android.R.drawable.ic_menu_gallery);
     }
 
     public boolean isLoaded() {
@@ -382,7 +385,7 @@ public class RemoteImageView extends ViewSwitcher {
     public void setLocalImage(int imageResourceId) {
         try {
             Bitmap bitmap = BitmapFactory.decodeResource(getResources(), imageResourceId);
-            imageView.setImageBitmap(bitmap);
+            BitmapPool.setImageBitmap(imageView, bitmap);
         } catch (OutOfMemoryError ooe) {
             Log.e(TAG, ooe.toString(), ooe);
         }
@@ -400,7 +403,7 @@ public class RemoteImageView extends ViewSwitcher {
      *            the bitmap of the placeholder remoteimageview drawable
      */
     public void setLocalImage(Bitmap bitmap) {
-        imageView.setImageBitmap(bitmap);
+        BitmapPool.setImageBitmap(imageView, bitmap);
         setDisplayedChild(1);
     }
 
@@ -410,6 +413,25 @@ public class RemoteImageView extends ViewSwitcher {
         this.setDisplayedChild(0);
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (imageLoader != null && imageView != null) {
+            imageLoader.setVisible(imageView, true);
+        }
+    }
+
+    /**
+     * the image still downloading for this view is deferred as prefetch
+     */
+    @Override
+    protected void onDetachedFromWindow() {
+        if (imageLoader != null && imageView != null) {
+            imageLoader.setVisible(imageView, false);
+        }
+        super.onDetachedFromWindow();
+    }
+
     /**
      * 一般不需要调用，会自动释放。
      * 建议对于setImageBoxSize后的riv，在页面onDestroy时调用。
@@ -419,14 +441,23 @@ public class RemoteImageView extends ViewSwitcher {
         if (imageView == null) return;
 
         Drawable drawable = imageView.getDrawable();
+        BitmapPool.setImageBitmap(imageView, null);
         if (drawable != null && drawable instanceof BitmapDrawable) {
             Bitmap bitmap = ((BitmapDrawable)drawable).getBitmap();
-            if(!bitmap.isRecycled()) {
-                bitmap.recycle();
+            if (bitmap != null && !bitmap.isRecycled()) {
+                // out of the mem cache, then to its pool for reuse if opted in
+                MemCacheLruBitmapImpl<String, Bitmap> memCache = AkCacheManager.getBitmapMemCache();
+                if (imageUrl != null && memCache.get(imageUrl) == bitmap) {
+                    memCache.remove(imageUrl);
+                }
+                BitmapPool pool = memCache.getBitmapPool();
+                if (pool != null && BitmapPool.isSupported()) {
+                    pool.recycle(bitmap);
+                } else {
+                    bitmap.recycle();
+                }
             }
         }
-
-        imageView.setImageBitmap(null);
     }
 
     private class DefaultImageLoaderHandler extends RemoteImageLoaderHandler {
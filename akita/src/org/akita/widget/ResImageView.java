@@ -26,6 +26,9 @@ import android.view.animation.AlphaAnimation;
 import android.widget.ImageView;
 import android.widget.ViewSwitcher;
 import org.akita.R;
+import org.akita.cache.AkCacheManager;
+import org.akita.cache.BitmapPool;
+import org.akita.cache.MemCacheLruBitmapImpl;
 import org.akita.util.AndroidUtil;
 import org.akita.util.Log;
 import org.akita.widget.common.ImageView_;
@@ -206,7 +209,7 @@ public class ResImageView extends ViewSwitcher {
 
         // set default img and bg
         if (defaultImgRes != 0)
-            imageView.setImageResource(defaultImgRes);
+            BitmapPool.setImageResource(imageView, defaultImgRes);
         if (defaultBgRes != 0)
             imageView.setBackgroundResource(defaultBgRes);
 
@@ -312,7 +315,7 @@ public class ResImageView extends ViewSwitcher {
     public void setLocalImage(int imageResourceId) {
         try {
             Bitmap bitmap = BitmapFactory.decodeResource(getResources(), imageResourceId);
-            imageView.setImageBitmap(bitmap);
+            BitmapPool.setImageBitmap(imageView, bitmap);
         } catch (OutOfMemoryError ooe) {
             Log.e(TAG, ooe.toString(), ooe);
         }
@@ -330,7 +333,7 @@ public class ResImageView extends ViewSwitcher {
      *            the bitmap of the placeholder remoteimageview drawable
      */
     public void setLocalImage(Bitmap bitmap) {
-        imageView.setImageBitmap(bitmap);
+        BitmapPool.setImageBitmap(imageView, bitmap);
         setDisplayedChild(0);
     }
 
@@ -343,14 +346,23 @@ public class ResImageView extends ViewSwitcher {
         if (imageView == null) return;
 
         Drawable drawable = imageView.getDrawable();
+        BitmapPool.setImageBitmap(imageView, null);
         if (drawable != null && drawable instanceof BitmapDrawable) {
             Bitmap bitmap = ((BitmapDrawable)drawable).getBitmap();
-            if(!bitmap.isRecycled()) {
-                bitmap.recycle();
+            if (bitmap != null && !bitmap.isRecycled()) {
+                // out of the mem cache, then to its pool for reuse if opted in
+                MemCacheLruBitmapImpl<String, Bitmap> memCache = AkCacheManager.getBitmapMemCache();
+                if (imageUrl != null && memCache.get(imageUrl) == bitmap) {
+                    memCache.remove(imageUrl);
+                }
+                BitmapPool pool = memCache.getBitmapPool();
+                if (pool != null && BitmapPool.isSupported()) {
+                    pool.recycle(bitmap);
+                } else {
+                    bitmap.recycle();
+                }
             }
         }
-
-        imageView.setImageBitmap(null);
     }
 
     private class DefaultImageLoaderHandler extends ResImageLoaderHandler {
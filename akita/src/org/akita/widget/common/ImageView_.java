@@ -20,6 +20,7 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 import android.widget.ImageView;
+import org.akita.cache.BitmapPool;
 
 /**
  * 较安全的ImageView
@@ -43,7 +44,7 @@ public class ImageView_ extends ImageView {
         if(drawable != null && drawable instanceof BitmapDrawable){
             Bitmap bmp = ((BitmapDrawable) drawable).getBitmap();
             if(bmp != null && bmp.isRecycled()){
-                setImageBitmap(null);
+                BitmapPool.setImageBitmap(this, null);
             }
         }
         super.onDraw(canvas);
@@ -20,11 +20,15 @@ import android.graphics.drawable.Drawable;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import org.akita.cache.AkCacheManager;
+import org.akita.cache.BitmapPool;
 import org.akita.cache.FilesCache;
+import org.akita.cache.MemCache;
+import org.akita.util.Log;
 import org.akita.widget.RemoteImageView;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Realizes a background remoteimageview loader that downloads an remoteimageview from a URL, optionally backed by a
@@ -35,12 +39,24 @@ import java.util.concurrent.ThreadPoolExecutor;
  * @author Matthias Kaeppler
  */
 public class RemoteImageLoader {
+    private static final String TAG = "akita.RemoteImageLoader";
 
-    // the default thread pool size
-    private static final int DEFAULT_POOL_SIZE = 3;
     private static FilesCache<Bitmap> sImageCache;
-    private ThreadPoolExecutor executor;
     private FilesCache<Bitmap> imageCache;
+    /**
+     * the mem tier of imageCache, looked up on ui thread, the files are read by the job
+     */
+    private MemCache<String, Bitmap> memCache;
+    /**
+     * url -> job downloading it, the requests of the same url join the in-flight job
+     */
+    private final ConcurrentHashMap<String, RemoteImageLoaderJob> inFlightJobs =
+            new ConcurrentHashMap<String, RemoteImageLoaderJob>();
+    /**
+     * view -> the job it waits for, accessed on ui thread
+     */
+    private final WeakHashMap<ImageView, ViewRequest> viewRequests =
+            new WeakHashMap<ImageView, ViewRequest>();
 
     private int defaultBgRes;
     private int errorBgRes;
@@ -61,16 +77,12 @@ public class RemoteImageLoader {
      *            whether to create a default {@link FilesCache<Bitmap>} used for caching
      */
     public RemoteImageLoader(Context context, boolean createCache) {
-        if ( Runtime.getRuntime() != null && Runtime.getRuntime().availableProcessors() <= 1) {
-            executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
-        } else {
-            executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(DEFAULT_POOL_SIZE);
-        }
         if (createCache) {
             if (sImageCache == null) {
                 sImageCache = AkCacheManager.getImageFilesCache(context);
             }
             imageCache = sImageCache;
+            memCache = AkCacheManager.getBitmapMemCache();
             /*imageCache.enableDiskCache(context.getApplicationContext(),
                     ImageCache.DISK_CACHE_SDCARD);*/
         }
@@ -81,9 +93,25 @@ public class RemoteImageLoader {
     /**
      * @param numThreads
      *            the maximum number of threads that will be started to download images in parallel
+     * @deprecated the images are downloaded by the shared HttpDispatcher, see HttpDispatcher.setMaxRunning
      */
+    @Deprecated
     public void setThreadPoolSize(int numThreads) {
-        executor.setMaximumPoolSize(numThreads);
+    }
+
+    /**
+     * Tell the loader whether the view is on screen, the image of an off-screen view
+     * is downloaded after the on-screen ones, as PRIORITY_PREFETCH. Call it from ui thread,
+     * such as when the view is attached to or detached from window.
+     * @param imageView the view passed to loadImage
+     * @param visible whether the view is on screen
+     */
+    public void setVisible(ImageView imageView, boolean visible) {
+        ViewRequest request = viewRequests.get(imageView);
+        if (request != null && request.visible != visible) {
+            request.visible = visible;
+            request.job.setVisible(visible);
+        }
     }
 
     public void setDefaultBgRes(int defaultBgRes) {
@@ -99,13 +127,22 @@ public class RemoteImageLoader {
     }
 
     /**
-     * Clears the remoteimageview cache, if it's used. A good candidate for calling in
+     * @param memCache the bitmaps looked up on ui thread before loading from imageCache,
+     *                 null if none. AkCacheManager.getBitmapMemCache() by default
+     */
+    public void setMemCache(MemCache<String, Bitmap> memCache) {
+        this.memCache = memCache;
+    }
+
+    /**
+     * Clears the bitmaps in memory and BitmapPool, the files are kept. A good candidate for calling in
      * {@link android.app.Application#onLowMemory()}.
      */
     public void clearImageCache() {
-        if (imageCache != null) {
-            //imageCache.clearSome();
+        if (memCache != null) {
+            memCache.clear();
         }
+        BitmapPool.getDefault().clear();
     }
 
     /**
@@ -191,8 +228,10 @@ public class RemoteImageLoader {
             if (imageUrl == null) {
                 // In a ListView views are reused, so we must be sure to remove the tag that could
                 // have been set to the ImageView to prevent that the wrong remoteimageview is set.
+                setVisible(imageView, false);
+                viewRequests.remove(imageView);
                 imageView.setTag(null);
-                imageView.setImageBitmap(null);
+                BitmapPool.setImageBitmap(imageView, null);
                 if (defaultBgRes > 0) {
                     imageView.setBackgroundResource(defaultBgRes);
                 } else if (this.defaultBgRes > 0) {
@@ -203,9 +242,13 @@ public class RemoteImageLoader {
             String oldImageUrl = (String) imageView.getTag();
             if (imageUrl.equals(oldImageUrl)) {
                 // nothing to do
+                setVisible(imageView, true);
                 return;
             } else {
-                imageView.setImageBitmap(null);
+                // the view is reused for another image, its previous image is off screen
+                setVisible(imageView, false);
+                viewRequests.remove(imageView);
+                BitmapPool.setImageBitmap(imageView, null);
                 if (defaultBgRes > 0) {
                     // Set the dummy remoteimageview while waiting for
                     // the actual remoteimageview to be downloaded.
@@ -219,17 +262,52 @@ public class RemoteImageLoader {
 
         if (noCache) {
             // do not use cache, download image every time by passing the null value of imageCache
-            executor.execute(new RemoteImageLoaderJob(imageUrl, httpReferer, progressBar, handler,
-                    null));
+            RemoteImageLoaderJob job = new RemoteImageLoaderJob(imageUrl, httpReferer, progressBar,
+                    handler, null, null);
+            dispatch(job, imageView);
         } else if (imageCache != null) {
-            // do not go through message passing, handle directly instead
-            Bitmap bm = imageCache.get(imageUrl);
+            // do not go through message passing if in mem, the files are read by the job
+            Bitmap bm = memCache != null ? memCache.get(imageUrl) : null;
             if (bm != null) {
                 handler.handleImageLoaded(bm, null);
             } else {
-                executor.execute(new RemoteImageLoaderJob(imageUrl, httpReferer, progressBar, handler,
-                        imageCache));
+                RemoteImageLoaderJob inFlightJob = inFlightJobs.get(imageUrl);
+                if (inFlightJob != null && inFlightJob.join(handler)) {
+                    if (imageView != null) {
+                        viewRequests.put(imageView, new ViewRequest(inFlightJob));
+                    }
+                    return; // the same url is downloading
+                }
+                RemoteImageLoaderJob job = new RemoteImageLoaderJob(imageUrl, httpReferer,
+                        progressBar, handler, imageCache, inFlightJobs);
+                inFlightJobs.put(imageUrl, job);
+                dispatch(job, imageView);
             }
         }
     }
+
+    private void dispatch(RemoteImageLoaderJob job, ImageView imageView) {
+        if (imageView != null) {
+            viewRequests.put(imageView, new ViewRequest(job));
+        }
+        try {
+            job.dispatch();
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Too many images queued, " + e);
+            inFlightJobs.remove(job.getImageUrl(), job);
+            job.notifyImageLoaded(job.getImageUrl(), null);
+        }
+    }
+
+    /**
+     * the job a view waits for, and whether the view is on screen
+     */
+    private static class ViewRequest {
+        final RemoteImageLoaderJob job;
+        boolean visible = true;
+
+        ViewRequest(RemoteImageLoaderJob job) {
+            this.job = job;
+        }
+    }
 }
@@ -18,26 +18,121 @@ import android.os.Bundle;
 import android.os.Message;
 import android.widget.ProgressBar;
 import org.akita.cache.FilesCache;
+import org.akita.cache.RawFilesCache;
 import org.akita.exception.AkException;
+import org.akita.io.DispatchTask;
+import org.akita.io.HttpDispatcher;
 import org.akita.io.HttpInvoker;
+import org.akita.io.NetworkMetrics;
+import org.akita.io.RetryPolicy;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 public class RemoteImageLoaderJob implements Runnable {
 
     private static final String TAG = "akita.RemoteImageLoaderJob";
+    /**
+     * name of the image requests in NetworkMetrics
+     */
+    private static final String IMAGE_API = "[image]";
 
     private String imageUrl;
     private String httpReferer;
     private ProgressBar progressBar;
     private RemoteImageLoaderHandler handler;
     private FilesCache<Bitmap> imageCache;
+    /**
+     * handlers of the requests coalesced into this job, notified besides handler
+     */
+    private ArrayList<RemoteImageLoaderHandler> joinedHandlers;
+    private boolean notified;
+    private ConcurrentHashMap<String, RemoteImageLoaderJob> inFlightJobs;
+    /**
+     * the dispatch of current try, null if the job is not run by dispatch()
+     */
+    private volatile DispatchTask dispatchTask;
+    private int priority = HttpDispatcher.PRIORITY_VISIBLE_IMAGE;
+    /**
+     * count of the requests whose view is on screen
+     */
+    private int visibleRequests = 1;
+    private int retried;
+    private AkException lastError;
 
     public RemoteImageLoaderJob(String imageUrl, String httpReferer, ProgressBar progressBar,
                                 RemoteImageLoaderHandler handler, FilesCache<Bitmap> imageCache ) {
+        this(imageUrl, httpReferer, progressBar, handler, imageCache, null);
+    }
+
+    /**
+     * @param inFlightJobs the job removes itself from it when done, may be null
+     */
+    public RemoteImageLoaderJob(String imageUrl, String httpReferer, ProgressBar progressBar,
+                                RemoteImageLoaderHandler handler, FilesCache<Bitmap> imageCache,
+                                ConcurrentHashMap<String, RemoteImageLoaderJob> inFlightJobs) {
         this.imageUrl = imageUrl;
         this.httpReferer = httpReferer;
         this.progressBar = progressBar;
         this.handler = handler;
         this.imageCache = imageCache;
+        this.inFlightJobs = inFlightJobs;
+    }
+
+    /**
+     * Run the job on HttpDispatcher, the failed download is rescheduled by RetryPolicy
+     * @throws java.util.concurrent.RejectedExecutionException if too many tasks queued
+     */
+    public void dispatch() {
+        int p;
+        synchronized (this) {
+            p = priority;
+        }
+        dispatchTask = HttpDispatcher.submit(this, p);
+    }
+
+    public String getImageUrl() {
+        return imageUrl;
+    }
+
+    /**
+     * Record whether a view waiting for this job is on screen, the job is
+     * dispatched as PRIORITY_PREFETCH while none of the views are on screen.
+     * @param visible true if a view comes on screen, false if one goes off
+     */
+    public void setVisible(boolean visible) {
+        int p;
+        synchronized (this) {
+            visibleRequests += visible ? 1 : -1;
+            p = visibleRequests > 0 ?
+                    HttpDispatcher.PRIORITY_VISIBLE_IMAGE : HttpDispatcher.PRIORITY_PREFETCH;
+            if (p == priority) return;
+            priority = p;
+        }
+        DispatchTask task = dispatchTask;
+        if (task != null) {
+            task.setPriority(p);
+        }
+    }
+
+    /**
+     * Join another request of the same url to this job, instead of downloading it again.
+     * @param handler handler of the request
+     * @return false if this job has notified already, the request should start a new job
+     */
+    public synchronized boolean join(RemoteImageLoaderHandler handler) {
+        if (notified) return false;
+        visibleRequests++;
+        if (visibleRequests == 1 && dispatchTask != null) {
+            priority = HttpDispatcher.PRIORITY_VISIBLE_IMAGE;
+            dispatchTask.setPriority(priority);
+        }
+        if (joinedHandlers == null) {
+            joinedHandlers = new ArrayList<RemoteImageLoaderHandler>(2);
+        }
+        joinedHandlers.add(handler);
+        return true;
     }
 
     /**
@@ -54,25 +149,64 @@ public class RemoteImageLoaderJob implements Runnable {
         }
 
         if (bitmap == null) {
+            if (retried == 0) RetryPolicy.onRequest();
+            lastError = null;
             bitmap = downloadImage();
+            if (bitmap == null && lastError != null && scheduleRetry(lastError)) {
+                return; // still in flight, the joined requests wait for the retry
+            }
         }
 
+        if (inFlightJobs != null) {
+            inFlightJobs.remove(imageUrl, this);
+        }
         notifyImageLoaded(imageUrl, bitmap);
     }
 
     // use HttpInvoker to handle
     protected Bitmap downloadImage() {
         try {
+            if (imageCache instanceof RawFilesCache) {
+                // the bytes are cached as downloaded, no encoding again
+                return HttpInvoker.getBitmapFromUrl(imageUrl, httpReferer, progressBar,
+                        (RawFilesCache<Bitmap>) imageCache);
+            }
             Bitmap bm = HttpInvoker.getBitmapFromUrl(imageUrl, httpReferer, progressBar);
             if (imageCache != null && bm != null) {
                 imageCache.put(imageUrl, bm);
             }
             return bm;
         } catch (AkException e) {
+            lastError = e;
             return null;
         }
     }
 
+    /**
+     * Reschedule this job after the backoff, instead of sleeping on the worker
+     * @return false if no more retry
+     */
+    private boolean scheduleRetry(AkException e) {
+        if (dispatchTask == null) return false;
+        long delay = RetryPolicy.DEFAULT.nextDelay(retried, e);
+        if (delay < 0) return false;
+        retried++;
+        NetworkMetrics.recordRetry(IMAGE_API);
+        RetryPolicy.schedule(new Runnable() {
+            public void run() {
+                try {
+                    dispatch();
+                } catch (RejectedExecutionException ree) {
+                    if (inFlightJobs != null) {
+                        inFlightJobs.remove(imageUrl, RemoteImageLoaderJob.this);
+                    }
+                    notifyImageLoaded(imageUrl, null);
+                }
+            }
+        }, delay);
+        return true;
+    }
+
     protected void notifyImageLoaded(String url, Bitmap bitmap) {
         Message message = new Message();
         message.what = RemoteImageLoaderHandler.HANDLER_MESSAGE_ID;
@@ -83,5 +217,19 @@ public class RemoteImageLoaderJob implements Runnable {
         message.setData(data);
 
         handler.sendMessage(message);
+
+        ArrayList<RemoteImageLoaderHandler> others;
+        synchronized (this) {
+            notified = true;
+            others = joinedHandlers;
+        }
+        if (others != null) {
+            for (RemoteImageLoaderHandler other : others) {
+                Message otherMessage = new Message();
+                otherMessage.what = RemoteImageLoaderHandler.HANDLER_MESSAGE_ID;
+                otherMessage.setData(data);
+                other.sendMessage(otherMessage);
+            }
+        }
     }
 }
@@ -19,10 +19,14 @@ import android.graphics.Bitmap;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import org.akita.cache.AkCacheManager;
+import org.akita.cache.BitmapPool;
 import org.akita.cache.FilesCache;
+import org.akita.cache.MemCache;
+import org.akita.io.HttpDispatcher;
+import org.akita.util.Log;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Realizes a background remoteimageview loader that downloads an remoteimageview from a URL, optionally backed by a
@@ -33,12 +37,18 @@ import java.util.concurrent.ThreadPoolExecutor;
  * @author Matthias Kaeppler
  */
 public class ResImageLoader {
+    private static final String TAG = "akita.ResImageLoader";
 
-    // the default thread pool size
-    private static final int DEFAULT_POOL_SIZE = 3;
     private static FilesCache<Bitmap> sImageCache;
-    private ThreadPoolExecutor executor;
+    /**
+     * the images are downloaded by the shared HttpDispatcher
+     */
+    private final Executor executor = HttpDispatcher.executor(HttpDispatcher.PRIORITY_VISIBLE_IMAGE);
     private FilesCache<Bitmap> imageCache;
+    /**
+     * the mem tier of imageCache, looked up on ui thread, the files are read by the job
+     */
+    private MemCache<String, Bitmap> memCache;
 
     public ResImageLoader(Context context) {
         this(context, true);
@@ -56,25 +66,22 @@ public class ResImageLoader {
      *            whether to create a default {@link org.akita.cache.FilesCache< android.graphics.Bitmap>} used for caching
      */
     public ResImageLoader(Context context, boolean createCache) {
-        if ( Runtime.getRuntime() != null && Runtime.getRuntime().availableProcessors() <= 1) {
-            executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
-        } else {
-            executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(DEFAULT_POOL_SIZE);
-        }
         if (createCache) {
             if (sImageCache == null) {
                 sImageCache = AkCacheManager.getResImageFilesCache(context);
             }
             imageCache = sImageCache;
+            memCache = AkCacheManager.getBitmapMemCache();
         }
     }
 
     /**
      * @param numThreads
      *            the maximum number of threads that will be started to download images in parallel
+     * @deprecated the images are downloaded by the shared HttpDispatcher, see HttpDispatcher.setMaxRunning
      */
+    @Deprecated
     public void setThreadPoolSize(int numThreads) {
-        executor.setMaximumPoolSize(numThreads);
     }
 
     public void setImageCache(FilesCache<Bitmap> imageCache) {
@@ -82,13 +89,22 @@ public class ResImageLoader {
     }
 
     /**
-     * Clears the remoteimageview cache, if it's used. A good candidate for calling in
+     * @param memCache the bitmaps looked up on ui thread before loading from imageCache,
+     *                 null if none. AkCacheManager.getBitmapMemCache() by default
+     */
+    public void setMemCache(MemCache<String, Bitmap> memCache) {
+        this.memCache = memCache;
+    }
+
+    /**
+     * Clears the bitmaps in memory and BitmapPool, the files are kept. A good candidate for calling in
      * {@link android.app.Application#onLowMemory()}.
      */
     public void clearImageCache() {
-        if (imageCache != null) {
-            //imageCache.clearSome();
+        if (memCache != null) {
+            memCache.clear();
         }
+        BitmapPool.getDefault().clear();
     }
 
     /**
@@ -134,17 +150,26 @@ public class ResImageLoader {
 
         if (noCache) {
             // do not use cache, download image every time by passing the null value of imageCache
-            executor.execute(new ResImageLoaderJob(imageUrl, httpReferer, progressBar, handler,
-                    null));
+            execute(new ResImageLoaderJob(imageUrl, httpReferer, progressBar, handler,
+                    null, executor), imageUrl);
         } else if (imageCache != null) {
-            // do not go through message passing, handle directly instead
-            Bitmap bm = imageCache.get(imageUrl);
+            // do not go through message passing if in mem, the files are read by the job
+            Bitmap bm = memCache != null ? memCache.get(imageUrl) : null;
             if (bm != null) {
                 handler.handleImageLoaded(bm, null);
             } else {
-                executor.execute(new ResImageLoaderJob(imageUrl, httpReferer, progressBar, handler,
-                        imageCache));
+                execute(new ResImageLoaderJob(imageUrl, httpReferer, progressBar, handler,
+                        imageCache, executor), imageUrl);
             }
         }
     }
+
+    private void execute(ResImageLoaderJob job, String imageUrl) {
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Too many images queued, " + e);
+            job.notifyImageLoaded(imageUrl, null);
+        }
+    }
 }
@@ -18,6 +18,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.widget.ImageView;
+import org.akita.cache.BitmapPool;
 import org.akita.util.ImageUtil;
 import org.akita.widget.ResImageView;
 
@@ -74,22 +75,29 @@ public class ResImageLoaderHandler extends Handler {
         String forUrl = (String) imageView.getTag();
         if (imageUrl.equals(forUrl)) {
             if (bitmap == null) {
-                imageView.setImageBitmap(null);
+                BitmapPool.setImageBitmap(imageView, null);
                 if (errorDrawableRes != 0)
                     imageView.setBackgroundResource(errorDrawableRes);
                 else if (ResImageView.DEFAULT_ERROR_DRAWABLE_RES_ID != 0)
                     imageView.setBackgroundResource(ResImageView.DEFAULT_ERROR_DRAWABLE_RES_ID);
             } else {
                 // add round corner
+                Bitmap shown = bitmap;
                 if (roundCornerPx > 0 && roundCornerPx <= 100) {
-                    bitmap = ImageUtil.getRoundedCornerBitmap(bitmap, roundCornerPx);
+                    shown = ImageUtil.getRoundedCornerBitmap(shown, roundCornerPx);
                 }
 
-                if (imgMaxWidth <= 0 && imgMaxHeight <= 0) {
-                    imageView.setImageBitmap(bitmap);
-                } else {
-                    Bitmap scaledBitmap = ImageUtil.xform(bitmap, imgMaxWidth, imgMaxHeight);
-                    imageView.setImageBitmap(scaledBitmap);
+                if (imgMaxWidth > 0 || imgMaxHeight > 0) {
+                    Bitmap scaledBitmap = ImageUtil.xform(shown, imgMaxWidth, imgMaxHeight);
+                    if (shown != bitmap && scaledBitmap != shown) {
+                        BitmapPool.getDefault().recycle(shown);
+                    }
+                    shown = scaledBitmap;
+                }
+                BitmapPool.setImageBitmap(imageView, shown);
+                if (shown != bitmap) {
+                    // the transformed bitmap is pooled when the view shows another one
+                    BitmapPool.getDefault().recycle(shown);
                 }
             }
 
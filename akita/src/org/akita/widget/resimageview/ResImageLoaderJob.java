@@ -18,21 +18,47 @@ import android.os.Bundle;
 import android.os.Message;
 import android.widget.ProgressBar;
 import org.akita.cache.FilesCache;
+import org.akita.cache.RawFilesCache;
 import org.akita.exception.AkException;
 import org.akita.io.HttpInvoker;
+import org.akita.io.NetworkMetrics;
+import org.akita.io.RetryPolicy;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ResImageLoaderJob implements Runnable {
 
     private static final String TAG = "akita.RemoteImageLoaderJob";
+    /**
+     * name of the image requests in NetworkMetrics
+     */
+    private static final String IMAGE_API = "[image]";
 
     private String imageUrl;
     private String httpReferer;
     private ProgressBar progressBar;
     private ResImageLoaderHandler handler;
     private FilesCache<Bitmap> imageCache;
+    /**
+     * executor to run the retry on, null if no retry
+     */
+    private Executor retryExecutor;
+    private int retried;
+    private AkException lastError;
 
     public ResImageLoaderJob(String imageUrl, String httpReferer, ProgressBar progressBar,
                              ResImageLoaderHandler handler, FilesCache<Bitmap> imageCache) {
+        this(imageUrl, httpReferer, progressBar, handler, imageCache, null);
+    }
+
+    /**
+     * @param retryExecutor the failed download is rescheduled on it by RetryPolicy, null if no retry
+     */
+    public ResImageLoaderJob(String imageUrl, String httpReferer, ProgressBar progressBar,
+                             ResImageLoaderHandler handler, FilesCache<Bitmap> imageCache,
+                             Executor retryExecutor) {
+        this.retryExecutor = retryExecutor;
         this.imageUrl = imageUrl;
         this.httpReferer = httpReferer;
         this.progressBar = progressBar;
@@ -54,7 +80,12 @@ public class ResImageLoaderJob implements Runnable {
         }
 
         if (bitmap == null) {
+            if (retried == 0) RetryPolicy.onRequest();
+            lastError = null;
             bitmap = downloadImage();
+            if (bitmap == null && lastError != null && scheduleRetry(lastError)) {
+                return;
+            }
         }
 
         notifyImageLoaded(imageUrl, bitmap);
@@ -63,16 +94,44 @@ public class ResImageLoaderJob implements Runnable {
     // use HttpInvoker to handle
     protected Bitmap downloadImage() {
         try {
+            if (imageCache instanceof RawFilesCache) {
+                // the bytes are cached as downloaded, no encoding again
+                return HttpInvoker.getBitmapFromUrl(imageUrl, httpReferer, progressBar,
+                        (RawFilesCache<Bitmap>) imageCache);
+            }
             Bitmap bm = HttpInvoker.getBitmapFromUrl(imageUrl, httpReferer, progressBar);
             if (imageCache != null && bm != null) {
                 imageCache.put(imageUrl, bm);
             }
             return bm;
         } catch (AkException e) {
+            lastError = e;
             return null;
         }
     }
 
+    /**
+     * Reschedule this job after the backoff, instead of sleeping on the worker
+     * @return false if no more retry
+     */
+    private boolean scheduleRetry(AkException e) {
+        if (retryExecutor == null) return false;
+        long delay = RetryPolicy.DEFAULT.nextDelay(retried, e);
+        if (delay < 0) return false;
+        retried++;
+        NetworkMetrics.recordRetry(IMAGE_API);
+        RetryPolicy.schedule(new Runnable() {
+            public void run() {
+                try {
+                    retryExecutor.execute(ResImageLoaderJob.this);
+                } catch (RejectedExecutionException ree) {
+                    notifyImageLoaded(imageUrl, null);
+                }
+            }
+        }, delay);
+        return true;
+    }
+
     protected void notifyImageLoaded(String url, Bitmap bitmap) {
         Message message = new Message();
         message.what = ResImageLoaderHandler.HANDLER_MESSAGE_ID;